@@ -0,0 +1,166 @@
+package com.threadsafe.bench;
+
+import com.threadsafe.agent.AccessMonitor;
+import com.threadsafe.agent.AgentOptions;
+import com.threadsafe.agent.FieldRegistry;
+import com.threadsafe.agent.ViolationReporter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * AccessMonitor.checkAccess各条路径的单次开销。
+ * 每个JMH线程注册自己的字段，多线程运行时(-t N)测到的是无共享情况下的扩展性；
+ * 违规上报只进入队列，不写文件也不打日志。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CheckAccessBenchmark {
+    private static final AtomicInteger fieldSeq = new AtomicInteger();
+
+    static int registerField(String name) {
+        return FieldRegistry.register("bench/Target" + fieldSeq.incrementAndGet(), name);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Reporter {
+        @Setup(Level.Trial)
+        public void setup() {
+            ViolationReporter.configure(AgentOptions.parse("violations.file=none;violations.log=false"));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            AccessMonitor.clearAccessMap();
+        }
+    }
+
+    /**
+     * 普通路径：当前线程自己读写，按角色分为核心线程和非核心线程。
+     */
+    @State(Scope.Thread)
+    public static class Access {
+        @Param({"CORE", "NON_CORE"})
+        public String role;
+
+        Object target;
+        int staticId;
+        int instanceId;
+
+        @Setup(Level.Trial)
+        public void setup(Reporter reporter) {
+            if ("CORE".equals(role)) {
+                AccessMonitor.markCore();
+            } else {
+                AccessMonitor.markNonCore();
+            }
+            target = new Object();
+            staticId = registerField("s");
+            instanceId = registerField("i");
+            // 先写一次，使后续访问都走所有者就是当前线程的快路径
+            AccessMonitor.checkAccess(null, staticId, true, false);
+            AccessMonitor.checkAccess(target, instanceId, false, false);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            AccessMonitor.clearThreadRole();
+        }
+    }
+
+    /**
+     * 字段已经上报过，之后的访问在reported标记处直接返回。
+     */
+    @State(Scope.Thread)
+    public static class Reported {
+        Object target;
+        int instanceId;
+
+        @Setup(Level.Trial)
+        public void setup(Reporter reporter) {
+            target = new Object();
+            instanceId = registerField("reported");
+            AccessMonitor.markNonCore();
+            AccessMonitor.checkAccess(target, instanceId, false, false);
+            AccessMonitor.markCore();
+            AccessMonitor.checkAccess(target, instanceId, false, true);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            AccessMonitor.clearThreadRole();
+        }
+    }
+
+    /**
+     * 每次调用前由非核心身份写一个新对象，测量核心线程读取时的完整违规路径(栈采集 + 入队)。
+     */
+    @State(Scope.Thread)
+    public static class Violating {
+        Object target;
+        int instanceId;
+
+        @Setup(Level.Trial)
+        public void setup(Reporter reporter) {
+            instanceId = registerField("violating");
+        }
+
+        @Setup(Level.Invocation)
+        public void prepare() {
+            target = new Object();
+            AccessMonitor.markNonCore();
+            AccessMonitor.checkAccess(target, instanceId, false, false);
+            AccessMonitor.markCore();
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            AccessMonitor.clearThreadRole();
+        }
+    }
+
+    @Benchmark
+    public void staticRead(Access access) {
+        AccessMonitor.checkAccess(null, access.staticId, true, true);
+    }
+
+    @Benchmark
+    public void staticWrite(Access access) {
+        AccessMonitor.checkAccess(null, access.staticId, true, false);
+    }
+
+    @Benchmark
+    public void instanceRead(Access access) {
+        AccessMonitor.checkAccess(access.target, access.instanceId, false, true);
+    }
+
+    @Benchmark
+    public void instanceWrite(Access access) {
+        AccessMonitor.checkAccess(access.target, access.instanceId, false, false);
+    }
+
+    @Benchmark
+    public void alreadyReported(Reported reported) {
+        AccessMonitor.checkAccess(reported.target, reported.instanceId, false, true);
+    }
+
+    @Benchmark
+    public void violating(Violating violating) {
+        AccessMonitor.checkAccess(violating.target, violating.instanceId, false, true);
+    }
+}
@@ -0,0 +1,54 @@
+package com.threadsafe.bench;
+
+import com.threadsafe.agent.ASMTransformer;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * 子优先加载指定包下的类，可选地先经过ASMTransformer插桩。
+ * 插桩和未插桩的负载都由这个加载器加载，两者只差在字节码是否被转换。
+ */
+final class InstrumentingClassLoader extends ClassLoader {
+    private final String packagePrefix;
+    private final boolean instrument;
+    private final ASMTransformer transformer = new ASMTransformer();
+
+    InstrumentingClassLoader(ClassLoader parent, String packagePrefix, boolean instrument) {
+        super(parent);
+        this.packagePrefix = packagePrefix;
+        this.instrument = instrument;
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        if (!name.startsWith(packagePrefix)) {
+            return super.loadClass(name, resolve);
+        }
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null) {
+                byte[] bytes = readClass(name);
+                if (instrument) {
+                    bytes = transformer.transform(this, bytes);
+                }
+                loaded = defineClass(name, bytes, 0, bytes.length);
+            }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+    }
+
+    private byte[] readClass(String name) throws ClassNotFoundException {
+        String resource = name.replace('.', '/') + ".class";
+        try (InputStream in = getParent().getResourceAsStream(resource)) {
+            if (in == null) {
+                throw new ClassNotFoundException(name);
+            }
+            return in.readAllBytes();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+    }
+}
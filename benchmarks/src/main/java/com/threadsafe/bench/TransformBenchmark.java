@@ -0,0 +1,105 @@
+package com.threadsafe.bench;
+
+import com.threadsafe.agent.ASMTransformer;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import org.objectweb.asm.ClassReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * ASMTransformer.transform的吞吐，每次操作转换语料中的一个类，结果即classes/sec。
+ * 语料取自JDK的java.util(含子包)和ASM库本身的类。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TransformBenchmark {
+    @Param({"jdk", "library"})
+    public String corpus;
+
+    @Param({"2000"})
+    public int maxClasses;
+
+    private final ASMTransformer transformer = new ASMTransformer();
+    private final ClassLoader loader = TransformBenchmark.class.getClassLoader();
+    private byte[][] classes;
+    private int next;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+        List<byte[]> loaded = "jdk".equals(corpus) ? loadJdkClasses() : loadLibraryClasses();
+        if (loaded.isEmpty()) {
+            throw new IllegalStateException("Empty corpus: " + corpus);
+        }
+        classes = loaded.toArray(new byte[0][]);
+    }
+
+    private List<byte[]> loadJdkClasses() throws IOException {
+        List<byte[]> result = new ArrayList<>();
+        FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+        try (Stream<Path> paths = Files.walk(jrt.getPath("/modules/java.base/java/util"))) {
+            paths.filter(p -> p.toString().endsWith(".class"))
+                    .sorted()
+                    .limit(maxClasses)
+                    .forEach(p -> {
+                        try {
+                            result.add(Files.readAllBytes(p));
+                        } catch (IOException e) {
+                            throw new IllegalStateException(e);
+                        }
+                    });
+        }
+        return result;
+    }
+
+    private List<byte[]> loadLibraryClasses() throws Exception {
+        List<byte[]> result = new ArrayList<>();
+        Path jar = Path.of(ClassReader.class.getProtectionDomain().getCodeSource().getLocation().toURI());
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements() && result.size() < maxClasses) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (name.startsWith("org/objectweb/asm/") && name.endsWith(".class")) {
+                    try (InputStream in = jarFile.getInputStream(entry)) {
+                        result.add(in.readAllBytes());
+                    }
+                }
+            }
+        }
+        return result;
+    }
+
+    @Benchmark
+    public byte[] transform() {
+        byte[] bytes = classes[next];
+        next = next + 1 == classes.length ? 0 : next + 1;
+        return transformer.transform(loader, bytes);
+    }
+}
@@ -0,0 +1,12 @@
+package com.threadsafe.bench;
+
+/**
+ * 由InstrumentingClassLoader加载的负载实现的公共接口，接口本身由父加载器加载，
+ * 插桩和未插桩的两份实现可以在同一个JVM中对比。
+ */
+public interface Workload {
+    /**
+     * 执行一次操作，threadIndex为JMH线程序号。返回值交给Blackhole防止被优化掉。
+     */
+    long step(int threadIndex);
+}
@@ -0,0 +1,73 @@
+package com.threadsafe.bench;
+
+import com.threadsafe.agent.AccessMonitor;
+import com.threadsafe.agent.AgentOptions;
+import com.threadsafe.agent.ViolationReporter;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+/**
+ * 同一份负载插桩前后的吞吐对比。线程数用JMH的-t参数放大，例如 -t 1,4,16。
+ * mode=disabled时负载已插桩但检查关闭，测的是插桩点本身(live数组读取 + 分支)的开销。
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WorkloadBenchmark {
+    private static final String WORKLOAD_PACKAGE = "com.threadsafe.bench.workload.";
+
+    @State(Scope.Benchmark)
+    public static class Shared {
+        @Param({"plain", "instrumented", "disabled"})
+        public String mode;
+
+        Workload workload;
+
+        @Setup(Level.Trial)
+        public void setup() throws ReflectiveOperationException {
+            ViolationReporter.configure(AgentOptions.parse("violations.file=none;violations.log=false"));
+            boolean instrument = !"plain".equals(mode);
+            ClassLoader loader = new InstrumentingClassLoader(
+                    WorkloadBenchmark.class.getClassLoader(), WORKLOAD_PACKAGE, instrument);
+            workload = (Workload) loader.loadClass(WORKLOAD_PACKAGE + "LedgerWorkload")
+                    .getDeclaredConstructor().newInstance();
+            AccessMonitor.setEnabled(!"disabled".equals(mode));
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            AccessMonitor.setEnabled(true);
+            AccessMonitor.clearAccessMap();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        int index;
+
+        @Setup(Level.Trial)
+        public void setup(ThreadParams params) {
+            index = params.getThreadIndex();
+        }
+    }
+
+    @Benchmark
+    public long step(Shared shared, Worker worker) {
+        return shared.workload.step(worker.index);
+    }
+}
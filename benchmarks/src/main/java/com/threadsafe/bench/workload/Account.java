@@ -0,0 +1,20 @@
+package com.threadsafe.bench.workload;
+
+/**
+ * 每个线程私有的对象，只被所属线程读写。
+ */
+public class Account {
+    public long balance;
+    public int operations;
+    private long lastAmount;
+
+    public void apply(long amount) {
+        balance += amount;
+        operations++;
+        lastAmount = amount;
+    }
+
+    public long getLastAmount() {
+        return lastAmount;
+    }
+}
@@ -0,0 +1,36 @@
+package com.threadsafe.bench.workload;
+
+import com.threadsafe.bench.Workload;
+
+/**
+ * 把Model/Test的访问模式放大到多线程：每次操作读取共享配置(静态字段和实例字段)，
+ * 写当前线程自己的Account，每16次操作写一次所有线程共享的计数器。
+ */
+public class LedgerWorkload implements Workload {
+    private static final int MAX_THREADS = 256;
+
+    private final SharedConfig config = new SharedConfig();
+    private final Account[] accounts = new Account[MAX_THREADS];
+    private volatile long sharedCounter;
+    private int sharedTicks;
+
+    public LedgerWorkload() {
+        for (int i = 0; i < MAX_THREADS; i++) {
+            accounts[i] = new Account();
+        }
+    }
+
+    @Override
+    public long step(int threadIndex) {
+        Account account = accounts[threadIndex & (MAX_THREADS - 1)];
+        long amount = config.value + SharedConfig.name.length();
+        if (account.balance + amount < config.limit) {
+            account.apply(amount);
+        }
+        if ((account.operations & 15) == 0) {
+            sharedTicks++;
+            sharedCounter = sharedCounter + 1;
+        }
+        return account.balance + account.getLastAmount();
+    }
+}
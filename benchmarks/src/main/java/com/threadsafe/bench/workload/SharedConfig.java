@@ -0,0 +1,12 @@
+package com.threadsafe.bench.workload;
+
+/**
+ * 所有线程共享、初始化后只读的配置，对应Model中的静态name和实例字段value。
+ */
+public class SharedConfig {
+    public static String name = "bench";
+    public static final int staticValue = 100;
+
+    public int value = 7;
+    public long limit = Long.MAX_VALUE;
+}
@@ -0,0 +1,91 @@
+package com.threadsafe.maven;
+
+import com.threadsafe.agent.AotInstrumenter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import org.apache.maven.artifact.DependencyResolutionRequiredException;
+import org.apache.maven.plugin.AbstractMojo;
+import org.apache.maven.plugin.MojoExecutionException;
+import org.apache.maven.plugins.annotations.LifecyclePhase;
+import org.apache.maven.plugins.annotations.Mojo;
+import org.apache.maven.plugins.annotations.Parameter;
+import org.apache.maven.plugins.annotations.ResolutionScope;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * 在process-classes阶段用AotInstrumenter插桩编译出的class目录，打包出的jar不需要-javaagent即可检查。
+ * 默认原地改写target/classes，已插桩的类会被跳过，增量编译后可以重复执行。
+ * 运行时需要把thread-monitor-agent加入应用的依赖。
+ */
+@Mojo(name = "instrument", defaultPhase = LifecyclePhase.PROCESS_CLASSES,
+    requiresDependencyResolution = ResolutionScope.COMPILE)
+public class InstrumentMojo extends AbstractMojo {
+    @Parameter(defaultValue = "${project}", readonly = true, required = true)
+    private MavenProject project;
+
+    @Parameter(defaultValue = "${project.build.outputDirectory}", required = true)
+    private File classesDirectory;
+
+    // 不配置时原地改写classesDirectory
+    @Parameter
+    private File outputDirectory;
+
+    // 与-javaagent相同格式的参数，例如packages=com.foo;detector=hb
+    @Parameter(property = "threadsafe.agentArgs", defaultValue = "")
+    private String agentArgs;
+
+    // 0为CPU核数
+    @Parameter(property = "threadsafe.parallelism", defaultValue = "0")
+    private int parallelism;
+
+    @Parameter(property = "threadsafe.skip", defaultValue = "false")
+    private boolean skip;
+
+    @Override
+    public void execute() throws MojoExecutionException {
+        if (skip) {
+            getLog().info("Skipping thread safety instrumentation");
+            return;
+        }
+        if (!classesDirectory.isDirectory()) {
+            getLog().info("No classes to instrument in " + classesDirectory);
+            return;
+        }
+        Path input = classesDirectory.toPath();
+        Path output = outputDirectory == null ? input : outputDirectory.toPath();
+        int threads = parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors();
+        try {
+            AotInstrumenter.Summary summary = new AotInstrumenter(agentArgs, threads, dependencies())
+                .instrument(Collections.singletonList(input), Collections.singletonList(output));
+            getLog().info(String.format("Instrumented %d of %d classes (%d fields) into %s",
+                summary.getInstrumented(), summary.getClasses(), summary.getFields(), output));
+            if (summary.getFailed() > 0) {
+                getLog().warn(summary.getFailed() + " classes could not be instrumented and were copied unchanged");
+            }
+        } catch (IOException | RuntimeException e) {
+            throw new MojoExecutionException("Failed to instrument " + input + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * 编译classpath中除了classesDirectory之外的部分，只用于计算栈帧时解析父类。
+     */
+    private List<Path> dependencies() throws MojoExecutionException {
+        List<Path> classpath = new ArrayList<>();
+        try {
+            for (String element : project.getCompileClasspathElements()) {
+                File file = new File(element);
+                if (!file.equals(classesDirectory) && file.exists()) {
+                    classpath.add(file.toPath());
+                }
+            }
+        } catch (DependencyResolutionRequiredException e) {
+            throw new MojoExecutionException("Compile classpath is not resolved", e);
+        }
+        return classpath;
+    }
+}
@@ -1,73 +1,213 @@
 package com.threadsafe.agent;
 
 import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
-import java.io.FileOutputStream;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
 import java.io.IOException;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.io.File;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 public class ASMTransformer {
-    private static final String OUTPUT_DIR = "out/transformed_classes";
     private static final Logger logger = LogManager.getLogger(ASMTransformer.class);
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final String IGNORE_STATIC_INIT = "Lcom/threadsafe/agent/annotation/IgnoreStaticInit;";
+    private static final String INSTRUMENTED = "Lcom/threadsafe/agent/annotation/Instrumented;";
+
+    // 插桩结果的输出目录，为null时不输出
+    private static volatile Path dumpDir;
+
+    /**
+     * 配置项：dump.dir 插桩后class文件的输出目录，用于排查插桩问题，默认不输出。
+     */
+    static void configure(AgentOptions options) {
+        String dir = options.get("dump.dir", "none");
+        dumpDir = "none".equals(dir) ? null : Paths.get(dir);
+    }
+
+    // 构建时插桩：给插桩后的类加上@Instrumented，并在静态初始化开头注册类加载器上的字段索引
+    private final boolean markInstrumented;
+
+    public ASMTransformer() {
+        this(false);
+    }
+
+    ASMTransformer(boolean markInstrumented) {
+        this.markInstrumented = markInstrumented;
+    }
 
     public byte[] transform(byte[] classfileBuffer) {
+        return transform(null, classfileBuffer);
+    }
+
+    /**
+     * 返回插桩后的字节码；类中没有需要插桩的内容或转换失败时原样返回传入的数组。
+     */
+    public byte[] transform(ClassLoader loader, byte[] classfileBuffer) {
+        long start = System.nanoTime();
         try {
-            System.out.println("Starting ASM transformation");
             ClassReader cr = new ClassReader(classfileBuffer);
-            
-            System.out.println("Class access flags: " + cr.getAccess());
-            System.out.println("Class version: " + cr.readByte(6) + "." + cr.readByte(7));
-            
-            ClassWriter cw = new ClassWriter(cr, ClassWriter.COMPUTE_MAXS);
-            FieldAccessVisitor fv = new FieldAccessVisitor(cw);
-            cr.accept(fv, ClassReader.EXPAND_FRAMES);
-            
+            // 构建时已经插桩过的类，字段ID来自插桩产物中的fields.idx，不能再插桩一次
+            if (isInstrumented(cr)) {
+                return classfileBuffer;
+            }
+            // 常量池里没有字段引用的类(接口、纯逻辑类)不会产生任何检查，跳过完整的解析和重写；
+            // 数组指令不引用常量池，开启数组检查时不能据此跳过
+            if (!HappensBefore.isEnabled() && !ArrayMonitor.isEnabled() && !needsTransform(cr)) {
+                return classfileBuffer;
+            }
+            String key = TransformCache.key(classfileBuffer);
+            byte[] cached = TransformCache.lookup(key);
+            if (cached != null) {
+                AgentMetrics.onTransform(System.nanoTime() - start);
+                return cached;
+            }
+
+            // 插桩代码带有分支，需要重新计算栈帧，原有的栈帧直接跳过
+            ClassWriter cw = new FrameComputingClassWriter(cr, loader);
+            // 先做一遍静态分析，找出不需要检查的字段访问
+            FieldAccessVisitor fv = new FieldAccessVisitor(markInstrumented ? new InstrumentedMarker(cw) : cw,
+                SafeAccessAnalyzer.analyze(cr));
+            cr.accept(fv, ClassReader.SKIP_FRAMES);
             byte[] transformedClass = cw.toByteArray();
 
-            // 添加保存class文件的功能
-            try {
-                String rootDir = new File(System.getProperty("user.dir")).getAbsolutePath();
-                String outputDir = new File(rootDir, OUTPUT_DIR).getAbsolutePath();
-                saveClassFile(outputDir, cr.getClassName(), transformedClass);
-            } catch (Exception e) {
-                logger.error("Failed to save class file: {}", e.getMessage());
+            TransformCache.store(key, fv, transformedClass);
+            Path dir = dumpDir;
+            if (dir != null) {
+                String className = cr.getClassName();
+                BackgroundWriter.submit(() -> saveClassFile(dir, className, transformedClass));
             }
-            // todo:
-
-            System.out.println("ASM transformation completed");
+            AgentMetrics.onTransform(System.nanoTime() - start);
             return transformedClass;
         } catch (Exception e) {
-            e.printStackTrace();
+            AgentMetrics.onTransformFailure();
+            logger.error("Failed to transform class", e);
             return classfileBuffer;
         }
     }
 
-    private void saveClassFile(String baseDir, String className, byte[] classData) {
-        try {
-            File dir = new File(baseDir);
-            if (!dir.exists()) {
-                dir.mkdirs();
+    /**
+     * 常量池中有字段引用，或者带有@IgnoreStaticInit注解(需要登记到字段注册表)时才需要转换。
+     */
+    private static boolean needsTransform(ClassReader cr) {
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int offset = cr.getItem(i);
+            // long/double占两个常量池项，第二项的偏移为0
+            if (offset == 0) {
+                continue;
             }
+            int tag = cr.readByte(offset - 1);
+            if (tag == CONSTANT_FIELDREF) {
+                return true;
+            }
+            if (tag == CONSTANT_UTF8 && utf8Equals(cr, offset, IGNORE_STATIC_INIT)) {
+                return true;
+            }
+        }
+        return false;
+    }
 
-            String fileName = className + ".class";
-            File outputFile = new File(dir, fileName);
+    /**
+     * 类上是否有构建时插桩加上的@Instrumented。
+     */
+    static boolean isInstrumented(ClassReader cr) {
+        return containsUtf8(cr, INSTRUMENTED);
+    }
 
-            File parent = outputFile.getParentFile();
-            if (!parent.exists()) {
-                parent.mkdirs();
+    private static boolean containsUtf8(ClassReader cr, String value) {
+        for (int i = 1; i < cr.getItemCount(); i++) {
+            int offset = cr.getItem(i);
+            if (offset != 0 && cr.readByte(offset - 1) == CONSTANT_UTF8 && utf8Equals(cr, offset, value)) {
+                return true;
             }
+        }
+        return false;
+    }
+
+    private static boolean utf8Equals(ClassReader cr, int offset, String value) {
+        int length = value.length();
+        if (cr.readUnsignedShort(offset) != length) {
+            return false;
+        }
+        for (int j = 0; j < length; j++) {
+            if (cr.readByte(offset + 2 + j) != value.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 在类上加不可见的@Instrumented注解，并在&lt;clinit&gt;开头插入FieldRegistry.registerIndexes(本类)，没有&lt;clinit&gt;时补一个。
+     * 类中的任何代码执行之前都会先完成初始化，类加载器上的索引因此总在插桩点第一次读取live之前注册。
+     * Java 5之前的类文件不支持LDC类常量，不插入，只能使用FieldRegistry所在加载器上的索引。
+     */
+    private static final class InstrumentedMarker extends ClassVisitor {
+        private String className;
+        private boolean ldcClassSupported;
+        private boolean hasStaticInit;
+
+        InstrumentedMarker(ClassVisitor cv) {
+            super(Opcodes.ASM9, cv);
+        }
 
-            try (FileOutputStream fos = new FileOutputStream(outputFile)) {
-                fos.write(classData);
+        @Override
+        public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+            className = name;
+            ldcClassSupported = (version & 0xFFFF) >= Opcodes.V1_5;
+            super.visit(version, access, name, signature, superName, interfaces);
+            super.visitAnnotation(INSTRUMENTED, false).visitEnd();
+        }
+
+        @Override
+        public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+            MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
+            if (!ldcClassSupported || !name.equals("<clinit>")) {
+                return mv;
+            }
+            hasStaticInit = true;
+            return new MethodVisitor(Opcodes.ASM9, mv) {
+                @Override
+                public void visitCode() {
+                    super.visitCode();
+                    registerIndexes(mv);
+                }
+            };
+        }
+
+        @Override
+        public void visitEnd() {
+            if (ldcClassSupported && !hasStaticInit) {
+                MethodVisitor mv = super.visitMethod(Opcodes.ACC_STATIC, "<clinit>", "()V", null, null);
+                mv.visitCode();
+                registerIndexes(mv);
+                mv.visitInsn(Opcodes.RETURN);
+                mv.visitMaxs(0, 0);
+                mv.visitEnd();
             }
+            super.visitEnd();
+        }
 
-            System.out.println("Saved transformed class to: " + outputFile.getAbsolutePath());
+        private void registerIndexes(MethodVisitor mv) {
+            mv.visitLdcInsn(Type.getObjectType(className));
+            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "com/threadsafe/agent/FieldRegistry", "registerIndexes",
+                "(Ljava/lang/Class;)V", false);
+        }
+    }
+
+    private static void saveClassFile(Path baseDir, String className, byte[] classData) {
+        Path outputFile = baseDir.resolve(className + ".class");
+        try {
+            Files.createDirectories(outputFile.getParent());
+            Files.write(outputFile, classData);
         } catch (IOException e) {
-            throw new RuntimeException("Error saving class file: " + e.getMessage(), e);
+            logger.error("Failed to save class file {}: {}", outputFile, e.getMessage());
         }
     }
-} 
\ No newline at end of file
+}
@@ -5,170 +5,276 @@ import java.util.Map;
 import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
-import java.util.Collections;
-import java.util.ArrayList;
-import java.util.List;
 import java.io.IOException;
 
 public class AccessMonitor {
-    private static final Map<String, WriteInfo> nonCoreWriteMap = new ConcurrentHashMap<>();
-    private static final Set<String> checkedFields = Collections.newSetFromMap(new ConcurrentHashMap<>());
+    // 实例变量的影子状态，以对象身份为弱引用key
+    private static final ShadowTable<ObjectShadow> shadows = new ShadowTable<>(ObjectShadow::new);
     private static final Logger logger = LogManager.getLogger(AccessMonitor.class);
-    private static final Map<String, Set<String>> ignoreStaticInitFields = new ConcurrentHashMap<>();
+    // 静态变量的状态表，按字段ID索引，按需扩容
+    private static volatile FieldState[] staticStates = new FieldState[256];
 
     public enum ThreadType {
         CORE,
         NON_CORE
     }
 
-    private static class WriteInfo {
+    static class WriteInfo {
         final String threadName;
-        final Exception stackTrace;
+        // 写入现场在StackTable中的栈ID
+        final int stackId;
         final boolean isStaticInit;
+        // 写入时的所有权epoch
+        final int epoch;
 
-        WriteInfo(String threadName, Exception stackTrace, boolean isStaticInit) {
+        WriteInfo(String threadName, int stackId, boolean isStaticInit, int epoch) {
             this.threadName = threadName;
-            this.stackTrace = stackTrace;
+            this.stackId = stackId;
             this.isStaticInit = isStaticInit;
+            this.epoch = epoch;
         }
     }
 
-    private static class StackNode {
-        String method;
-        String clazz;
-        List<StackNode> children = new ArrayList<>();
-        
-        public StackNode(String method, String clazz) {
-            this.method = method;
-            this.clazz = clazz;
+    public static void checkAccess(Object instance, int fieldId, boolean isStatic, boolean isRead) {
+        if (!Sampler.active) {
+            doCheckAccess(instance, fieldId, isStatic, isRead);
+            return;
         }
-        
-        public static StackNode fromStackTrace(StackTraceElement[] elements) {
-            StackNode root = new StackNode("root", "");
-            StackNode current = root;
-            for (StackTraceElement element : elements) {
-                String simpleName = element.getClassName();
-                int lastDot = simpleName.lastIndexOf('.');
-                if (lastDot > 0) {
-                    simpleName = simpleName.substring(lastDot + 1);
-                }
-                
-                StackNode node = new StackNode(
-                    element.getMethodName(),
-                    simpleName
-                );
-                current.children.add(node);
-                current = node;
-            }
-            return root;
+        // 采样模式下按字段决定本次读取是否检查；写入总是检查，同一线程连续写入只比较一次所有权字，
+        // 跳过写入会漏掉所有权变化。读写都有一部分检查会计时用于开销预算
+        int decision = isRead ? Sampler.decide(fieldId) : Sampler.decideWrite();
+        if (decision == Sampler.CHECK) {
+            doCheckAccess(instance, fieldId, isStatic, isRead);
+        } else if (decision == Sampler.TIMED) {
+            long start = System.nanoTime();
+            doCheckAccess(instance, fieldId, isStatic, isRead);
+            Sampler.recordTime(System.nanoTime() - start);
         }
     }
 
-    private static String convertToFlameGraph(StackNode currentStack, StackNode previousStack) {
-        StringBuilder json = new StringBuilder();
-        json.append("{\"current\":");
-        convertNodeToJson(currentStack, json);
-        json.append(",\"previous\":");
-        convertNodeToJson(previousStack, json);
-        json.append("}");
-        return json.toString();
-    }
-
-    private static void convertNodeToJson(StackNode node, StringBuilder json) {
-        json.append("{\"m\":\"").append(node.method)
-            .append("\",\"c\":\"").append(node.clazz)
-            .append("\",\"n\":[");
-        for (int i = 0; i < node.children.size(); i++) {
-            if (i > 0) json.append(",");
-            convertNodeToJson(node.children.get(i), json);
+    private static void doCheckAccess(Object instance, int fieldId, boolean isStatic, boolean isRead) {
+        if (AgentMetrics.enabled) {
+            AgentMetrics.onCheck(isStatic, isRead);
+        }
+        FieldRegistry.FieldInfo field = FieldRegistry.get(fieldId);
+        // 静态变量的状态直接按字段ID索引；实例变量的状态挂在对象的影子状态上，随对象一起回收
+        FieldState state;
+        if (isStatic) {
+            state = staticState(fieldId);
+        } else if (isRead) {
+            // 没有写入记录的对象读取时无需检查，也不为它创建状态，只读对象不占用影子表
+            ObjectShadow shadow = shadows.peek(instance);
+            state = shadow == null ? null : shadow.peek(fieldId);
+            if (state == null) {
+                return;
+            }
+        } else {
+            state = shadows.get(instance).state(fieldId);
         }
-        json.append("]}");
-    }
 
-    public static void checkAccess(Thread thread, Object instance, String className, String fieldName, boolean isStatic, boolean isRead) {
-        // 生成key，如果是静态变量，则key为"static." + className + "." + fieldName，否则为thread.getName() + "." + System.identityHashCode(instance) + "." + className + "." + fieldName
-        String key = isStatic ?
-            "static." + className + "." + fieldName :
-            thread.getName() + "." + System.identityHashCode(instance) + "." + className + "." + fieldName;
+        // happens-before检测中volatile字段本身就是同步点，不会构成违规
+        if (HappensBefore.enabled && field.isVolatile) {
+            HappensBefore.onVolatileAccess(state, isRead);
+            return;
+        }
 
         // 如果已经检查过该变量，则直接返回
-        if (checkedFields.contains(key)) {
+        if (state.reported) {
             return;
         }
 
-        // 判断当前线程类型，如果是核心线程，则类型为CORE，否则为NON_CORE
-        ThreadType currentThreadType = isCoreThread(thread) ? ThreadType.CORE : ThreadType.NON_CORE;
+        Thread thread = Thread.currentThread();
 
         // 如果是读取操作
         if (isRead) {
             // 获取该变量的写信息
-            WriteInfo writeInfo = nonCoreWriteMap.get(key);
-            // 如果当前线程是核心线程，并且该变量被非核心线程写入过
-            if (currentThreadType == ThreadType.CORE && writeInfo != null) {
+            WriteInfo writeInfo = state.nonCoreWrite;
+            // 如果该变量被非核心线程写入过，并且当前线程是核心线程
+            // 开启happens-before检测时，写入已经通过同步发布给当前线程的不算违规
+            if (writeInfo != null && isCoreThread(thread)
+                    && !(HappensBefore.enabled && HappensBefore.isOrdered(state.writeEpoch))) {
                 // 如果该变量是静态初始化的，并且需要忽略静态初始化，则忽略
-                boolean shouldIgnore = writeInfo.isStaticInit && shouldIgnoreStaticInit(className, fieldName);
+                boolean shouldIgnore = writeInfo.isStaticInit && field.ignoreStaticInit;
                 if (!shouldIgnore) {
-                    // 记录错误日志
-                    logger.fatal("Invalid read: CORE thread '{}' attempting to read variable {} that was written by NON_CORE thread '{}'",
-                        thread.getName(), key, writeInfo.threadName);
-                    logger.fatal("Current thread stack trace: {}", formatStackTrace(new Exception("Stack trace")));
-                    logger.fatal("Previous NON_CORE thread write stack trace: {}", formatStackTrace(writeInfo.stackTrace));
+                    reportViolation(thread, fieldId, isStatic ? null : instance, -1, writeInfo);
                     // 将该变量标记为已检查
-                    checkedFields.add(key);
+                    state.reported = true;
+                    if (isStatic) {
+                        // 静态字段只有一个状态，上报后插桩点不再调用checkAccess
+                        FieldRegistry.retire(fieldId);
+                    }
                 }
             }
         } else {
-            // 如果是写入操作，并且当前线程是非核心线程
-            if (currentThreadType == ThreadType.NON_CORE) {
-                // 判断是否是静态初始化
-                boolean isStaticInit = isStaticInitialization(Thread.currentThread().getStackTrace());
-                // 将该变量的写信息存入nonCoreWriteMap
-                nonCoreWriteMap.put(key, new WriteInfo(
-                    thread.getName(), 
-                    new Exception("NON_CORE thread write stack trace"),
-                    isStaticInit
-                ));
+            WriteRecorder.recordWrite(thread, fieldId, field.ignoreStaticInit, state, 0);
+        }
+    }
+
+    private static String variableName(FieldRegistry.FieldInfo field, Object instance) {
+        // 只在上报时生成变量名，检查路径上不拼接字符串
+        return instance == null ? field.staticKey
+            : System.identityHashCode(instance) + "." + field.owner + "." + field.name;
+    }
+
+    static WriteInfo newWriteInfo(Thread thread, ThreadState threadState, int epoch) {
+        // 采集写入现场，相同的调用栈在StackTable中只保存一份
+        int stackId = StackCapture.capture();
+        return new WriteInfo(
+            threadState.displayName(thread),
+            stackId,
+            StackTable.isStaticInit(stackId),
+            epoch
+        );
+    }
+
+    /**
+     * arraySlot为数组元素检查的槽号，字段为-1。
+     */
+    static void reportViolation(Thread thread, int fieldId, Object instance, int arraySlot, WriteInfo writeInfo) {
+        AgentMetrics.onViolation(fieldId);
+        // 核心线程上只采集读取现场并发布事件，格式化和输出由后台线程完成
+        ViolationReporter.publish(new ViolationEvent(
+            System.currentTimeMillis(),
+            fieldId,
+            instance == null ? 0 : System.identityHashCode(instance),
+            instance == null,
+            arraySlot,
+            ThreadState.current().displayName(thread),
+            StackCapture.capture(),
+            writeInfo
+        ));
+    }
+
+    private static FieldState staticState(int fieldId) {
+        FieldState[] table = staticStates;
+        if (fieldId < table.length) {
+            FieldState state = table[fieldId];
+            if (state != null) {
+                return state;
             }
         }
+        return createStaticState(fieldId);
     }
 
-    private static String formatStackTrace(Exception e) {
-        StringBuilder sb = new StringBuilder("\n");
-        StackTraceElement[] stackTrace = e.getStackTrace();
-        for (StackTraceElement element : stackTrace) {
-            sb.append("    at ").append(element).append("\n");
+    private static synchronized FieldState createStaticState(int fieldId) {
+        FieldState[] table = staticStates;
+        if (fieldId >= table.length) {
+            int newLength = table.length;
+            while (newLength <= fieldId) {
+                newLength <<= 1;
+            }
+            FieldState[] grown = new FieldState[newLength];
+            System.arraycopy(table, 0, grown, 0, table.length);
+            table = grown;
+            staticStates = table;
         }
-        return sb.toString();
+        FieldState state = table[fieldId];
+        if (state == null) {
+            state = new FieldState(fieldId);
+            table[fieldId] = state;
+        }
+        return state;
     }
 
     private static boolean isCoreThread(Thread thread) {
-        return thread.getName().equals("CONTRACT_WORKER");
+        // 角色在线程本地状态中缓存，只有线程改名或规则变更时才重新匹配
+        return ThreadRoles.isCore(thread);
     }
 
-    public static void clearAccessMap() {
-        nonCoreWriteMap.clear();
-        checkedFields.clear();
+    /**
+     * 将当前线程显式标记为核心线程，优先于配置的线程名规则。
+     */
+    public static void markCore() {
+        ThreadRoles.mark(ThreadType.CORE);
     }
 
-    public static Map<String, WriteInfo> getAccessMap() {
-        return new ConcurrentHashMap<>(nonCoreWriteMap);
+    /**
+     * 将当前线程显式标记为非核心线程，优先于配置的线程名规则。
+     */
+    public static void markNonCore() {
+        ThreadRoles.mark(ThreadType.NON_CORE);
     }
 
-    public static void setIgnoreStaticInitFields(String className, Set<String> fields) {
-        ignoreStaticInitFields.put(className, fields);
+    /**
+     * 清除当前线程的显式标记，恢复按配置规则判定角色。
+     */
+    public static void clearThreadRole() {
+        ThreadRoles.clearMark();
+    }
+
+    /**
+     * 打开或关闭监控。关闭后插桩点只执行一次数组读取和一个分支，不再调用checkAccess。
+     */
+    public static void setEnabled(boolean enabled) {
+        FieldRegistry.setEnabled(enabled);
+    }
+
+    public static boolean isEnabled() {
+        return FieldRegistry.isEnabled();
+    }
+
+    /**
+     * 限制持有影子状态的对象数，超出时按CLOCK淘汰最近未被访问的对象；小于等于0表示不限制。
+     * 被淘汰对象上尚未上报的非核心写入会丢失。
+     */
+    static void setMaxTrackedObjects(int maxObjects) {
+        shadows.setMaxSize(maxObjects);
+        ArrayMonitor.setMaxTrackedArrays(maxObjects);
+    }
+
+    static long evictedObjectCount() {
+        return shadows.evictionCount();
+    }
+
+    /**
+     * 持有影子状态的存活对象数(含尚未清理的已回收对象)。
+     */
+    static int trackedObjectCount() {
+        return shadows.size();
+    }
+
+    static int trackedStaticFieldCount() {
+        int count = 0;
+        for (FieldState state : staticStates) {
+            if (state != null) {
+                count++;
+            }
+        }
+        return count;
     }
 
-    private static boolean shouldIgnoreStaticInit(String className, String fieldName) {
-        Set<String> fields = ignoreStaticInitFields.get(className);
-        return fields != null && fields.contains(fieldName);
+    public static void clearAccessMap() {
+        shadows.clear();
+        ArrayMonitor.clear();
+        FieldRegistry.reviveAll();
+        synchronized (AccessMonitor.class) {
+            staticStates = new FieldState[staticStates.length];
+        }
     }
 
-    private static boolean isStaticInitialization(StackTraceElement[] stackTrace) {
-        for (StackTraceElement element : stackTrace) {
-            if (element.getMethodName().equals("<clinit>")) {
-                return true;
+    public static Map<String, WriteInfo> getAccessMap() {
+        Map<String, WriteInfo> snapshot = new ConcurrentHashMap<>();
+        shadows.forEach((instance, shadow) -> {
+            for (FieldState state : shadow.states()) {
+                WriteInfo writeInfo = state.nonCoreWrite;
+                if (writeInfo != null) {
+                    snapshot.put(variableName(FieldRegistry.get(state.fieldId), instance), writeInfo);
+                }
+            }
+        });
+        FieldState[] table = staticStates;
+        for (int id = 0; id < table.length; id++) {
+            FieldState state = table[id];
+            if (state != null && state.nonCoreWrite != null) {
+                snapshot.put(FieldRegistry.get(id).staticKey, state.nonCoreWrite);
             }
         }
-        return false;
+        return snapshot;
+    }
+
+    public static void setIgnoreStaticInitFields(String className, Set<String> fields) {
+        for (String field : fields) {
+            FieldRegistry.markIgnoreStaticInit(className, field);
+        }
     }
 } 
\ No newline at end of file
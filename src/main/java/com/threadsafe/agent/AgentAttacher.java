@@ -0,0 +1,28 @@
+package com.threadsafe.agent;
+
+import com.sun.tools.attach.VirtualMachine;
+import java.io.File;
+
+/**
+ * 把agent动态attach到正在运行的JVM，或向已attach的agent发送命令：
+ * <pre>
+ * java -cp thread-monitor-agent.jar com.threadsafe.agent.AgentAttacher &lt;pid&gt; [agent参数]
+ * java -cp thread-monitor-agent.jar com.threadsafe.agent.AgentAttacher &lt;pid&gt; command=stop
+ * </pre>
+ */
+public class AgentAttacher {
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: AgentAttacher <pid> [agentArgs]");
+            System.exit(1);
+        }
+        String agentJar = new File(AgentAttacher.class.getProtectionDomain().getCodeSource().getLocation().toURI())
+            .getAbsolutePath();
+        VirtualMachine vm = VirtualMachine.attach(args[0]);
+        try {
+            vm.loadAgent(agentJar, args.length > 1 ? args[1] : null);
+        } finally {
+            vm.detach();
+        }
+    }
+}
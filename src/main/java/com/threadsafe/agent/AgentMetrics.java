@@ -0,0 +1,370 @@
+package com.threadsafe.agent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * agent自身的运行指标。
+ * 检查路径上只对LongAdder做一次累加，不同线程落在不同的cell上，不会互相竞争；
+ * 速率计算、JMX注册和快照文件输出都在后台线程中完成。
+ */
+public final class AgentMetrics implements AgentMetricsMXBean {
+    private static final Logger logger = LogManager.getLogger(AgentMetrics.class);
+    public static final String OBJECT_NAME = "com.threadsafe:type=AgentMetrics";
+
+    private static final int STATIC_READ = 0;
+    private static final int STATIC_WRITE = 1;
+    private static final int INSTANCE_READ = 2;
+    private static final int INSTANCE_WRITE = 3;
+    private static final String[] CHECK_NAMES = {"staticRead", "staticWrite", "instanceRead", "instanceWrite"};
+
+    // 转换耗时按2的幂(微秒)分桶，最后一个桶收集超过上限的部分
+    private static final int HISTOGRAM_BUCKETS = 22;
+
+    // 在插桩开始之前配置，之后只读
+    static boolean enabled = true;
+
+    private static final LongAdder[] checks = newAdders(CHECK_NAMES.length);
+    private static final LongAdder[] transformTimes = newAdders(HISTOGRAM_BUCKETS);
+    private static final LongAdder transforms = new LongAdder();
+    private static final LongAdder transformFailures = new LongAdder();
+    private static final LongAdder instrumentedAccesses = new LongAdder();
+    private static final LongAdder eliminatedAccesses = new LongAdder();
+    private static final LongAdder violations = new LongAdder();
+    private static final Map<Integer, LongAdder> violationsByField = new ConcurrentHashMap<>();
+
+    // 最近一个周期的每秒检查数，由后台线程写入
+    private static final double[] rates = new double[CHECK_NAMES.length];
+    private static volatile Thread ticker;
+    private static Writer snapshotWriter;
+
+    private static final AgentMetrics INSTANCE = new AgentMetrics();
+
+    private AgentMetrics() {
+    }
+
+    /**
+     * 配置项：metrics 是否开启指标统计，metrics.interval 速率计算和快照输出的周期(秒)，
+     * metrics.file 快照输出文件(JSON-lines，默认不输出)，metrics.jmx 是否注册MBean。
+     */
+    static synchronized void configure(AgentOptions options) {
+        enabled = options.getBoolean("metrics", true);
+        if (!enabled || ticker != null) {
+            return;
+        }
+        long interval = Math.max(1, options.getInt("metrics.interval", 10));
+        String file = options.get("metrics.file", "none");
+        boolean jmx = options.getBoolean("metrics.jmx", true);
+        Thread thread = new Thread(() -> tick(interval, "none".equals(file) ? null : Paths.get(file), jmx),
+            "threadsafe-metrics");
+        thread.setDaemon(true);
+        thread.start();
+        ticker = thread;
+    }
+
+    public static AgentMetrics getInstance() {
+        return INSTANCE;
+    }
+
+    static void onCheck(boolean isStatic, boolean isRead) {
+        checks[(isStatic ? 0 : 2) + (isRead ? 0 : 1)].increment();
+    }
+
+    static void onTransform(long nanos) {
+        transforms.increment();
+        long micros = TimeUnit.NANOSECONDS.toMicros(nanos);
+        int bucket = micros <= 1 ? 0 : 64 - Long.numberOfLeadingZeros(micros - 1);
+        transformTimes[Math.min(bucket, HISTOGRAM_BUCKETS - 1)].increment();
+    }
+
+    static void onTransformFailure() {
+        transformFailures.increment();
+    }
+
+    static void onInstrumentedAccess() {
+        instrumentedAccesses.increment();
+    }
+
+    static void onEliminatedAccess() {
+        eliminatedAccesses.increment();
+    }
+
+    /**
+     * 插桩结果的持久化缓存命中时，补记上次转换时统计的访问点数。
+     */
+    static void onCachedAccesses(int instrumented, int eliminated) {
+        instrumentedAccesses.add(instrumented);
+        eliminatedAccesses.add(eliminated);
+    }
+
+    static void onViolation(int fieldId) {
+        violations.increment();
+        violationsByField.computeIfAbsent(fieldId, id -> new LongAdder()).increment();
+    }
+
+    private static void tick(long intervalSeconds, Path file, boolean jmx) {
+        // 在后台线程中注册MBean，避免在premain中过早初始化JMX
+        if (jmx) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(INSTANCE, new ObjectName(OBJECT_NAME));
+            } catch (Exception e) {
+                logger.warn("Failed to register {}: {}", OBJECT_NAME, e.getMessage());
+            }
+        }
+        if (file != null) {
+            openSnapshotFile(file);
+        }
+        long[] last = new long[CHECK_NAMES.length];
+        long lastTime = System.nanoTime();
+        while (true) {
+            try {
+                TimeUnit.SECONDS.sleep(intervalSeconds);
+            } catch (InterruptedException e) {
+                return;
+            }
+            long now = System.nanoTime();
+            double seconds = (now - lastTime) / 1e9;
+            lastTime = now;
+            synchronized (rates) {
+                for (int i = 0; i < CHECK_NAMES.length; i++) {
+                    long total = checks[i].sum();
+                    rates[i] = (total - last[i]) / seconds;
+                    last[i] = total;
+                }
+            }
+            writeSnapshot();
+        }
+    }
+
+    private static synchronized void openSnapshotFile(Path file) {
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            snapshotWriter = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+            // 进程退出时再输出一次，短时间运行的进程也能留下最终的指标
+            Runtime.getRuntime().addShutdownHook(new Thread(AgentMetrics::writeSnapshot, "threadsafe-metrics-flush"));
+        } catch (IOException e) {
+            logger.error("Failed to open metrics file {}: {}", file, e.getMessage());
+        }
+    }
+
+    private static synchronized void writeSnapshot() {
+        if (snapshotWriter == null) {
+            return;
+        }
+        try {
+            snapshotWriter.append(INSTANCE.snapshot(new StringBuilder(512))).append('\n');
+            snapshotWriter.flush();
+        } catch (IOException e) {
+            logger.error("Failed to write metrics snapshot: {}", e.getMessage());
+        }
+    }
+
+    /**
+     * 以一行JSON输出当前快照：
+     * {"type":"metrics","time":...,"checks":{...},"checksPerSecond":{...},"trackedObjects":...,...}
+     */
+    StringBuilder snapshot(StringBuilder sb) {
+        sb.append("{\"type\":\"metrics\",\"time\":").append(System.currentTimeMillis()).append(",\"checks\":{");
+        for (int i = 0; i < CHECK_NAMES.length; i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"').append(CHECK_NAMES[i]).append("\":").append(checks[i].sum());
+        }
+        sb.append("},\"checksPerSecond\":{");
+        synchronized (rates) {
+            for (int i = 0; i < CHECK_NAMES.length; i++) {
+                if (i > 0) {
+                    sb.append(',');
+                }
+                sb.append('"').append(CHECK_NAMES[i]).append("\":").append(Math.round(rates[i]));
+            }
+        }
+        sb.append("},\"trackedObjects\":").append(getTrackedObjects())
+            .append(",\"trackedStaticFields\":").append(getTrackedStaticFields())
+            .append(",\"evictedObjects\":").append(getEvictedObjects())
+            .append(",\"registeredFields\":").append(getRegisteredFields())
+            .append(",\"internedStacks\":").append(getInternedStacks())
+            .append(",\"classesTransformed\":").append(getClassesTransformed())
+            .append(",\"transformFailures\":").append(getTransformFailures())
+            .append(",\"instrumentedAccesses\":").append(getInstrumentedAccesses())
+            .append(",\"eliminatedAccesses\":").append(getEliminatedAccesses())
+            .append(",\"transformMicros\":");
+        appendMap(sb, getTransformTimeHistogram());
+        sb.append(",\"violations\":").append(getViolations()).append(",\"violationsByField\":");
+        appendMap(sb, getViolationsByField());
+        sb.append(",\"dropped\":").append(getDroppedEvents()).append('}');
+        return sb;
+    }
+
+    private static void appendMap(StringBuilder sb, Map<String, Long> map) {
+        sb.append('{');
+        boolean first = true;
+        for (Map.Entry<String, Long> entry : map.entrySet()) {
+            if (!first) {
+                sb.append(',');
+            }
+            first = false;
+            Json.quote(sb, entry.getKey()).append(':').append(entry.getValue());
+        }
+        sb.append('}');
+    }
+
+    private static LongAdder[] newAdders(int count) {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++) {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    private static double rate(int index) {
+        synchronized (rates) {
+            return rates[index];
+        }
+    }
+
+    @Override
+    public long getStaticReadChecks() {
+        return checks[STATIC_READ].sum();
+    }
+
+    @Override
+    public long getStaticWriteChecks() {
+        return checks[STATIC_WRITE].sum();
+    }
+
+    @Override
+    public long getInstanceReadChecks() {
+        return checks[INSTANCE_READ].sum();
+    }
+
+    @Override
+    public long getInstanceWriteChecks() {
+        return checks[INSTANCE_WRITE].sum();
+    }
+
+    @Override
+    public double getStaticReadChecksPerSecond() {
+        return rate(STATIC_READ);
+    }
+
+    @Override
+    public double getStaticWriteChecksPerSecond() {
+        return rate(STATIC_WRITE);
+    }
+
+    @Override
+    public double getInstanceReadChecksPerSecond() {
+        return rate(INSTANCE_READ);
+    }
+
+    @Override
+    public double getInstanceWriteChecksPerSecond() {
+        return rate(INSTANCE_WRITE);
+    }
+
+    @Override
+    public long getTrackedObjects() {
+        return AccessMonitor.trackedObjectCount();
+    }
+
+    @Override
+    public long getTrackedStaticFields() {
+        return AccessMonitor.trackedStaticFieldCount();
+    }
+
+    @Override
+    public long getEvictedObjects() {
+        return AccessMonitor.evictedObjectCount();
+    }
+
+    @Override
+    public long getRegisteredFields() {
+        return FieldRegistry.size();
+    }
+
+    @Override
+    public long getInternedStacks() {
+        return StackTable.stackCount();
+    }
+
+    @Override
+    public long getClassesTransformed() {
+        return transforms.sum();
+    }
+
+    @Override
+    public long getTransformFailures() {
+        return transformFailures.sum();
+    }
+
+    @Override
+    public long getInstrumentedAccesses() {
+        return instrumentedAccesses.sum();
+    }
+
+    @Override
+    public long getEliminatedAccesses() {
+        return eliminatedAccesses.sum();
+    }
+
+    @Override
+    public Map<String, Long> getTransformTimeHistogram() {
+        Map<String, Long> histogram = new LinkedHashMap<>();
+        for (int i = 0; i < HISTOGRAM_BUCKETS; i++) {
+            long count = transformTimes[i].sum();
+            if (count == 0) {
+                continue;
+            }
+            String bound = i == HISTOGRAM_BUCKETS - 1 ? "+Inf" : "<=" + (1L << i);
+            histogram.put(bound, count);
+        }
+        return histogram;
+    }
+
+    @Override
+    public long getViolations() {
+        return violations.sum();
+    }
+
+    @Override
+    public Map<String, Long> getViolationsByField() {
+        Map<String, Long> result = new TreeMap<>();
+        violationsByField.forEach((fieldId, count) -> {
+            FieldRegistry.FieldInfo field = FieldRegistry.get(fieldId);
+            result.put(field.getOwner() + "." + field.getName(), count.sum());
+        });
+        return result;
+    }
+
+    @Override
+    public long getDroppedEvents() {
+        return ViolationReporter.droppedCount();
+    }
+
+    @Override
+    public String violationFlameGraph() {
+        return FlameGraphSink.snapshot();
+    }
+}
@@ -0,0 +1,74 @@
+package com.threadsafe.agent;
+
+import java.util.Map;
+
+/**
+ * agent自身运行指标的JMX接口，注册为com.threadsafe:type=AgentMetrics。
+ * 累计值随时可读；每秒速率由后台线程按metrics.interval周期计算，取最近一个周期的值。
+ */
+public interface AgentMetricsMXBean {
+    long getStaticReadChecks();
+
+    long getStaticWriteChecks();
+
+    long getInstanceReadChecks();
+
+    long getInstanceWriteChecks();
+
+    double getStaticReadChecksPerSecond();
+
+    double getStaticWriteChecksPerSecond();
+
+    double getInstanceReadChecksPerSecond();
+
+    double getInstanceWriteChecksPerSecond();
+
+    /**
+     * 持有影子状态的存活对象数。
+     */
+    long getTrackedObjects();
+
+    /**
+     * 已分配状态的静态字段数。
+     */
+    long getTrackedStaticFields();
+
+    /**
+     * 因超出memory.maxObjects被淘汰的对象数。
+     */
+    long getEvictedObjects();
+
+    long getRegisteredFields();
+
+    long getInternedStacks();
+
+    long getClassesTransformed();
+
+    long getTransformFailures();
+
+    /**
+     * 插入了检查的字段访问指令数。
+     */
+    long getInstrumentedAccesses();
+
+    /**
+     * 插桩前静态分析判定无需检查而跳过的字段访问指令数。
+     */
+    long getEliminatedAccesses();
+
+    /**
+     * 类转换耗时直方图，key为耗时上限(微秒)。
+     */
+    Map<String, Long> getTransformTimeHistogram();
+
+    long getViolations();
+
+    Map<String, Long> getViolationsByField();
+
+    long getDroppedEvents();
+
+    /**
+     * 违规调用栈聚合成的火焰图JSON，flame=false时返回null。
+     */
+    String violationFlameGraph();
+}
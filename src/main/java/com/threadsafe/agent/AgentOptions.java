@@ -0,0 +1,111 @@
+package com.threadsafe.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * agent参数。
+ * 格式为以分号分隔的key=value，例如 packages=com.foo,com.bar;core=CONTRACT_WORKER*;config=/path/agent.properties。
+ * 不带等号的部分按监控包名处理，兼容原来只传包名的用法。
+ * config指定的properties文件中的配置项与命令行相同，命令行中的值优先。
+ */
+public final class AgentOptions {
+    public static final String PACKAGES = "packages";
+    public static final String CONFIG = "config";
+
+    private final Map<String, String> values;
+
+    private AgentOptions(Map<String, String> values) {
+        this.values = values;
+    }
+
+    public static AgentOptions parse(String agentArgs) {
+        Map<String, String> args = new HashMap<>();
+        if (agentArgs != null) {
+            for (String part : agentArgs.split(";")) {
+                part = part.trim();
+                if (part.isEmpty()) {
+                    continue;
+                }
+                int eq = part.indexOf('=');
+                if (eq < 0) {
+                    args.merge(PACKAGES, part, (a, b) -> a + "," + b);
+                } else {
+                    args.put(part.substring(0, eq).trim(), part.substring(eq + 1).trim());
+                }
+            }
+        }
+
+        Map<String, String> values = new HashMap<>();
+        String config = args.get(CONFIG);
+        if (config != null) {
+            values.putAll(load(config));
+        }
+        values.putAll(args);
+        return new AgentOptions(values);
+    }
+
+    private static Map<String, String> load(String file) {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(Paths.get(file))) {
+            properties.load(in);
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Failed to load agent config " + file + ": " + e.getMessage(), e);
+        }
+        Map<String, String> values = new HashMap<>();
+        for (String name : properties.stringPropertyNames()) {
+            values.put(name, properties.getProperty(name).trim());
+        }
+        return values;
+    }
+
+    public boolean has(String key) {
+        return values.containsKey(key);
+    }
+
+    public String get(String key, String defaultValue) {
+        String value = values.get(key);
+        return value == null || value.isEmpty() ? defaultValue : value;
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.get(key);
+        return value == null || value.isEmpty() ? defaultValue : Integer.parseInt(value);
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.get(key);
+        return value == null || value.isEmpty() ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    /**
+     * 以逗号分隔的列表，未配置时返回空列表。
+     */
+    public List<String> getList(String key) {
+        String value = values.get(key);
+        if (value == null || value.isEmpty()) {
+            return Collections.emptyList();
+        }
+        List<String> items = new ArrayList<>();
+        for (String item : value.split(",")) {
+            item = item.trim();
+            if (!item.isEmpty()) {
+                items.add(item);
+            }
+        }
+        return items;
+    }
+
+    @Override
+    public String toString() {
+        return values.toString();
+    }
+}
@@ -0,0 +1,469 @@
+package com.threadsafe.agent;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * 构建时插桩：用与agent相同的ASMTransformer/FieldAccessVisitor改写应用的jar或class目录，
+ * 插桩后的产物只需要agent jar在classpath上就能运行，不需要-javaagent，启动时也没有插桩开销：
+ * <pre>
+ * java -cp thread-monitor-agent.jar com.threadsafe.agent.AotInstrumenter [-a agent参数] [-j 并行度] [-cp 依赖classpath] -o 输出目录 &lt;jar或目录&gt;...
+ * </pre>
+ * 所有输入在一次运行中插桩，共用一套字段ID；每个输出都带有完整的META-INF/threadsafe/fields.idx(见AotRuntime)。
+ * 字段ID先按输入顺序单线程预先注册(类中声明的字段和引用的字段)，之后类在线程池中并行转换，
+ * 相同的输入总是得到相同的输出。输入中已有的索引先按原顺序注册，已插桩(@Instrumented)的类原样保留，
+ * 因此可以对同一个目录重复执行(例如增量编译之后)。jar的条目全部转换完后按原顺序写出，签名文件被去掉。
+ * 依赖classpath只用于计算栈帧时解析父类，不会被修改。
+ */
+public final class AotInstrumenter {
+    private static final Logger logger = LogManager.getLogger(AotInstrumenter.class);
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final Pattern SIGNATURE_FILE = Pattern.compile("META-INF/[^/]+\\.(SF|RSA|DSA|EC)", Pattern.CASE_INSENSITIVE);
+    private static final int[] ARRAY_LOADS = {
+        Opcodes.IALOAD, Opcodes.LALOAD, Opcodes.FALOAD, Opcodes.DALOAD,
+        Opcodes.AALOAD, Opcodes.BALOAD, Opcodes.CALOAD, Opcodes.SALOAD
+    };
+
+    private final ClassMatcher matcher;
+    private final ASMTransformer transformer = new ASMTransformer(true);
+    private final int parallelism;
+    private final List<Path> classpath;
+
+    /**
+     * @param agentArgs 与-javaagent相同格式的参数，其中packages/exclude/rules、detector、arrays、prepass影响插桩结果
+     * @param classpath 应用的依赖，用于计算栈帧
+     */
+    public AotInstrumenter(String agentArgs, int parallelism, List<Path> classpath) {
+        // 插桩工具自己的classpath上如果有索引，也不在这里启动检查
+        AotRuntime.disableAutoStart();
+        AgentOptions options = AgentOptions.parse(agentArgs);
+        if ("record".equals(options.get("mode", "check"))) {
+            // 记录模式的访问点ID每次运行重新分配
+            throw new IllegalArgumentException("mode=record is not supported for build-time instrumentation");
+        }
+        HappensBefore.configure(options);
+        ArrayMonitor.configure(options);
+        SafeAccessAnalyzer.setEnabled(options.getBoolean("prepass", true));
+        this.matcher = ClassMatcher.fromOptions(options, MonitorAgent.DEFAULT_PACKAGE);
+        this.parallelism = Math.max(1, parallelism);
+        this.classpath = classpath;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String agentArgs = "";
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        List<Path> classpath = new ArrayList<>();
+        Path outputDir = null;
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-a":
+                    agentArgs = args[++i];
+                    break;
+                case "-j":
+                    parallelism = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                case "-cp":
+                    for (String entry : args[++i].split(File.pathSeparator)) {
+                        if (!entry.isEmpty()) {
+                            classpath.add(Paths.get(entry));
+                        }
+                    }
+                    break;
+                case "-o":
+                    outputDir = Paths.get(args[++i]);
+                    break;
+                default:
+                    inputs.add(Paths.get(args[i]));
+            }
+        }
+        if (inputs.isEmpty() || outputDir == null) {
+            System.err.println("Usage: AotInstrumenter [-a agentArgs] [-j parallelism] [-cp classpath] -o outputDir <jar|dir>...");
+            System.exit(1);
+        }
+        List<Path> outputs = new ArrayList<>();
+        for (Path input : inputs) {
+            outputs.add(outputDir.resolve(input.getFileName()));
+        }
+        long start = System.nanoTime();
+        Summary summary = new AotInstrumenter(agentArgs, parallelism, classpath).instrument(inputs, outputs);
+        System.out.printf("Instrumented %d of %d classes in %d inputs (%d failed, %d fields), written to %s (%d ms)%n",
+            summary.instrumented, summary.classes, inputs.size(), summary.failed, summary.fields,
+            outputDir.toAbsolutePath(), (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * 插桩inputs中的每个jar或目录，写到outputs中对应的位置；输出与输入相同时原地改写。
+     */
+    public Summary instrument(List<Path> inputs, List<Path> outputs) throws IOException {
+        if (inputs.size() != outputs.size()) {
+            throw new IllegalArgumentException("inputs and outputs must have the same size");
+        }
+        Set<Path> distinct = new HashSet<>();
+        for (Path output : outputs) {
+            if (!distinct.add(output.toAbsolutePath().normalize())) {
+                throw new IllegalArgumentException("Duplicate output " + output);
+            }
+        }
+        String options = AotRuntime.bakedOptions();
+        for (Path input : inputs) {
+            preloadIndex(input, options);
+        }
+        if (ArrayMonitor.isEnabled()) {
+            for (int opcode : ARRAY_LOADS) {
+                ArrayMonitor.fieldId(opcode);
+            }
+        }
+        long failuresBefore = AgentMetrics.getInstance().getTransformFailures();
+        Summary summary = new Summary();
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try (URLClassLoader loader = new URLClassLoader(urls(inputs), ClassLoader.getPlatformClassLoader())) {
+            List<Artifact> artifacts = new ArrayList<>();
+            List<Entry> pending = new ArrayList<>();
+            for (int i = 0; i < inputs.size(); i++) {
+                Artifact artifact = new Artifact(inputs.get(i), outputs.get(i));
+                if (Files.isDirectory(artifact.input)) {
+                    scanDirectory(artifact, pending);
+                } else {
+                    scanJar(artifact, pending);
+                }
+                artifacts.add(artifact);
+            }
+            // 全部预先注册完再转换，转换时所有输入中的volatile字段都已知
+            for (Entry entry : pending) {
+                entry.transformed = executor.submit(() -> transformer.transform(loader, entry.original));
+            }
+            for (Artifact artifact : artifacts) {
+                artifact.await(summary);
+            }
+            // 所有类都转换完之后注册表才完整
+            byte[] index = AotRuntime.index(options);
+            for (Artifact artifact : artifacts) {
+                if (artifact.jar) {
+                    writeJar(artifact, index);
+                } else {
+                    writeDirectory(artifact, index);
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        summary.failed = AgentMetrics.getInstance().getTransformFailures() - failuresBefore;
+        summary.fields = FieldRegistry.size();
+        return summary;
+    }
+
+    /**
+     * 之前插桩过的输入中已有索引，先按原顺序注册，原样保留的已插桩类中的ID才能对得上。
+     */
+    private static void preloadIndex(Path input, String options) throws IOException {
+        if (Files.isDirectory(input)) {
+            Path index = input.resolve(AotRuntime.INDEX_RESOURCE);
+            if (Files.exists(index)) {
+                try (BufferedReader reader = Files.newBufferedReader(index, StandardCharsets.UTF_8)) {
+                    checkIndex(AotRuntime.load(reader, index.toString(), new ArrayList<>()), index.toString(), options);
+                }
+            }
+            return;
+        }
+        try (ZipFile zip = new ZipFile(input.toFile())) {
+            ZipEntry entry = zip.getEntry(AotRuntime.INDEX_RESOURCE);
+            if (entry != null) {
+                try (BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(zip.getInputStream(entry), StandardCharsets.UTF_8))) {
+                    String source = input + "!/" + AotRuntime.INDEX_RESOURCE;
+                    checkIndex(AotRuntime.load(reader, source, new ArrayList<>()), source, options);
+                }
+            }
+        }
+    }
+
+    private static void checkIndex(String indexOptions, String source, String options) {
+        if (indexOptions == null) {
+            throw new IllegalStateException(source + " conflicts with other inputs, instrument freshly compiled classes");
+        }
+        if (!indexOptions.equals(options)) {
+            throw new IllegalStateException(source + " was instrumented with " + indexOptions
+                + ", cannot add classes instrumented with " + options + "; instrument freshly compiled classes");
+        }
+    }
+
+    private void scanDirectory(Artifact artifact, List<Entry> pending) throws IOException {
+        List<Path> files;
+        try (Stream<Path> stream = Files.walk(artifact.input)) {
+            files = stream.filter(Files::isRegularFile).sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            String name = artifact.input.relativize(file).toString().replace(File.separatorChar, '/');
+            if (name.equals(AotRuntime.INDEX_RESOURCE)) {
+                continue;
+            }
+            Entry entry = new Entry(name, 0, ZipEntry.DEFLATED, null);
+            if (name.endsWith(".class")) {
+                entry.original = Files.readAllBytes(file);
+                prepare(entry, pending);
+            }
+            artifact.entries.add(entry);
+        }
+    }
+
+    private void scanJar(Artifact artifact, List<Entry> pending) throws IOException {
+        artifact.jar = true;
+        try (ZipFile zip = new ZipFile(artifact.input.toFile())) {
+            Enumeration<? extends ZipEntry> entries = zip.entries();
+            while (entries.hasMoreElements()) {
+                ZipEntry zipEntry = entries.nextElement();
+                String name = zipEntry.getName();
+                if (name.equals(AotRuntime.INDEX_RESOURCE)) {
+                    continue;
+                }
+                if (SIGNATURE_FILE.matcher(name).matches()) {
+                    // 插桩后签名不再有效
+                    artifact.signed = true;
+                    continue;
+                }
+                byte[] bytes = zipEntry.isDirectory() ? null : zip.getInputStream(zipEntry).readAllBytes();
+                Entry entry = new Entry(name, zipEntry.getTime(), zipEntry.getMethod(), bytes);
+                if (name.endsWith(".class")) {
+                    prepare(entry, pending);
+                }
+                artifact.entries.add(entry);
+            }
+        }
+        if (artifact.signed) {
+            logger.warn("Signature files removed from {}, instrumented classes are no longer signed", artifact.input);
+        }
+    }
+
+    private void prepare(Entry entry, List<Entry> pending) {
+        byte[] original = entry.original;
+        ClassReader reader;
+        try {
+            reader = new ClassReader(original);
+        } catch (RuntimeException e) {
+            logger.warn("Skipping malformed class file {}", entry.name);
+            return;
+        }
+        // 已插桩的类原样保留，其中的字段ID已经在预先加载的索引里
+        if (!matcher.matches(reader.getClassName()) || ASMTransformer.isInstrumented(reader)) {
+            return;
+        }
+        preRegister(reader);
+        pending.add(entry);
+    }
+
+    /**
+     * 按类中出现的顺序注册声明的字段和引用的字段，字段ID不依赖并行转换的完成顺序。
+     * 同时标记volatile字段，@RsmThreadSafe排除的代码中只插桩对volatile字段的访问，需要在转换前知道其他类的字段。
+     */
+    private static void preRegister(ClassReader reader) {
+        String className = reader.getClassName();
+        reader.accept(new ClassVisitor(Opcodes.ASM9) {
+            @Override
+            public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+                FieldRegistry.register(className, name);
+                if ((access & Opcodes.ACC_VOLATILE) != 0) {
+                    FieldRegistry.markVolatile(className, name);
+                }
+                return null;
+            }
+        }, ClassReader.SKIP_CODE | ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        char[] buffer = new char[reader.getMaxStringLength()];
+        for (int i = 1; i < reader.getItemCount(); i++) {
+            int offset = reader.getItem(i);
+            if (offset != 0 && reader.readByte(offset - 1) == CONSTANT_FIELDREF) {
+                String owner = reader.readClass(offset, buffer);
+                String name = reader.readUTF8(reader.getItem(reader.readUnsignedShort(offset + 2)), buffer);
+                FieldRegistry.register(owner, name);
+            }
+        }
+    }
+
+    private static void writeJar(Artifact artifact, byte[] index) throws IOException {
+        Path target = artifact.output.toAbsolutePath();
+        Files.createDirectories(target.getParent());
+        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+        try {
+            try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(temp))) {
+                // 索引的时间取最新的条目，相同的输入得到完全相同的jar
+                long latest = 0;
+                for (Entry entry : artifact.entries) {
+                    writeEntry(out, entry.name, entry.time, entry.method, entry.result());
+                    latest = Math.max(latest, entry.time);
+                }
+                writeEntry(out, AotRuntime.INDEX_RESOURCE, latest, ZipEntry.DEFLATED, index);
+            }
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    private static void writeEntry(ZipOutputStream out, String name, long time, int method, byte[] data) throws IOException {
+        ZipEntry entry = new ZipEntry(name);
+        if (time > 0) {
+            entry.setTime(time);
+        }
+        if (method == ZipEntry.STORED) {
+            // 不压缩的条目(例如Spring Boot中嵌套的jar)需要预先给出大小和CRC
+            byte[] content = data == null ? new byte[0] : data;
+            CRC32 crc = new CRC32();
+            crc.update(content);
+            entry.setMethod(ZipEntry.STORED);
+            entry.setSize(content.length);
+            entry.setCompressedSize(content.length);
+            entry.setCrc(crc.getValue());
+        }
+        out.putNextEntry(entry);
+        if (data != null) {
+            out.write(data);
+        }
+        out.closeEntry();
+    }
+
+    private static void writeDirectory(Artifact artifact, byte[] index) throws IOException {
+        boolean inPlace = artifact.input.toAbsolutePath().normalize().equals(artifact.output.toAbsolutePath().normalize());
+        for (Entry entry : artifact.entries) {
+            Path target = artifact.output.resolve(entry.name);
+            byte[] result = entry.result();
+            if (inPlace && result == entry.original) {
+                continue;
+            }
+            Files.createDirectories(target.getParent());
+            if (result != null) {
+                Files.write(target, result);
+            } else {
+                Files.copy(artifact.input.resolve(entry.name), target, StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Path target = artifact.output.resolve(AotRuntime.INDEX_RESOURCE);
+        Files.createDirectories(target.getParent());
+        Files.write(target, index);
+    }
+
+    private URL[] urls(List<Path> inputs) throws MalformedURLException {
+        List<URL> urls = new ArrayList<>();
+        for (Path path : inputs) {
+            urls.add(path.toUri().toURL());
+        }
+        for (Path path : classpath) {
+            urls.add(path.toUri().toURL());
+        }
+        return urls.toArray(new URL[0]);
+    }
+
+    /**
+     * 一个输入jar或目录。目录中非class文件的内容不读入内存，写出时直接复制。
+     */
+    private static final class Artifact {
+        final Path input;
+        final Path output;
+        final List<Entry> entries = new ArrayList<>();
+        boolean jar;
+        boolean signed;
+
+        Artifact(Path input, Path output) {
+            this.input = input;
+            this.output = output;
+        }
+
+        void await(Summary summary) throws IOException {
+            for (Entry entry : entries) {
+                if (entry.transformed == null) {
+                    continue;
+                }
+                summary.classes++;
+                try {
+                    entry.result = entry.transformed.get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while instrumenting " + input, e);
+                } catch (ExecutionException e) {
+                    throw new IOException("Failed to instrument " + entry.name + " in " + input, e.getCause());
+                }
+                if (entry.result != entry.original) {
+                    summary.instrumented++;
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        final String name;
+        final long time;
+        final int method;
+        // 原始内容，目录中的非class文件为null
+        byte[] original;
+        Future<byte[]> transformed;
+        byte[] result;
+
+        Entry(String name, long time, int method, byte[] original) {
+            this.name = name;
+            this.time = time;
+            this.method = method;
+            this.original = original;
+        }
+
+        byte[] result() {
+            return result != null ? result : original;
+        }
+    }
+
+    /**
+     * 插桩结果统计。转换失败的类原样输出，与agent的行为一致。
+     */
+    public static final class Summary {
+        int classes;
+        int instrumented;
+        long failed;
+        int fields;
+
+        public int getClasses() {
+            return classes;
+        }
+
+        public int getInstrumented() {
+            return instrumented;
+        }
+
+        public long getFailed() {
+            return failed;
+        }
+
+        public int getFields() {
+            return fields;
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package com.threadsafe.agent;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 构建时插桩(AotInstrumenter)的运行时部分。
+ * 插桩代码里直接写着字段ID，字段注册表按ID顺序保存在插桩产物的META-INF/threadsafe/fields.idx中，
+ * 每行为owner#name，后面可以带制表符和标志(v为volatile字段，i为@IgnoreStaticInit字段)；
+ * 以#options开头的一行是影响插桩结果的配置。
+ * <p>
+ * FieldRegistry初始化时按原顺序重新注册classpath上所有索引中的字段，保证ID与字节码一致；
+ * 插桩后的类在静态初始化开头调用FieldRegistry.registerIndexes，由其他类加载器(例如容器中的应用加载器)定义的类
+ * 在第一次执行之前注册该加载器上的索引，每个加载器、每个索引只加载一次。
+ * 多个索引必须来自同一次插桩(或者是同一次插桩的前缀)并且插桩配置相同，否则ID冲突，冲突的索引不注册，
+ * live仍然扩到覆盖其中最大的ID(插桩点不会越界)，检查被永久关闭，宁可不检查也不把访问记到别的字段上。
+ * 没有通过-javaagent安装agent时在这里启动检查用到的组件，配置取系统属性threadsafe.options，
+ * 其中detector、arrays以插桩时为准；agent启动时同样以插桩时的配置为准(见agentOptions)。
+ * 这条路径不会加载ASM和java.lang.instrument。
+ */
+final class AotRuntime {
+    private static final Logger logger = LogManager.getLogger(AotRuntime.class);
+    static final String INDEX_RESOURCE = "META-INF/threadsafe/fields.idx";
+    static final String OPTIONS_PROPERTY = "threadsafe.options";
+    private static final String OPTIONS_PREFIX = "#options ";
+    private static final char FLAG_VOLATILE = 'v';
+    private static final char FLAG_IGNORE_STATIC_INIT = 'i';
+
+    // agent或插桩工具自己负责配置时为false
+    private static volatile boolean autoStart = true;
+    private static boolean started;
+    // 以下字段由AotRuntime.class保护
+    private static final Map<ClassLoader, Boolean> scannedLoaders = new WeakHashMap<>();
+    private static final Set<String> loadedIndexes = new HashSet<>();
+    // 第一个索引中的插桩配置，之后加载的索引必须相同
+    private static String baked;
+    // agent已经按自己的配置启动
+    private static boolean agentConfigured;
+
+    private AotRuntime() {
+    }
+
+    /**
+     * 由agent和AotInstrumenter在FieldRegistry初始化之前调用。
+     */
+    static void disableAutoStart() {
+        autoStart = false;
+    }
+
+    /**
+     * 检查路径上各组件的配置，agent启动和无agent启动共用。
+     */
+    static void configure(AgentOptions options) {
+        ThreadRoles.configure(options.getList("core"));
+        ThreadRoles.configureInheritance(options.get("core.inherit", "virtual"));
+        StackCapture.configure(options);
+        StackTable.setLimits(options.getInt("memory.maxFrames", 0), options.getInt("memory.maxStacks", 0));
+        AccessMonitor.setMaxTrackedObjects(options.getInt("memory.maxObjects", 0));
+        TraceRecorder.configure(options);
+        ViolationReporter.configure(options);
+        Sampler.configure(options);
+        HappensBefore.configure(options);
+        ArrayMonitor.configure(options);
+        AgentMetrics.configure(options);
+    }
+
+    /**
+     * 影响插桩结果的配置，写入索引，运行时不能被覆盖。
+     */
+    static String bakedOptions() {
+        return "mode=check;detector=" + (HappensBefore.isEnabled() ? "hb" : "basic") + ";arrays=" + ArrayMonitor.modeName();
+    }
+
+    /**
+     * agent启动时的配置：classpath上有构建时插桩的类时，影响插桩结果的配置以插桩时为准。
+     */
+    static AgentOptions agentOptions(String agentArgs) {
+        AgentOptions options = AgentOptions.parse(agentArgs);
+        // 触发FieldRegistry初始化，加载classpath上的索引
+        FieldRegistry.size();
+        String indexed;
+        synchronized (AotRuntime.class) {
+            indexed = baked;
+            agentConfigured = true;
+        }
+        if (indexed == null) {
+            return options;
+        }
+        AgentOptions merged = AgentOptions.parse((agentArgs == null ? "" : agentArgs) + ";" + indexed);
+        for (String key : new String[] {"mode", "detector", "arrays"}) {
+            if (options.has(key) && !options.get(key, "").equals(merged.get(key, ""))) {
+                logger.warn("Agent option {}={} is overridden by pre-instrumented classes ({})", key, options.get(key, ""), indexed);
+            }
+        }
+        return merged;
+    }
+
+    /**
+     * 加载一个类加载器上的索引，已经加载过的加载器直接返回。
+     */
+    static synchronized void loadIndexes(ClassLoader loader) {
+        if (scannedLoaders.put(loader, Boolean.TRUE) != null) {
+            return;
+        }
+        List<URL> urls;
+        try {
+            urls = Collections.list(loader == null
+                ? ClassLoader.getSystemResources(INDEX_RESOURCE) : loader.getResources(INDEX_RESOURCE));
+        } catch (IOException e) {
+            logger.error("Failed to look up {}: {}", INDEX_RESOURCE, e.getMessage());
+            return;
+        }
+        int loaded = 0;
+        boolean conflict = false;
+        List<String[]> ignoreStaticInit = new ArrayList<>();
+        for (URL url : urls) {
+            // 子加载器能看到父加载器的索引，同一个索引只注册一次
+            if (!loadedIndexes.add(url.toString())) {
+                continue;
+            }
+            loaded++;
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(url.openStream(), StandardCharsets.UTF_8))) {
+                String options = load(reader, url.toString(), ignoreStaticInit);
+                if (options == null) {
+                    conflict = true;
+                    continue;
+                }
+                // agent已经按自己的配置启动后才出现的索引，与运行时的配置比较
+                String expected = baked != null ? baked : agentConfigured ? bakedOptions() : null;
+                if (expected == null) {
+                    baked = options;
+                } else if (!expected.equals(options)) {
+                    logger.error("{} was instrumented with {}, but checks run with {}", url, options, expected);
+                    conflict = true;
+                }
+            } catch (IOException e) {
+                logger.error("Failed to read {}: {}", url, e.getMessage());
+            }
+        }
+        if (loaded == 0) {
+            return;
+        }
+        logger.info("Loaded {} pre-instrumented fields from {} index(es)", FieldRegistry.size(), loaded);
+        if (autoStart && baked != null) {
+            start(baked);
+        }
+        if (conflict) {
+            // 冲突索引对应的类会把访问记到别的字段上，宁可不检查也不误报
+            FieldRegistry.block();
+            logger.error("Checks are disabled because pre-instrumented field ids or options conflict");
+        }
+        for (String[] field : ignoreStaticInit) {
+            ViolationReporter.annotate("IgnoreStaticInit", "field", field[0], field[1]);
+        }
+    }
+
+    /**
+     * 按顺序注册一个索引中的字段，返回其中的插桩配置；与已注册的ID冲突时返回null，冲突之后的字段不再注册。
+     * 无论是否冲突，live都扩到覆盖索引中的所有ID。
+     */
+    static String load(BufferedReader reader, String source, List<String[]> ignoreStaticInit) throws IOException {
+        String options = "";
+        int expected = 0;
+        boolean conflict = false;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            if (line.startsWith(OPTIONS_PREFIX)) {
+                options = line.substring(OPTIONS_PREFIX.length());
+                continue;
+            }
+            if (line.isEmpty() || line.startsWith("#")) {
+                continue;
+            }
+            int tab = line.indexOf('\t');
+            String entry = tab < 0 ? line : line.substring(0, tab);
+            String flags = tab < 0 ? "" : line.substring(tab + 1);
+            int separator = entry.indexOf('#');
+            if (separator < 0) {
+                logger.error("Malformed line in {}: {}", source, line);
+                conflict = true;
+                expected++;
+                continue;
+            }
+            String owner = entry.substring(0, separator);
+            String name = entry.substring(separator + 1);
+            if (conflict) {
+                expected++;
+                continue;
+            }
+            if (FieldRegistry.register(owner, name) != expected) {
+                logger.error("Field ids in {} conflict with another index at {}, instrument all jars in one run", source, entry);
+                conflict = true;
+                expected++;
+                continue;
+            }
+            expected++;
+            if (flags.indexOf(FLAG_VOLATILE) >= 0) {
+                FieldRegistry.markVolatile(owner, name);
+            }
+            if (flags.indexOf(FLAG_IGNORE_STATIC_INIT) >= 0) {
+                FieldRegistry.markIgnoreStaticInit(owner, name);
+                ignoreStaticInit.add(new String[] {owner, name});
+            }
+        }
+        FieldRegistry.ensureCapacity(expected);
+        return conflict ? null : options;
+    }
+
+    /**
+     * 当前注册表的索引内容。
+     */
+    static byte[] index(String options) {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append(OPTIONS_PREFIX).append(options).append('\n');
+        int size = FieldRegistry.size();
+        for (int id = 0; id < size; id++) {
+            FieldRegistry.FieldInfo field = FieldRegistry.get(id);
+            sb.append(field.owner).append('#').append(field.name);
+            if (field.isVolatile || field.ignoreStaticInit) {
+                sb.append('\t');
+                if (field.isVolatile) {
+                    sb.append(FLAG_VOLATILE);
+                }
+                if (field.ignoreStaticInit) {
+                    sb.append(FLAG_IGNORE_STATIC_INIT);
+                }
+            }
+            sb.append('\n');
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static synchronized void start(String baked) {
+        if (started) {
+            return;
+        }
+        started = true;
+        // 后面的值优先，插桩时决定的配置放在最后
+        AgentOptions options = AgentOptions.parse(System.getProperty(OPTIONS_PROPERTY, "") + ";" + baked);
+        logger.info("Starting checks for pre-instrumented classes without agent: {}", options);
+        configure(options);
+        FieldRegistry.setEnabled(options.getBoolean("enabled", true));
+    }
+}
@@ -0,0 +1,364 @@
+package com.threadsafe.agent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.lang.reflect.Array;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * 数组元素访问(xALOAD/xASTORE)的检查。
+ * 规则与实例字段相同，检查的粒度可配置：整个数组一个状态(whole)、每arrays.stripe个相邻元素一个状态(stripe)、
+ * 每个元素一个状态(element)。插桩时按指令的元素类型注册一个伪字段(如[I)，用于快速路径开关、采样和上报。
+ * <p>
+ * 数组的检查状态不是每个槽一个FieldState对象，而是按槽分页的紧凑数组：每槽一个int的所有权(线程和角色，不含epoch)，
+ * 写入现场和写入epoch只在页内第一次有非核心线程取得所有权时才分配。页在第一次写入该范围时才分配，
+ * 只读或只写了一小部分的大数组只占用很少的内存；只由核心线程写入的数组每个元素4字节。
+ */
+public final class ArrayMonitor {
+    private static final Logger logger = LogManager.getLogger(ArrayMonitor.class);
+
+    static final int MODE_NONE = 0;
+    static final int MODE_WHOLE = 1;
+    static final int MODE_STRIPE = 2;
+    static final int MODE_ELEMENT = 3;
+    private static final String[] MODE_NAMES = {"none", "whole", "stripe", "element"};
+
+    // 伪字段名，owner为数组类型描述符
+    static final String ELEMENT_NAME = "[]";
+
+    // 在插桩开始之前配置，之后只读
+    private static volatile int mode = MODE_NONE;
+    private static int stripeShift = 6;
+
+    private static final ShadowTable<ArrayShadow> shadows = new ShadowTable<>(ArrayShadow::new);
+
+    private ArrayMonitor() {
+    }
+
+    /**
+     * 配置项：arrays 数组元素检查的粒度(none/whole/stripe/element)，arrays.stripe stripe粒度下每段的元素数(向上取整为2的幂)。
+     */
+    static synchronized void configure(AgentOptions options) {
+        String name = options.get("arrays", "none");
+        int configured = MODE_NONE;
+        for (int i = 0; i < MODE_NAMES.length; i++) {
+            if (MODE_NAMES[i].equals(name)) {
+                configured = i;
+            }
+        }
+        if (configured == MODE_NONE && !"none".equals(name)) {
+            logger.warn("Unknown arrays mode {}, array accesses are not checked", name);
+        }
+        if (configured != MODE_NONE && TraceRecorder.isEnabled()) {
+            // 记录格式中没有元素下标
+            logger.warn("arrays={} is not supported in record mode", name);
+            configured = MODE_NONE;
+        }
+        int stripe = Math.max(1, options.getInt("arrays.stripe", 64));
+        stripeShift = 32 - Integer.numberOfLeadingZeros(stripe - 1);
+        mode = configured;
+        if (configured != MODE_NONE) {
+            logger.info("Array element checks enabled: {}{}", name,
+                configured == MODE_STRIPE ? " (" + (1 << stripeShift) + " elements per stripe)" : "");
+        }
+    }
+
+    public static boolean isEnabled() {
+        return mode != MODE_NONE;
+    }
+
+    static String modeName() {
+        return MODE_NAMES[mode];
+    }
+
+    /**
+     * 插桩时为数组指令注册伪字段，同一元素类型的读写指令共用一个ID。
+     */
+    static int fieldId(int opcode) {
+        String descriptor;
+        switch (opcode) {
+            case Opcodes.IALOAD: case Opcodes.IASTORE:
+                descriptor = "[I";
+                break;
+            case Opcodes.LALOAD: case Opcodes.LASTORE:
+                descriptor = "[J";
+                break;
+            case Opcodes.FALOAD: case Opcodes.FASTORE:
+                descriptor = "[F";
+                break;
+            case Opcodes.DALOAD: case Opcodes.DASTORE:
+                descriptor = "[D";
+                break;
+            case Opcodes.AALOAD: case Opcodes.AASTORE:
+                descriptor = "[Ljava/lang/Object;";
+                break;
+            case Opcodes.BALOAD: case Opcodes.BASTORE:
+                // byte[]和boolean[]共用BALOAD/BASTORE
+                descriptor = "[B";
+                break;
+            case Opcodes.CALOAD: case Opcodes.CASTORE:
+                descriptor = "[C";
+                break;
+            case Opcodes.SALOAD: case Opcodes.SASTORE:
+                descriptor = "[S";
+                break;
+            default:
+                throw new IllegalArgumentException("Not an array access opcode: " + opcode);
+        }
+        return FieldRegistry.register(descriptor, ELEMENT_NAME);
+    }
+
+    /**
+     * 上报时槽的显示名：[下标]、[起始..结束]或[*]。
+     */
+    static String slotName(int slot) {
+        switch (mode) {
+            case MODE_ELEMENT:
+                return "[" + slot + "]";
+            case MODE_STRIPE:
+                int first = slot << stripeShift;
+                return "[" + first + ".." + (first + (1 << stripeShift) - 1) + "]";
+            default:
+                return "[*]";
+        }
+    }
+
+    private static int slot(int index) {
+        switch (mode) {
+            case MODE_ELEMENT:
+                return index;
+            case MODE_STRIPE:
+                return index >>> stripeShift;
+            default:
+                return 0;
+        }
+    }
+
+    private static int slotCount(int length) {
+        switch (mode) {
+            case MODE_ELEMENT:
+                return length;
+            case MODE_STRIPE:
+                return (int) (((long) length + (1 << stripeShift) - 1) >>> stripeShift);
+            default:
+                return 1;
+        }
+    }
+
+    /**
+     * 插桩代码调用的入口，参数为数组、下标、伪字段ID和是否是读操作。
+     */
+    public static void checkAccess(Object array, int index, int fieldId, boolean isRead) {
+        if (!Sampler.active) {
+            doCheckAccess(array, index, fieldId, isRead);
+            return;
+        }
+        // 与字段相同，只对读取采样
+        int decision = isRead ? Sampler.decide(fieldId) : Sampler.decideWrite();
+        if (decision == Sampler.CHECK) {
+            doCheckAccess(array, index, fieldId, isRead);
+        } else if (decision == Sampler.TIMED) {
+            long start = System.nanoTime();
+            doCheckAccess(array, index, fieldId, isRead);
+            Sampler.recordTime(System.nanoTime() - start);
+        }
+    }
+
+    private static void doCheckAccess(Object array, int index, int fieldId, boolean isRead) {
+        // 空数组引用和越界下标交给原来的指令抛出异常
+        if (array == null || index < 0) {
+            return;
+        }
+        if (AgentMetrics.enabled) {
+            AgentMetrics.onCheck(false, isRead);
+        }
+        int slot = slot(index);
+        Thread thread = Thread.currentThread();
+        if (isRead) {
+            // 没有写入记录的数组和范围读取时无需检查
+            ArrayShadow shadow = shadows.peek(array);
+            ArrayShadow.Page page = shadow == null ? null : shadow.peek(slot);
+            if (page == null) {
+                return;
+            }
+            int offset = slot & ArrayShadow.PAGE_MASK;
+            if (offset >= page.size() || page.isReported(offset)) {
+                return;
+            }
+            AccessMonitor.WriteInfo writeInfo = page.write(offset);
+            if (writeInfo != null && ThreadRoles.isCore(thread)
+                    && !(HappensBefore.enabled && HappensBefore.isOrdered(page.writeEpoch(offset)))) {
+                if (page.markReported(offset)) {
+                    AccessMonitor.reportViolation(thread, fieldId, array, slot, writeInfo);
+                }
+            }
+            return;
+        }
+        int length = Array.getLength(array);
+        if (index >= length) {
+            return;
+        }
+        ArrayShadow.Page page = shadows.get(array).page(slot, slotCount(length));
+        // 伪字段没有@IgnoreStaticInit
+        WriteRecorder.recordWrite(thread, fieldId, false, page, slot & ArrayShadow.PAGE_MASK);
+    }
+
+    static void clear() {
+        shadows.clear();
+    }
+
+    static void setMaxTrackedArrays(int maxArrays) {
+        shadows.setMaxSize(maxArrays);
+    }
+
+    /**
+     * 一个数组的检查状态，槽按PAGE_SIZE分页，页在第一次写入时分配。
+     */
+    static final class ArrayShadow {
+        static final int PAGE_SHIFT = 6;
+        static final int PAGE_SIZE = 1 << PAGE_SHIFT;
+        static final int PAGE_MASK = PAGE_SIZE - 1;
+        private static final VarHandle PAGES = MethodHandles.arrayElementVarHandle(Page[].class);
+
+        private volatile Page[] pages;
+
+        Page peek(int slot) {
+            Page[] current = pages;
+            int index = slot >>> PAGE_SHIFT;
+            return current == null || index >= current.length ? null : (Page) PAGES.getAcquire(current, index);
+        }
+
+        Page page(int slot, int slotCount) {
+            Page[] current = pages;
+            if (current == null) {
+                current = init(slotCount);
+            }
+            int index = slot >>> PAGE_SHIFT;
+            Page page = (Page) PAGES.getAcquire(current, index);
+            if (page != null) {
+                return page;
+            }
+            // 最后一页只分配到实际的槽数，整个数组一个槽时每个数组只有一个长度为1的页
+            int size = Math.min(PAGE_SIZE, slotCount - (index << PAGE_SHIFT));
+            Page created = new Page(size);
+            Page witness = (Page) PAGES.compareAndExchangeRelease(current, index, (Page) null, created);
+            return witness == null ? created : witness;
+        }
+
+        private synchronized Page[] init(int slotCount) {
+            Page[] current = pages;
+            if (current == null) {
+                current = new Page[(slotCount + PAGE_MASK) >>> PAGE_SHIFT];
+                pages = current;
+            }
+            return current;
+        }
+
+        /**
+         * 一页槽的状态。owners每槽为ownerId<<1|核心线程位，对外按FieldState.owner的格式读写，epoch恒为0；
+         * writes为最近一次非核心线程取得所有权时的写入现场，writeEpochs只在happens-before检测开启时分配，
+         * 两者都在页内第一次有非核心线程取得所有权时分配。
+         */
+        static final class Page implements WriteRecorder.Slots {
+            private static final VarHandle INTS = MethodHandles.arrayElementVarHandle(int[].class);
+            private static final VarHandle LONGS = MethodHandles.arrayElementVarHandle(long[].class);
+            private static final VarHandle WRITES =
+                MethodHandles.arrayElementVarHandle(AccessMonitor.WriteInfo[].class);
+            private static final VarHandle REPORTED;
+
+            static {
+                try {
+                    REPORTED = MethodHandles.lookup().findVarHandle(Page.class, "reported", long.class);
+                } catch (ReflectiveOperationException e) {
+                    throw new ExceptionInInitializerError(e);
+                }
+            }
+
+            private final int[] owners;
+            private volatile AccessMonitor.WriteInfo[] writes;
+            private volatile long[] writeEpochs;
+            // 已上报的槽，每槽一位
+            private volatile long reported;
+
+            Page(int size) {
+                owners = new int[size];
+            }
+
+            int size() {
+                return owners.length;
+            }
+
+            @Override
+            public long owner(int offset) {
+                int packed = (int) INTS.getVolatile(owners, offset);
+                return FieldState.pack(packed >>> 1, (packed & 1) != 0, 0);
+            }
+
+            @Override
+            public boolean casOwner(int offset, long expected, long update) {
+                return INTS.compareAndSet(owners, offset, compact(expected), compact(update));
+            }
+
+            private static int compact(long word) {
+                return FieldState.ownerThreadId(word) << 1 | (FieldState.ownerIsCore(word) ? 1 : 0);
+            }
+
+            @Override
+            public AccessMonitor.WriteInfo write(int offset) {
+                AccessMonitor.WriteInfo[] current = writes;
+                return current == null ? null : (AccessMonitor.WriteInfo) WRITES.getAcquire(current, offset);
+            }
+
+            @Override
+            public void setWrite(int offset, AccessMonitor.WriteInfo write) {
+                WRITES.setRelease(nonCoreWrites(), offset, write);
+            }
+
+            long writeEpoch(int offset) {
+                long[] current = writeEpochs;
+                return current == null ? 0 : (long) LONGS.getAcquire(current, offset);
+            }
+
+            @Override
+            public void setWriteEpoch(int offset, long epoch) {
+                nonCoreWrites();
+                long[] current = writeEpochs;
+                if (current != null && (long) LONGS.getOpaque(current, offset) != epoch) {
+                    LONGS.setRelease(current, offset, epoch);
+                }
+            }
+
+            private AccessMonitor.WriteInfo[] nonCoreWrites() {
+                AccessMonitor.WriteInfo[] current = writes;
+                return current != null ? current : allocateWrites();
+            }
+
+            private synchronized AccessMonitor.WriteInfo[] allocateWrites() {
+                AccessMonitor.WriteInfo[] current = writes;
+                if (current == null) {
+                    // writeEpochs先于writes发布，读到writes的线程一定能读到writeEpochs
+                    if (HappensBefore.enabled) {
+                        writeEpochs = new long[owners.length];
+                    }
+                    current = new AccessMonitor.WriteInfo[owners.length];
+                    writes = current;
+                }
+                return current;
+            }
+
+            boolean isReported(int offset) {
+                return (reported & (1L << offset)) != 0;
+            }
+
+            /**
+             * 标记槽已上报，返回是否由本次调用标记(多个核心线程同时发现时只上报一次)。
+             */
+            boolean markReported(int offset) {
+                long bit = 1L << offset;
+                return ((long) REPORTED.getAndBitwiseOr(this, bit) & bit) == 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.threadsafe.agent;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 转换线程之外执行文件写入(类文件dump、持久化缓存)的后台线程。
+ * 类加载线程只把任务放入有界队列，队列满时丢弃并计数，不会阻塞类加载；进程退出时写完剩余任务。
+ */
+final class BackgroundWriter {
+    private static final Logger logger = LogManager.getLogger(BackgroundWriter.class);
+    private static final int QUEUE_CAPACITY = 4096;
+
+    private static final BlockingQueue<Runnable> tasks = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile Thread worker;
+    // 退出时的drain和后台线程可能同时执行任务，任务之间需要串行
+    private static final Object runLock = new Object();
+
+    private BackgroundWriter() {
+    }
+
+    static void submit(Runnable task) {
+        if (!tasks.offer(task)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (worker == null) {
+            start();
+        }
+    }
+
+    static long droppedCount() {
+        return dropped.get();
+    }
+
+    private static synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        Thread thread = new Thread(BackgroundWriter::runLoop, "threadsafe-background-writer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(BackgroundWriter::drain, "threadsafe-background-flush"));
+        worker = thread;
+    }
+
+    private static void runLoop() {
+        while (true) {
+            try {
+                Runnable task = tasks.poll(1, TimeUnit.SECONDS);
+                if (task != null) {
+                    run(task);
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    private static void drain() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            run(task);
+        }
+    }
+
+    private static void run(Runnable task) {
+        synchronized (runLock) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.error("Background write failed: {}", e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,300 @@
+package com.threadsafe.agent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 决定哪些类需要插桩，每个类加载时都会调用一次，匹配过程不分配对象。
+ * 规则按内部类名(com/foo/Bar)编译成字符前缀树：
+ * 包规则匹配包本身、子包以及其中的类和内部类；带*的规则按通配符匹配，*不跨越'/'，**匹配任意字符，
+ * 通配规则挂在其字面前缀对应的节点上，只有走到该节点时才需要尝试。
+ * 多条规则同时命中时，匹配长度(字面前缀长度)最长的规则生效，长度相同时排除优先。
+ * 类加载器规则按加载器的类名(启动类加载器为bootstrap)做同样的匹配，只配置了排除规则时其余加载器都包含。
+ */
+final class ClassMatcher {
+    private static final Logger logger = LogManager.getLogger(ClassMatcher.class);
+    static final String BOOTSTRAP_LOADER = "bootstrap";
+    // agent自身的类和示例中排除的包永远不插桩
+    private static final String[] BUILTIN_EXCLUDES = {"com.threadsafe.agent", "com.example.excluded"};
+
+    private final Trie classes = new Trie();
+    private final Trie loaders = new Trie();
+    private final List<String> includes = new ArrayList<>();
+    private final boolean hasLoaderIncludes;
+    // 同一个加载器类会反复出现，缓存其匹配结果
+    private final Map<Class<?>, Boolean> loaderResults = new ConcurrentHashMap<>();
+
+    private ClassMatcher(List<String> includes, List<String> excludes,
+                         List<String> loaderIncludes, List<String> loaderExcludes) {
+        for (String rule : includes) {
+            classes.add(rule, false);
+            this.includes.add(rule.replace('/', '.'));
+        }
+        for (String rule : BUILTIN_EXCLUDES) {
+            classes.add(rule, true);
+        }
+        for (String rule : excludes) {
+            classes.add(rule, true);
+        }
+        for (String rule : loaderIncludes) {
+            loaders.add(rule, false);
+        }
+        for (String rule : loaderExcludes) {
+            loaders.add(rule, true);
+        }
+        hasLoaderIncludes = !loaderIncludes.isEmpty();
+    }
+
+    /**
+     * 只包含给定的包，保留默认的类加载器规则。
+     */
+    static ClassMatcher forPackages(List<String> packages) {
+        return new ClassMatcher(packages, new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+    }
+
+    /**
+     * 配置项：packages(或不带=的参数) 包含的包，exclude 排除的包，rules 规则文件，
+     * loader.include / loader.exclude 包含/排除的类加载器。多个值用逗号分隔。
+     * 规则文件每行一条，#开头为注释，!或-开头为排除，loader:开头为类加载器规则。
+     */
+    static ClassMatcher fromOptions(AgentOptions options, String defaultPackage) {
+        List<String> includes = new ArrayList<>(options.getList(AgentOptions.PACKAGES));
+        List<String> excludes = new ArrayList<>(options.getList("exclude"));
+        List<String> loaderIncludes = new ArrayList<>(options.getList("loader.include"));
+        List<String> loaderExcludes = new ArrayList<>(options.getList("loader.exclude"));
+        String rules = options.get("rules", "none");
+        if (!"none".equals(rules)) {
+            try {
+                for (String line : Files.readAllLines(Paths.get(rules), StandardCharsets.UTF_8)) {
+                    line = line.trim();
+                    if (line.isEmpty() || line.startsWith("#")) {
+                        continue;
+                    }
+                    boolean exclude = line.startsWith("!") || line.startsWith("-");
+                    if (exclude) {
+                        line = line.substring(1).trim();
+                    }
+                    boolean loader = line.startsWith("loader:");
+                    if (loader) {
+                        line = line.substring("loader:".length()).trim();
+                    }
+                    List<String> target = loader ? (exclude ? loaderExcludes : loaderIncludes)
+                        : (exclude ? excludes : includes);
+                    target.add(line);
+                }
+            } catch (IOException e) {
+                logger.error("Failed to read rules file {}: {}", rules, e.getMessage());
+            }
+        }
+        if (includes.isEmpty()) {
+            includes.add(defaultPackage);
+        }
+        return new ClassMatcher(includes, excludes, loaderIncludes, loaderExcludes);
+    }
+
+    /**
+     * @param className 内部类名，如com/foo/Bar
+     */
+    boolean matches(String className) {
+        return classes.match(className) == Trie.INCLUDE;
+    }
+
+    boolean matches(ClassLoader loader, String className) {
+        return className != null && matches(className) && matchesLoader(loader);
+    }
+
+    boolean matches(Class<?> clazz) {
+        return matches(clazz.getClassLoader(), clazz.getName().replace('.', '/'));
+    }
+
+    boolean matchesLoader(ClassLoader loader) {
+        if (loaders.isEmpty()) {
+            return true;
+        }
+        if (loader == null) {
+            return matchLoaderName(BOOTSTRAP_LOADER);
+        }
+        Class<?> type = loader.getClass();
+        Boolean result = loaderResults.get(type);
+        if (result == null) {
+            result = matchLoaderName(type.getName().replace('.', '/'));
+            loaderResults.put(type, result);
+        }
+        return result;
+    }
+
+    private boolean matchLoaderName(String name) {
+        int result = loaders.match(name);
+        return result == Trie.INCLUDE || (result == Trie.NONE && !hasLoaderIncludes);
+    }
+
+    /**
+     * 包含规则，用于日志和兼容旧接口，包名以'.'分隔。
+     */
+    List<String> getIncludes() {
+        return includes;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(",", includes);
+    }
+
+    /**
+     * 按字符展开的前缀树，每个节点记录在此处结束的包规则和以此处为字面前缀的通配规则。
+     */
+    private static final class Trie {
+        static final int NONE = 0;
+        static final int INCLUDE = 1;
+        static final int EXCLUDE = 2;
+
+        private final Node root = new Node();
+        private boolean empty = true;
+
+        boolean isEmpty() {
+            return empty;
+        }
+
+        void add(String rule, boolean exclude) {
+            String pattern = rule.trim().replace('.', '/');
+            if (pattern.endsWith("/")) {
+                pattern = pattern.substring(0, pattern.length() - 1);
+            }
+            // com.foo.**等同于包规则com.foo；com.foo.*仍按通配符处理，只匹配包中直接的类
+            if (pattern.endsWith("/**") && pattern.indexOf('*') == pattern.length() - 2) {
+                pattern = pattern.substring(0, pattern.length() - 3);
+            }
+            if (pattern.isEmpty()) {
+                return;
+            }
+            empty = false;
+            int wildcard = pattern.indexOf('*');
+            int literal = wildcard < 0 ? pattern.length() : wildcard;
+            Node node = root;
+            for (int i = 0; i < literal; i++) {
+                node = node.child(pattern.charAt(i), true);
+            }
+            int verdict = exclude ? EXCLUDE : INCLUDE;
+            if (wildcard < 0) {
+                node.verdict = merge(node.verdict, verdict);
+            } else {
+                if (node.globs == null) {
+                    node.globs = new ArrayList<>(1);
+                }
+                node.globs.add(new Glob(pattern, literal, verdict));
+            }
+        }
+
+        /**
+         * 返回最长匹配规则的结果，没有规则匹配时返回NONE。
+         */
+        int match(String name) {
+            int best = NONE;
+            int bestLength = -1;
+            Node node = root;
+            int length = name.length();
+            for (int i = 0; ; i++) {
+                // 包规则只在包名边界上生效，com/foo不匹配com/foobar
+                if (node.verdict != NONE && i > 0
+                    && (i == length || name.charAt(i) == '/' || name.charAt(i) == '$')) {
+                    best = node.verdict;
+                    bestLength = i;
+                }
+                if (node.globs != null) {
+                    for (Glob glob : node.globs) {
+                        if (glob.literal >= bestLength && (glob.literal > bestLength || glob.verdict == EXCLUDE)
+                            && glob.matches(name)) {
+                            best = glob.verdict;
+                            bestLength = glob.literal;
+                        }
+                    }
+                }
+                if (i == length) {
+                    break;
+                }
+                node = node.child(name.charAt(i), false);
+                if (node == null) {
+                    break;
+                }
+            }
+            return best;
+        }
+
+        private static int merge(int current, int verdict) {
+            return current == EXCLUDE ? EXCLUDE : verdict;
+        }
+    }
+
+    private static final class Node {
+        // 子节点不多，直接用HashMap；类名一般是ASCII，查找时char装箱命中Character缓存，不分配对象
+        private Map<Character, Node> children;
+        private int verdict;
+        private List<Glob> globs;
+
+        Node child(char c, boolean create) {
+            if (children == null) {
+                if (!create) {
+                    return null;
+                }
+                children = new HashMap<>(4);
+            }
+            Node node = children.get(c);
+            if (node == null && create) {
+                node = new Node();
+                children.put(c, node);
+            }
+            return node;
+        }
+    }
+
+    private static final class Glob {
+        private final String pattern;
+        private final int literal;
+        private final int verdict;
+
+        Glob(String pattern, int literal, int verdict) {
+            this.pattern = pattern;
+            this.literal = literal;
+            this.verdict = verdict;
+        }
+
+        boolean matches(String name) {
+            return matches(name, literal, literal);
+        }
+
+        private boolean matches(String name, int p, int n) {
+            while (p < pattern.length()) {
+                char c = pattern.charAt(p);
+                if (c == '*') {
+                    boolean any = p + 1 < pattern.length() && pattern.charAt(p + 1) == '*';
+                    int next = any ? p + 2 : p + 1;
+                    for (int i = n; i <= name.length(); i++) {
+                        if (matches(name, next, i)) {
+                            return true;
+                        }
+                        if (i < name.length() && !any && name.charAt(i) == '/') {
+                            return false;
+                        }
+                    }
+                    return false;
+                }
+                if (n >= name.length() || name.charAt(n) != c) {
+                    return false;
+                }
+                p++;
+                n++;
+            }
+            // 与包规则一致，匹配到包名边界即可
+            return n == name.length() || name.charAt(n) == '/' || name.charAt(n) == '$';
+        }
+    }
+}
@@ -3,9 +3,13 @@ package com.threadsafe.agent;
 import org.objectweb.asm.*;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.Set;
 
 public class FieldAccessVisitor extends ClassVisitor {
@@ -14,9 +18,26 @@ public class FieldAccessVisitor extends ClassVisitor {
     private Map<String, Integer> fieldAccess = new HashMap<>();
     private boolean isExcluded = false;
     private Set<String> ignoreStaticInitFields = new HashSet<>();
+    // 类文件版本是否支持LDC类常量(Java 5及以上)，静态synchronized方法需要用它取得锁对象
+    private boolean ldcClassSupported;
+    private String sourceFile;
+    // 插桩前静态分析的结果，为null时不做消除
+    private final SafeAccessAnalyzer analysis;
+    // 转换过程中对全局状态的影响，持久化缓存命中时需要重放
+    private final Set<Integer> usedFieldIds = new LinkedHashSet<>();
+    private final Set<String> volatileFields = new LinkedHashSet<>();
+    // @RsmThreadSafe排除的目标，每项为{target, member}，类本身的member为null
+    private final List<String[]> exclusions = new ArrayList<>();
+    private int instrumentedAccesses;
+    private int eliminatedAccesses;
 
     public FieldAccessVisitor(ClassVisitor cv) {
+        this(cv, null);
+    }
+
+    FieldAccessVisitor(ClassVisitor cv, SafeAccessAnalyzer analysis) {
         super(Opcodes.ASM9, cv);
+        this.analysis = analysis;
     }
 
     @Override
@@ -25,6 +46,7 @@ public class FieldAccessVisitor extends ClassVisitor {
         if (descriptor.equals("Lcom/threadsafe/agent/annotation/RsmThreadSafe;")) {
             isExcluded = true;
             logger.info("Class {} is excluded from thread safety check due to @RsmThreadSafe", className);
+            exclude("class", null);
         }
         return super.visitAnnotation(descriptor, visible);
     }
@@ -32,21 +54,37 @@ public class FieldAccessVisitor extends ClassVisitor {
     @Override
     public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
         this.className = name;
+        this.ldcClassSupported = (version & 0xFFFF) >= Opcodes.V1_5;
         super.visit(version, access, name, signature, superName, interfaces);
     }
 
+    @Override
+    public void visitSource(String source, String debug) {
+        this.sourceFile = source;
+        super.visitSource(source, debug);
+    }
+
     @Override
     public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        // volatile字段在happens-before检测中作为同步点，不受@RsmThreadSafe影响：排除的代码中对它的访问仍然插桩
+        if ((access & Opcodes.ACC_VOLATILE) != 0) {
+            FieldRegistry.markVolatile(className, name);
+            volatileFields.add(name);
+        }
         // 如果isExcluded为true，则调用父类的visitField方法
         if (isExcluded) {
             return super.visitField(access, name, descriptor, signature, value);
         }
-        // 打印正在访问的字段名
-        System.out.println("Visiting field: " + name);
         // 生成字段访问的key
         String key = className + "#" + name;
         // 将字段访问权限存入fieldAccess中
-        fieldAccess.put(key, access);
+        // 只在初始化时赋值的private字段与final字段一样跳过检查
+        if (analysis != null && analysis.isEffectivelyFinal(name)) {
+            logger.debug("Field {} in class {} is effectively final, skipping checks", name, className);
+            fieldAccess.put(key, access | Opcodes.ACC_FINAL);
+        } else {
+            fieldAccess.put(key, access);
+        }
         
         // 返回一个新的FieldVisitor对象，该对象继承自父类的visitField方法
         return new FieldVisitor(Opcodes.ASM9, super.visitField(access, name, descriptor, signature, value)) {
@@ -56,6 +94,7 @@ public class FieldAccessVisitor extends ClassVisitor {
                 // 如果注解描述符等于RsmThreadSafe，则标记为final，这样就会跳过检查
                 if (descriptor.equals("Lcom/threadsafe/agent/annotation/RsmThreadSafe;")) {
                     logger.info("Field {} in class {} is excluded from thread safety check due to @RsmThreadSafe", name, className);
+                    exclude("field", name);
                     fieldAccess.put(key, access | Opcodes.ACC_FINAL);  // 标记为final，这样就会跳过检查
                 }
                 // 如果注解描述符等于IgnoreStaticInit，则添加到忽略静态初始化字段列表中
@@ -63,6 +102,7 @@ public class FieldAccessVisitor extends ClassVisitor {
                     ignoreStaticInitFields.add(name);
                     logger.info("Field {} in class {} will ignore static initialization writes", 
                         name, className);
+                    ViolationReporter.annotate("IgnoreStaticInit", "field", className, name);
                 }
                 // 调用父类的visitAnnotation方法
                 return super.visitAnnotation(descriptor, visible);
@@ -73,10 +113,15 @@ public class FieldAccessVisitor extends ClassVisitor {
     @Override
     public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
         MethodVisitor mv = super.visitMethod(access, name, descriptor, signature, exceptions);
-        System.out.println("Visiting method: " + name);
+        // 没有字段指令、也不需要插入同步点的方法直接交给ClassWriter，由它原样复制方法字节
+        if (analysis != null && !analysis.hasFieldAccess(name, descriptor) && !HappensBefore.isEnabled()) {
+            return mv;
+        }
         // 创建一个包装的MethodVisitor来检查方法的注解
         return new MethodVisitor(Opcodes.ASM9, 
-               new FieldAccessMethodVisitor(mv, className, name, fieldAccess, isExcluded)) {
+               new FieldAccessMethodVisitor(mv, className, sourceFile, name, access, fieldAccess, isExcluded,
+                   ldcClassSupported, analysis == null ? new BitSet() : analysis.skippedAccesses(name, descriptor),
+                   this)) {
             private boolean isMethodExcluded = false;
 
             @Override
@@ -85,6 +130,7 @@ public class FieldAccessVisitor extends ClassVisitor {
                     isMethodExcluded = true;
                     logger.info("Method {} in class {} is excluded from thread safety check due to @RsmThreadSafe", 
                         name, className);
+                    exclude("method", name);
                 }
                 return super.visitAnnotation(descriptor, visible);
             }
@@ -97,6 +143,57 @@ public class FieldAccessVisitor extends ClassVisitor {
         };
     }
 
+    private void exclude(String target, String member) {
+        ViolationReporter.annotate("RsmThreadSafe", target, className, member);
+        exclusions.add(new String[] {target, member});
+    }
+
+    /**
+     * 为访问点分配字段ID并记录下来，缓存命中时校验。
+     */
+    int useField(int fieldId) {
+        usedFieldIds.add(fieldId);
+        return fieldId;
+    }
+
+    void onInstrumentedAccess() {
+        instrumentedAccesses++;
+        AgentMetrics.onInstrumentedAccess();
+    }
+
+    void onEliminatedAccess() {
+        eliminatedAccesses++;
+        AgentMetrics.onEliminatedAccess();
+    }
+
+    String getClassName() {
+        return className;
+    }
+
+    Set<Integer> getUsedFieldIds() {
+        return usedFieldIds;
+    }
+
+    Set<String> getVolatileFields() {
+        return volatileFields;
+    }
+
+    Set<String> getIgnoreStaticInitFields() {
+        return ignoreStaticInitFields;
+    }
+
+    List<String[]> getExclusions() {
+        return exclusions;
+    }
+
+    int getInstrumentedAccesses() {
+        return instrumentedAccesses;
+    }
+
+    int getEliminatedAccesses() {
+        return eliminatedAccesses;
+    }
+
     @Override
     public void visitEnd() {
         // 将信息传递给AccessMonitor
@@ -108,33 +205,75 @@ public class FieldAccessVisitor extends ClassVisitor {
 class FieldAccessMethodVisitor extends MethodVisitor {
     private static final Logger logger = LogManager.getLogger(FieldAccessMethodVisitor.class);
     private final String className;
+    private final String sourceFile;
     private final String methodName;
     private final Map<String, Integer> fieldAccess;
     private final boolean isClassExcluded;
+    // happens-before检测：synchronized方法的入口和返回处需要插入acquire/release
+    private final boolean isSynchronized;
+    private final boolean isStaticMethod;
+    private final boolean ldcClassSupported;
+    private final boolean trackSync;
+    // synchronized方法体的开始位置，方法体异常退出时由visitMaxs中插入的处理器记录release
+    private Label syncStart;
+    private final boolean trackArrays;
+    // 记录模式下为每个插桩点分配访问点ID，需要知道当前行号
+    private final boolean recording;
+    private int currentLine;
+    // 静态分析判定无需检查的字段指令序号，以及当前字段指令的序号
+    private final BitSet skippedAccesses;
+    // 字段ID和访问点统计汇总到类的visitor上，供持久化缓存保存
+    private final FieldAccessVisitor classVisitor;
+    private int fieldInsnIndex;
     private boolean isMethodExcluded;
+    // 构造方法中this是否已经初始化(super()/this()已调用)，以及尚未调用<init>的NEW指令个数
+    private boolean thisInitialized;
+    private int pendingNews;
 
-    public FieldAccessMethodVisitor(MethodVisitor mv, String className, String methodName, 
-                                  Map<String, Integer> fieldAccess, boolean isClassExcluded) {
+    public FieldAccessMethodVisitor(MethodVisitor mv, String className, String sourceFile, String methodName,
+                                  int methodAccess, Map<String, Integer> fieldAccess, boolean isClassExcluded,
+                                  boolean ldcClassSupported, BitSet skippedAccesses, FieldAccessVisitor classVisitor) {
         super(Opcodes.ASM9, mv);
         this.className = className;
+        this.sourceFile = sourceFile;
         this.methodName = methodName;
         this.fieldAccess = fieldAccess;
         this.isClassExcluded = isClassExcluded;
+        this.isSynchronized = (methodAccess & Opcodes.ACC_SYNCHRONIZED) != 0;
+        this.isStaticMethod = (methodAccess & Opcodes.ACC_STATIC) != 0;
+        this.ldcClassSupported = ldcClassSupported;
+        this.skippedAccesses = skippedAccesses;
+        this.classVisitor = classVisitor;
+        // 同步点的插桩与@RsmThreadSafe无关，排除检查的代码中的同步同样建立happens-before关系
+        this.trackSync = HappensBefore.isEnabled();
+        this.recording = TraceRecorder.isEnabled();
+        this.trackArrays = ArrayMonitor.isEnabled();
         this.isMethodExcluded = false;
+        this.thisInitialized = !"<init>".equals(methodName);
     }
 
     public void setMethodExcluded(boolean excluded) {
         this.isMethodExcluded = excluded;
     }
 
+    @Override
+    public void visitLineNumber(int line, Label start) {
+        currentLine = line;
+        super.visitLineNumber(line, start);
+    }
+
     @Override
     public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
         // 如果操作码是GETFIELD、PUTFIELD、GETSTATIC或PUTSTATIC
         if (opcode == Opcodes.GETFIELD || opcode == Opcodes.PUTFIELD ||
             opcode == Opcodes.GETSTATIC || opcode == Opcodes.PUTSTATIC) {
-            
+            int insnIndex = fieldInsnIndex++;
+            // happens-before检测中volatile字段的读写是同步点，@RsmThreadSafe排除的代码中也要插桩；
+            // 本类的字段在方法之前已经访问过，其他类的字段只有在所属类插桩之后才能识别
+            boolean syncPoint = trackSync && FieldRegistry.isVolatile(owner, name);
+
             // 如果类或方法被标记为@RsmThreadSafe，跳过检查
-            if (isClassExcluded || isMethodExcluded) {
+            if ((isClassExcluded || isMethodExcluded) && !syncPoint) {
                 super.visitFieldInsn(opcode, owner, name, descriptor);
                 return;
             }
@@ -142,37 +281,229 @@ class FieldAccessMethodVisitor extends MethodVisitor {
             String key = owner + "#" + name;
             // 获取字段的访问权限
             Integer access = fieldAccess.get(key);
-            // 如果字段被标记为final，跳过检查
-            if (access != null && (access & Opcodes.ACC_FINAL) != 0) {
+            // 如果字段被标记为final(包括@RsmThreadSafe字段)，跳过检查
+            if (access != null && (access & Opcodes.ACC_FINAL) != 0 && !syncPoint) {
                 super.visitFieldInsn(opcode, owner, name, descriptor);
                 return;
             }
 
+            // 构造方法中调用super()/this()之前，this尚未初始化，不能作为参数传递
+            if (!thisInitialized && opcode == Opcodes.PUTFIELD) {
+                super.visitFieldInsn(opcode, owner, name, descriptor);
+                return;
+            }
+
+            // 静态分析证明不会跨线程或与前一次检查重复的访问
+            if (skippedAccesses.get(insnIndex)) {
+                classVisitor.onEliminatedAccess();
+                super.visitFieldInsn(opcode, owner, name, descriptor);
+                return;
+            }
+            classVisitor.onInstrumentedAccess();
+
             // 判断是读操作还是写操作
             boolean isRead = (opcode == Opcodes.GETFIELD || opcode == Opcodes.GETSTATIC);
+            // 插桩时为字段分配ID
+            int fieldId = classVisitor.useField(FieldRegistry.register(owner, name));
+
+            // 快速路径：FieldRegistry.live[fieldId]为false(监控关闭或字段已上报)时跳过整个调用
+            Label skip = new Label();
+            mv.visitFieldInsn(Opcodes.GETSTATIC, "com/threadsafe/agent/FieldRegistry", "live", "[Z");
+            pushInt(fieldId);
+            mv.visitInsn(Opcodes.BALOAD);
+            mv.visitJumpInsn(Opcodes.IFEQ, skip);
             
-            // 调用Thread.currentThread()方法获取当前线程
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "java/lang/Thread", "currentThread", "()Ljava/lang/Thread;", false);
-            
-            // 如果是字段操作，将当前对象作为参数传递
-            if (opcode == Opcodes.GETFIELD || opcode == Opcodes.PUTFIELD) {
-                mv.visitVarInsn(Opcodes.ALOAD, 0);
+            if (opcode == Opcodes.GETFIELD) {
+                // 栈顶为被访问的对象，复制一份作为参数传递
+                mv.visitInsn(Opcodes.DUP);
+            } else if (opcode == Opcodes.PUTFIELD) {
+                // 栈为 ..., 对象, 值，把对象复制到栈顶
+                Type type = Type.getType(descriptor);
+                if (type.getSize() == 2) {
+                    mv.visitInsn(Opcodes.DUP2_X1);
+                    mv.visitInsn(Opcodes.POP2);
+                    mv.visitInsn(Opcodes.DUP_X2);
+                } else {
+                    mv.visitInsn(Opcodes.DUP2);
+                    mv.visitInsn(Opcodes.POP);
+                }
             } else {
                 // 如果是静态字段操作，将null作为参数传递
                 mv.visitInsn(Opcodes.ACONST_NULL);
             }
             
-            // 将字段所属类名、字段名、是否是静态字段、是否是读操作作为参数传递
-            mv.visitLdcInsn(owner);
-            mv.visitLdcInsn(name);
+            // 运行时只传递整数ID、是否是静态字段、是否是读操作
+            pushInt(fieldId);
+            if (recording) {
+                pushInt(SiteRegistry.register(className, methodName, sourceFile, currentLine));
+            }
             mv.visitInsn((opcode == Opcodes.GETSTATIC || opcode == Opcodes.PUTSTATIC) ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
             mv.visitInsn(isRead ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
             
-            // 调用AccessMonitor.checkAccess方法进行访问检查
-            mv.visitMethodInsn(Opcodes.INVOKESTATIC, "com/threadsafe/agent/AccessMonitor", "checkAccess",
-                    "(Ljava/lang/Thread;Ljava/lang/Object;Ljava/lang/String;Ljava/lang/String;ZZ)V", false);
+            if (recording) {
+                // 记录模式：只追加一条访问记录，检查留给离线分析
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "com/threadsafe/agent/TraceRecorder", "record",
+                        "(Ljava/lang/Object;IIZZ)V", false);
+            } else {
+                // 调用AccessMonitor.checkAccess方法进行访问检查
+                mv.visitMethodInsn(Opcodes.INVOKESTATIC, "com/threadsafe/agent/AccessMonitor", "checkAccess",
+                        "(Ljava/lang/Object;IZZ)V", false);
+            }
+            mv.visitLabel(skip);
         }
         // 如果不是字段操作，调用父类的方法
         super.visitFieldInsn(opcode, owner, name, descriptor);
     }
+
+    @Override
+    public void visitTypeInsn(int opcode, String type) {
+        if (opcode == Opcodes.NEW && !thisInitialized) {
+            pendingNews++;
+        }
+        super.visitTypeInsn(opcode, type);
+    }
+
+    @Override
+    public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+        if (opcode == Opcodes.INVOKESPECIAL && !thisInitialized && name.equals("<init>")) {
+            // 先匹配参数中NEW出来的对象，剩下的那次<init>调用就是super()/this()
+            if (pendingNews > 0) {
+                pendingNews--;
+            } else {
+                thisInitialized = true;
+            }
+        }
+        if (trackSync && opcode == Opcodes.INVOKEVIRTUAL && descriptor.equals("()V")) {
+            // 接收者是否是Thread由运行时判断
+            if (name.equals("start")) {
+                mv.visitInsn(Opcodes.DUP);
+                invokeHappensBefore("beforeStart");
+            } else if (name.equals("join")) {
+                mv.visitInsn(Opcodes.DUP);
+                super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+                invokeHappensBefore("afterJoin");
+                return;
+            }
+        }
+        super.visitMethodInsn(opcode, owner, name, descriptor, isInterface);
+    }
+
+    @Override
+    public void visitCode() {
+        super.visitCode();
+        if (trackSync && isSynchronized && pushMethodLock()) {
+            invokeHappensBefore("acquire");
+            syncStart = new Label();
+            mv.visitLabel(syncStart);
+        }
+    }
+
+    /**
+     * synchronized方法因异常退出时JVM同样会释放监视器。与javac为synchronized块生成的代码相同，
+     * 用一个覆盖整个方法体的catch-all处理器先release再重新抛出。处理器排在异常表最后，
+     * 方法自己的处理器优先匹配，栈帧由ClassWriter重新计算。
+     */
+    @Override
+    public void visitMaxs(int maxStack, int maxLocals) {
+        if (syncStart != null) {
+            Label end = new Label();
+            Label handler = new Label();
+            mv.visitLabel(end);
+            mv.visitTryCatchBlock(syncStart, end, handler, null);
+            mv.visitLabel(handler);
+            // 栈为 异常：release之后异常仍在栈顶
+            pushMethodLock();
+            invokeHappensBefore("release");
+            mv.visitInsn(Opcodes.ATHROW);
+        }
+        super.visitMaxs(maxStack, maxLocals);
+    }
+
+    @Override
+    public void visitInsn(int opcode) {
+        if (trackArrays && !isClassExcluded && !isMethodExcluded) {
+            if (opcode >= Opcodes.IALOAD && opcode <= Opcodes.SALOAD) {
+                checkArrayAccess(opcode, true, false);
+            } else if (opcode >= Opcodes.IASTORE && opcode <= Opcodes.SASTORE) {
+                checkArrayAccess(opcode, false, opcode == Opcodes.LASTORE || opcode == Opcodes.DASTORE);
+            }
+        }
+        if (trackSync) {
+            if (opcode == Opcodes.MONITORENTER) {
+                // 栈为 ..., 锁对象：进入监视器之后再记录acquire
+                mv.visitInsn(Opcodes.DUP);
+                super.visitInsn(opcode);
+                invokeHappensBefore("acquire");
+                return;
+            }
+            if (opcode == Opcodes.MONITOREXIT) {
+                mv.visitInsn(Opcodes.DUP);
+                invokeHappensBefore("release");
+            } else if (opcode >= Opcodes.IRETURN && opcode <= Opcodes.RETURN && isSynchronized && pushMethodLock()) {
+                invokeHappensBefore("release");
+            }
+        }
+        super.visitInsn(opcode);
+    }
+
+    /**
+     * 在数组指令之前插入ArrayMonitor.checkAccess(数组, 下标, 伪字段ID, 是否是读操作)，快速路径与字段相同。
+     */
+    private void checkArrayAccess(int opcode, boolean isRead, boolean wideValue) {
+        classVisitor.onInstrumentedAccess();
+        int fieldId = classVisitor.useField(ArrayMonitor.fieldId(opcode));
+        Label skip = new Label();
+        mv.visitFieldInsn(Opcodes.GETSTATIC, "com/threadsafe/agent/FieldRegistry", "live", "[Z");
+        pushInt(fieldId);
+        mv.visitInsn(Opcodes.BALOAD);
+        mv.visitJumpInsn(Opcodes.IFEQ, skip);
+        if (isRead) {
+            // 栈为 ..., 数组, 下标
+            mv.visitInsn(Opcodes.DUP2);
+        } else if (wideValue) {
+            // 栈为 ..., 数组, 下标, long/double值：先把值移到下面，再复制数组和下标
+            mv.visitInsn(Opcodes.DUP2_X2);
+            mv.visitInsn(Opcodes.POP2);
+            mv.visitInsn(Opcodes.DUP2_X2);
+        } else {
+            // 栈为 ..., 数组, 下标, 值
+            mv.visitInsn(Opcodes.DUP_X2);
+            mv.visitInsn(Opcodes.POP);
+            mv.visitInsn(Opcodes.DUP2_X1);
+        }
+        pushInt(fieldId);
+        mv.visitInsn(isRead ? Opcodes.ICONST_1 : Opcodes.ICONST_0);
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "com/threadsafe/agent/ArrayMonitor", "checkAccess",
+                "(Ljava/lang/Object;IIZ)V", false);
+        mv.visitLabel(skip);
+    }
+
+    private boolean pushMethodLock() {
+        if (!isStaticMethod) {
+            mv.visitVarInsn(Opcodes.ALOAD, 0);
+            return true;
+        }
+        if (ldcClassSupported) {
+            mv.visitLdcInsn(Type.getObjectType(className));
+            return true;
+        }
+        return false;
+    }
+
+    private void invokeHappensBefore(String method) {
+        mv.visitMethodInsn(Opcodes.INVOKESTATIC, "com/threadsafe/agent/HappensBefore", method,
+                "(Ljava/lang/Object;)V", false);
+    }
+
+    private void pushInt(int value) {
+        if (value >= -1 && value <= 5) {
+            mv.visitInsn(Opcodes.ICONST_0 + value);
+        } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.BIPUSH, value);
+        } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+            mv.visitIntInsn(Opcodes.SIPUSH, value);
+        } else {
+            mv.visitLdcInsn(value);
+        }
+    }
 } 
\ No newline at end of file
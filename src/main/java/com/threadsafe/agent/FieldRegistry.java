@@ -0,0 +1,184 @@
+package com.threadsafe.agent;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 字段ID注册表。
+ * 插桩时为每个(owner, field)分配一个稠密的整数ID，运行时直接用ID索引字段信息，
+ * 检查路径上不再拼接字符串、也不再做Map查找。
+ */
+public final class FieldRegistry {
+    private static final int INITIAL_CAPACITY = 256;
+
+    // 只在插桩(类加载)时使用，运行时不会访问
+    private static final Map<String, Integer> ids = new ConcurrentHashMap<>();
+    private static volatile FieldInfo[] fields = new FieldInfo[INITIAL_CAPACITY];
+    private static int size;
+
+    /**
+     * 插桩代码在调用AccessMonitor.checkAccess之前读取live[id]，为false时直接跳过整个调用。
+     * 监控关闭时指向一个全为false的数组；字段不再需要检查时对应的元素被置为false。
+     * 数组长度始终不小于已分配的字段ID数。
+     */
+    public static volatile boolean[] live = new boolean[INITIAL_CAPACITY];
+    private static boolean[] enabledLive = live;
+    private static boolean enabled = true;
+    // 构建时插桩的字段ID冲突后不能再打开检查
+    private static boolean blocked;
+
+    static {
+        // 构建时插桩的类中写死了字段ID，必须先按插桩产物中的索引注册
+        AotRuntime.loadIndexes(FieldRegistry.class.getClassLoader());
+    }
+
+    private FieldRegistry() {
+    }
+
+    public static final class FieldInfo {
+        final int id;
+        final String owner;
+        final String name;
+        // 预先生成的静态字段key，仅用于日志输出
+        final String staticKey;
+        volatile boolean ignoreStaticInit;
+        // 字段所属类被插桩时记录，happens-before检测中volatile字段的读写作为同步点
+        volatile boolean isVolatile;
+
+        FieldInfo(int id, String owner, String name) {
+            this.id = id;
+            this.owner = owner;
+            this.name = name;
+            this.staticKey = "static." + owner + "." + name;
+        }
+
+        public int getId() {
+            return id;
+        }
+
+        public String getOwner() {
+            return owner;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * 返回字段的ID，如果尚未注册则分配一个新的ID。同一个字段多次注册返回同一个ID。
+     */
+    public static int register(String owner, String name) {
+        String key = owner + "#" + name;
+        Integer id = ids.get(key);
+        if (id != null) {
+            return id;
+        }
+        synchronized (FieldRegistry.class) {
+            id = ids.get(key);
+            if (id != null) {
+                return id;
+            }
+            int newId = size;
+            grow(newId + 1);
+            fields[newId] = new FieldInfo(newId, owner, name);
+            enabledLive[newId] = true;
+            if (enabled) {
+                // 重新发布数组，其他线程读到live时能看到新置的元素
+                live = enabledLive;
+            }
+            size = newId + 1;
+            ids.put(key, newId);
+            return newId;
+        }
+    }
+
+    /**
+     * 构建时插桩的类由自己的类加载器定义时调用(插在类的静态初始化开头)，先注册该加载器上的索引，类中写死的字段ID才有对应的字段。
+     */
+    public static void registerIndexes(Class<?> type) {
+        AotRuntime.loadIndexes(type.getClassLoader());
+    }
+
+    /**
+     * 保证live的长度覆盖count个ID，未注册的ID保持false，插桩点不会越界也不会调用检查。
+     */
+    static synchronized void ensureCapacity(int count) {
+        grow(count);
+    }
+
+    private static void grow(int count) {
+        FieldInfo[] table = fields;
+        if (count <= table.length) {
+            return;
+        }
+        int newLength = table.length;
+        while (newLength < count) {
+            newLength <<= 1;
+        }
+        fields = Arrays.copyOf(table, newLength);
+        enabledLive = Arrays.copyOf(enabledLive, newLength);
+        live = enabled ? enabledLive : new boolean[newLength];
+    }
+
+    public static FieldInfo get(int id) {
+        return fields[id];
+    }
+
+    public static int size() {
+        synchronized (FieldRegistry.class) {
+            return size;
+        }
+    }
+
+    /**
+     * 打开或关闭所有插桩点的检查。关闭后每个插桩点只剩一次数组读取和一个分支。
+     */
+    public static synchronized void setEnabled(boolean on) {
+        enabled = on && !blocked;
+        live = enabled ? enabledLive : new boolean[enabledLive.length];
+    }
+
+    /**
+     * 关闭检查，之后setEnabled(true)也不再打开。
+     */
+    static synchronized void block() {
+        blocked = true;
+        setEnabled(false);
+    }
+
+    public static synchronized boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 字段不再需要检查(例如静态字段已经上报过)，之后插桩点直接跳过对它的检查。
+     */
+    static void retire(int id) {
+        enabledLive[id] = false;
+    }
+
+    /**
+     * 重新启用所有字段的检查。
+     */
+    static synchronized void reviveAll() {
+        Arrays.fill(enabledLive, 0, size, true);
+    }
+
+    public static void markVolatile(String owner, String name) {
+        fields[register(owner, name)].isVolatile = true;
+    }
+
+    /**
+     * 插桩时查询字段是否已知为volatile，不分配ID；字段所属类尚未插桩时返回false。
+     */
+    static boolean isVolatile(String owner, String name) {
+        Integer id = ids.get(owner + "#" + name);
+        return id != null && fields[id].isVolatile;
+    }
+
+    public static void markIgnoreStaticInit(String owner, String name) {
+        fields[register(owner, name)].ignoreStaticInit = true;
+    }
+}
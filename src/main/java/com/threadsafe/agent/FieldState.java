@@ -0,0 +1,82 @@
+package com.threadsafe.agent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+
+/**
+ * 单个变量(静态字段，或某个对象的某个实例字段)的检查状态。
+ * owner是一个压缩的所有权字：高32位为最后写入线程的ThreadState.ownerId，第31位表示该线程是否为核心线程，
+ * 低31位为所有权变更的次数(epoch)。同一线程连续写入只需读一次owner，
+ * 只有所有权发生变化时才通过CAS更新并采集写入现场。
+ */
+final class FieldState implements WriteRecorder.Slots {
+    private static final VarHandle OWNER;
+    private static final long CORE_BIT = 1L << 31;
+    private static final long EPOCH_MASK = CORE_BIT - 1;
+
+    static {
+        try {
+            OWNER = MethodHandles.lookup().findVarHandle(FieldState.class, "owner", long.class);
+        } catch (ReflectiveOperationException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+
+    final int fieldId;
+    volatile long owner;
+    volatile AccessMonitor.WriteInfo nonCoreWrite;
+    volatile boolean reported;
+    // happens-before检测：最后一次非核心线程写入的epoch(线程编号<<32 | 时钟值)
+    volatile long writeEpoch;
+    // happens-before检测：volatile字段的同步时钟，由synchronized(this)保护
+    VectorClock syncClock;
+
+    FieldState(int fieldId) {
+        this.fieldId = fieldId;
+    }
+
+    // 一个变量只有一个槽，slot参数忽略
+
+    @Override
+    public long owner(int slot) {
+        return owner;
+    }
+
+    @Override
+    public boolean casOwner(int slot, long expected, long update) {
+        return OWNER.compareAndSet(this, expected, update);
+    }
+
+    @Override
+    public AccessMonitor.WriteInfo write(int slot) {
+        return nonCoreWrite;
+    }
+
+    @Override
+    public void setWrite(int slot, AccessMonitor.WriteInfo write) {
+        nonCoreWrite = write;
+    }
+
+    @Override
+    public void setWriteEpoch(int slot, long epoch) {
+        if (writeEpoch != epoch) {
+            writeEpoch = epoch;
+        }
+    }
+
+    static long pack(int threadId, boolean isCore, int epoch) {
+        return ((long) threadId << 32) | (isCore ? CORE_BIT : 0L) | (epoch & EPOCH_MASK);
+    }
+
+    static int ownerThreadId(long word) {
+        return (int) (word >>> 32);
+    }
+
+    static boolean ownerIsCore(long word) {
+        return (word & CORE_BIT) != 0;
+    }
+
+    static int epoch(long word) {
+        return (int) (word & EPOCH_MASK);
+    }
+}
@@ -0,0 +1,305 @@
+package com.threadsafe.agent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 把违规事件的读写调用栈合并成一棵前缀树，按需或定期输出为火焰图JSON(节点结构和栈帧规则与ReportGenerator的violations_flame.json相同)：
+ * 根节点 → 字段 → Core Thread(读取栈)/Non-Core Thread(写入栈) → 栈帧，每个节点记录经过的违规次数。
+ * 栈帧按{@link #mergedFrames}的规则从最内层(访问发生处)向外合并，最多flame.depth层。
+ * 与violations_flame.json的区别：输出不缩进；数组元素按数组类型聚合，不区分下标。
+ * <p>
+ * 栈帧按StackTable的帧ID取得，同一方法的不同行号合并为一个节点；帧ID到方法的映射只在第一次见到该帧时计算，
+ * 之后合并一条已有路径只是沿树查找并递增计数，不分配对象。节点总数超过flame.maxNodes后，
+ * 新路径的剩余部分计入所在节点下的&lt;truncated&gt;子节点，内存不再增长。
+ * <p>
+ * 合并只在drainer线程中进行(单一写者)，子节点数组和计数都是volatile，JMX等其他线程可以随时无锁读取快照。
+ */
+final class FlameGraphSink implements ViolationSink {
+    private static final Logger logger = LogManager.getLogger(FlameGraphSink.class);
+    private static final String CORE = "Core Thread";
+    private static final String NON_CORE = "Non-Core Thread";
+    private static final String TRUNCATED = "<truncated>";
+    // 非栈帧节点的key，栈帧节点的key为方法ID(>=0)
+    private static final int CORE_KEY = -1;
+    private static final int NON_CORE_KEY = -2;
+    private static final int TRUNCATED_KEY = -3;
+    // 默认栈深度，与ReportGenerator -d的默认值相同
+    static final int DEFAULT_DEPTH = 8;
+
+    private static volatile FlameGraphSink instance;
+
+    private final int maxNodes;
+    private final int depth;
+    private final Path file;
+    private final long intervalNanos;
+    private final StackNode root = new StackNode(0, "Thread Violations");
+    // 按字段ID索引的字段节点
+    private volatile StackNode[] fieldNodes = new StackNode[256];
+    // 帧ID到方法ID的映射，-1为未计算
+    private int[] frameMethods = new int[0];
+    private final Map<String, Integer> methodIds = new HashMap<>();
+    private int nodeCount = 1;
+    private boolean dirty;
+    private long lastWrite = System.nanoTime();
+
+    FlameGraphSink(int maxNodes, int depth, Path file, long intervalSeconds) {
+        this.maxNodes = maxNodes <= 0 ? Integer.MAX_VALUE : maxNodes;
+        this.depth = depth;
+        this.file = file;
+        this.intervalNanos = TimeUnit.SECONDS.toNanos(intervalSeconds);
+    }
+
+    /**
+     * 配置项：flame 是否聚合违规火焰图，flame.maxNodes 树的节点数上限(0为不限制)，
+     * flame.depth 每个调用栈合并的最大帧数，flame.file 定期输出的文件(none为不输出)，flame.interval 输出周期(秒)。
+     */
+    static FlameGraphSink configure(AgentOptions options) {
+        if (!options.getBoolean("flame", true)) {
+            instance = null;
+            return null;
+        }
+        String file = options.get("flame.file", "none");
+        FlameGraphSink sink = new FlameGraphSink(options.getInt("flame.maxNodes", 100000),
+            Math.max(1, options.getInt("flame.depth", DEFAULT_DEPTH)), "none".equals(file) ? null : Path.of(file), Math.max(1, options.getInt("flame.interval", 60)));
+        instance = sink;
+        return sink;
+    }
+
+    /**
+     * 当前的火焰图JSON，未开启时返回null。
+     */
+    static String snapshot() {
+        FlameGraphSink sink = instance;
+        return sink == null ? null : sink.toJson();
+    }
+
+    /**
+     * 把当前的火焰图写入指定文件，供attach命令使用。
+     */
+    static boolean dump(Path target) {
+        FlameGraphSink sink = instance;
+        if (sink == null) {
+            logger.warn("Violation flame graph is disabled (flame=false)");
+            return false;
+        }
+        try {
+            sink.write(target);
+            return true;
+        } catch (IOException e) {
+            logger.error("Failed to write flame graph {}: {}", target, e.getMessage());
+            return false;
+        }
+    }
+
+    @Override
+    public void write(ViolationEvent event) {
+        StackNode field = fieldNode(event.fieldId, event);
+        root.count++;
+        field.count++;
+        merge(field, CORE_KEY, CORE, event.coreStackId);
+        merge(field, NON_CORE_KEY, NON_CORE, event.write.stackId);
+        dirty = true;
+    }
+
+    @Override
+    public void flush() {
+        if (file != null && dirty && System.nanoTime() - lastWrite >= intervalNanos) {
+            writeFile();
+        }
+    }
+
+    @Override
+    public void close() {
+        if (file != null && dirty) {
+            writeFile();
+        }
+    }
+
+    private void writeFile() {
+        dirty = false;
+        lastWrite = System.nanoTime();
+        try {
+            write(file);
+        } catch (IOException e) {
+            logger.error("Failed to write flame graph {}: {}", file, e.getMessage());
+        }
+    }
+
+    private void write(Path target) throws IOException {
+        Path parent = target.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        Path temp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(temp, toJson().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private StackNode fieldNode(int fieldId, ViolationEvent event) {
+        StackNode[] nodes = fieldNodes;
+        if (fieldId >= nodes.length) {
+            StackNode[] grown = new StackNode[Math.max(nodes.length << 1, fieldId + 1)];
+            System.arraycopy(nodes, 0, grown, 0, nodes.length);
+            nodes = grown;
+            fieldNodes = nodes;
+        }
+        StackNode node = nodes[fieldId];
+        if (node == null) {
+            // 实例字段按字段聚合，不区分对象；数组按元素类型聚合
+            FieldRegistry.FieldInfo field = FieldRegistry.get(fieldId);
+            String name = event.isStatic ? field.staticKey
+                : event.arraySlot >= 0 ? field.owner + field.name : field.owner + "." + field.name;
+            node = new StackNode(fieldId, name);
+            nodes[fieldId] = node;
+            // 重新写一次volatile数组引用，保证读线程看到的节点已完整构造
+            fieldNodes = nodes;
+            nodeCount++;
+        }
+        return node;
+    }
+
+    private void merge(StackNode field, int roleKey, String roleName, int stackId) {
+        StackNode node = child(field, roleKey, roleName);
+        node.count++;
+        int[] frames = StackTable.frameIds(stackId);
+        int count = mergedFrames(frames.length, depth);
+        for (int i = 0; i < count; i++) {
+            int method = methodId(frames[i]);
+            StackNode next = node.find(method);
+            if (next == null) {
+                if (nodeCount >= maxNodes) {
+                    child(node, TRUNCATED_KEY, TRUNCATED).count++;
+                    return;
+                }
+                next = add(node, method, methodName(frames[i]));
+            }
+            next.count++;
+            node = next;
+        }
+    }
+
+    private StackNode child(StackNode parent, int key, String name) {
+        StackNode node = parent.find(key);
+        return node != null ? node : add(parent, key, name);
+    }
+
+    private StackNode add(StackNode parent, int key, String name) {
+        StackNode node = new StackNode(key, name);
+        StackNode[] children = parent.children;
+        StackNode[] grown = new StackNode[children.length + 1];
+        System.arraycopy(children, 0, grown, 0, children.length);
+        grown[children.length] = node;
+        // 新数组整体发布，读线程看到的要么是旧数组要么是完整的新数组
+        parent.children = grown;
+        nodeCount++;
+        return node;
+    }
+
+    private int methodId(int frameId) {
+        int[] table = frameMethods;
+        if (frameId >= table.length) {
+            int[] grown = new int[Math.max(table.length << 1, Math.max(frameId + 1, 256))];
+            System.arraycopy(table, 0, grown, 0, table.length);
+            Arrays.fill(grown, table.length, grown.length, -1);
+            frameMethods = table = grown;
+        }
+        int method = table[frameId];
+        if (method < 0) {
+            method = methodIds.computeIfAbsent(methodName(frameId), name -> methodIds.size());
+            table[frameId] = method;
+        }
+        return method;
+    }
+
+    private static String methodName(int frameId) {
+        StackTraceElement frame = StackTable.frame(frameId);
+        return frameName(frame.getClassName(), frame.getMethodName());
+    }
+
+    /**
+     * 火焰图中栈帧的合并规则，与ReportGenerator共用：调用栈按从最内层到最外层排列，
+     * 从下标0(访问发生处)开始合并前depth帧，更外层的调用者丢弃。返回要合并的帧数。
+     */
+    static int mergedFrames(int stackSize, int depth) {
+        return Math.min(stackSize, depth);
+    }
+
+    /**
+     * 火焰图中的节点名：简单类名.方法名，同一方法的不同行号合并为一个节点
+     */
+    static String frameName(String className, String methodName) {
+        int dot = className == null ? -1 : className.lastIndexOf('.');
+        return (dot < 0 ? className : className.substring(dot + 1)) + "." + methodName;
+    }
+
+    String toJson() {
+        StringBuilder sb = new StringBuilder(4096);
+        sb.append("{\"name\":");
+        Json.quote(sb, root.name).append(",\"value\":").append(root.count);
+        StackNode[] nodes = fieldNodes;
+        boolean first = true;
+        for (StackNode node : nodes) {
+            if (node == null || node.count == 0) {
+                continue;
+            }
+            sb.append(first ? ",\"children\":[" : ",");
+            node.append(sb);
+            first = false;
+        }
+        if (!first) {
+            sb.append(']');
+        }
+        return sb.append('}').toString();
+    }
+
+    private static final class StackNode {
+        private static final StackNode[] EMPTY = new StackNode[0];
+
+        final int key;
+        final String name;
+        // 只有drainer线程写入
+        volatile long count;
+        volatile StackNode[] children = EMPTY;
+
+        StackNode(int key, String name) {
+            this.key = key;
+            this.name = name;
+        }
+
+        StackNode find(int childKey) {
+            for (StackNode child : children) {
+                if (child.key == childKey) {
+                    return child;
+                }
+            }
+            return null;
+        }
+
+        void append(StringBuilder sb) {
+            sb.append("{\"name\":");
+            Json.quote(sb, name).append(",\"value\":").append(count);
+            StackNode[] nodes = children;
+            if (nodes.length > 0) {
+                sb.append(",\"children\":[");
+                for (int i = 0; i < nodes.length; i++) {
+                    if (i > 0) {
+                        sb.append(',');
+                    }
+                    nodes[i].append(sb);
+                }
+                sb.append(']');
+            }
+            sb.append('}');
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.threadsafe.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Opcodes;
+
+/**
+ * 自动计算栈帧的ClassWriter。
+ * 插桩代码中带有分支，需要重新计算StackMapTable。ClassWriter默认的getCommonSuperClass
+ * 会通过Class.forName加载类，在transform回调中可能导致类提前加载或死锁，
+ * 这里改为从ClassLoader读取class文件字节解析继承关系。
+ */
+class FrameComputingClassWriter extends ClassWriter {
+    private static final String OBJECT = "java/lang/Object";
+    // JDK中的类在所有ClassLoader下都一样，全局缓存
+    private static final Map<String, TypeInfo> jdkTypes = new ConcurrentHashMap<>();
+
+    private final ClassLoader loader;
+    private final Map<String, TypeInfo> types = new HashMap<>();
+
+    private static final class TypeInfo {
+        final String superName;
+        final boolean isInterface;
+
+        TypeInfo(String superName, boolean isInterface) {
+            this.superName = superName;
+            this.isInterface = isInterface;
+        }
+    }
+
+    FrameComputingClassWriter(ClassReader classReader, ClassLoader loader) {
+        super(classReader, ClassWriter.COMPUTE_FRAMES);
+        this.loader = loader;
+    }
+
+    @Override
+    protected String getCommonSuperClass(String type1, String type2) {
+        if (type1.equals(type2)) {
+            return type1;
+        }
+        TypeInfo info1 = typeInfo(type1);
+        TypeInfo info2 = typeInfo(type2);
+        if (info1 == null || info2 == null || info1.isInterface || info2.isInterface) {
+            return OBJECT;
+        }
+        List<String> chain1 = superChain(type1);
+        for (String type = type2; type != null; type = superName(type)) {
+            if (chain1.contains(type)) {
+                return type;
+            }
+        }
+        return OBJECT;
+    }
+
+    private List<String> superChain(String type) {
+        List<String> chain = new ArrayList<>();
+        for (String t = type; t != null; t = superName(t)) {
+            chain.add(t);
+        }
+        return chain;
+    }
+
+    private String superName(String type) {
+        TypeInfo info = typeInfo(type);
+        return info == null ? null : info.superName;
+    }
+
+    private TypeInfo typeInfo(String type) {
+        boolean jdk = isJdkType(type);
+        TypeInfo info = jdk ? jdkTypes.get(type) : types.get(type);
+        if (info != null) {
+            return info;
+        }
+        info = readTypeInfo(type);
+        if (info != null) {
+            if (jdk) {
+                jdkTypes.put(type, info);
+            } else {
+                types.put(type, info);
+            }
+        }
+        return info;
+    }
+
+    private TypeInfo readTypeInfo(String type) {
+        if (type.equals(OBJECT)) {
+            return new TypeInfo(null, false);
+        }
+        String resource = type + ".class";
+        try (InputStream in = loader != null
+                ? loader.getResourceAsStream(resource)
+                : ClassLoader.getSystemResourceAsStream(resource)) {
+            if (in == null) {
+                return null;
+            }
+            ClassReader reader = new ClassReader(in);
+            String superName = reader.getSuperName();
+            return new TypeInfo(superName, (reader.getAccess() & Opcodes.ACC_INTERFACE) != 0);
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static boolean isJdkType(String type) {
+        return type.startsWith("java/") || type.startsWith("javax/") || type.startsWith("jdk/") || type.startsWith("sun/");
+    }
+}
@@ -0,0 +1,161 @@
+package com.threadsafe.agent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 基于向量时钟的happens-before检测(FastTrack风格)，通过detector=hb开启。
+ * 插桩代码在以下同步点调用本类：
+ * <ul>
+ *     <li>MONITORENTER/synchronized方法入口之后acquire，MONITOREXIT/synchronized方法返回或因异常退出之前release</li>
+ *     <li>Thread.start()之前beforeStart，Thread.join()之后afterJoin</li>
+ *     <li>volatile字段的读写由AccessMonitor转到onVolatileAccess</li>
+ * </ul>
+ * 字段只记录最后一次非核心线程写入的epoch(线程编号+该线程的时钟值)，核心线程读取时
+ * 只需比较一次本线程向量时钟中对应的分量；同一线程的情况直接判定为有序，都是O(1)。
+ * 向量时钟的合并只发生在同步点上。
+ */
+public final class HappensBefore {
+    private static final Logger logger = LogManager.getLogger(HappensBefore.class);
+
+    static volatile boolean enabled;
+
+    private static final ShadowTable<SyncClock> locks = new ShadowTable<>(SyncClock::new);
+    private static final ShadowTable<ThreadLink> threads = new ShadowTable<>(ThreadLink::new);
+
+    private HappensBefore() {
+    }
+
+    private static final class SyncClock {
+        // 只在持有对应监视器时访问
+        final VectorClock clock = new VectorClock();
+    }
+
+    private static final class ThreadLink {
+        // 父线程调用start()时的时钟
+        VectorClock startClock;
+        // 子线程自己的状态，join之后读取其时钟
+        ThreadState state;
+    }
+
+    /**
+     * 配置项：detector=hb 开启happens-before检测，默认为basic(核心线程读取任何非核心线程写入过的变量即违规)。
+     */
+    static void configure(AgentOptions options) {
+        enabled = "hb".equals(options.get("detector", "basic"));
+        if (enabled && TraceRecorder.isEnabled()) {
+            // 记录中没有同步事件，离线分析只支持basic规则
+            logger.warn("detector=hb is not supported in record mode, using basic");
+            enabled = false;
+        }
+        if (enabled) {
+            logger.info("Happens-before detection enabled");
+        }
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * 获得监视器之后调用：C_t = C_t ⊔ L
+     */
+    public static void acquire(Object lock) {
+        if (!enabled || lock == null) {
+            return;
+        }
+        ThreadState.current().clock().join(locks.get(lock).clock);
+    }
+
+    /**
+     * 释放监视器之前调用：L = C_t，C_t[t]++
+     */
+    public static void release(Object lock) {
+        if (!enabled || lock == null) {
+            return;
+        }
+        ThreadState state = ThreadState.current();
+        locks.get(lock).clock.copyFrom(state.clock());
+        state.clock().increment(state.id);
+    }
+
+    public static void beforeStart(Object thread) {
+        if (!enabled || !(thread instanceof Thread)) {
+            return;
+        }
+        ThreadState state = ThreadState.current();
+        ThreadLink link = threads.get(thread);
+        synchronized (link) {
+            link.startClock = state.clock().copy();
+        }
+        state.clock().increment(state.id);
+    }
+
+    public static void afterJoin(Object thread) {
+        if (!enabled || !(thread instanceof Thread) || ((Thread) thread).isAlive()) {
+            return;
+        }
+        ThreadLink link = threads.get(thread);
+        ThreadState child;
+        synchronized (link) {
+            child = link.state;
+        }
+        if (child != null) {
+            // 子线程已结束，join保证可以安全读取它的时钟
+            ThreadState.current().clock().join(child.clock());
+        }
+    }
+
+    /**
+     * 线程第一次使用ThreadState时调用，继承父线程start()时的时钟。
+     */
+    static void onThreadStart(Thread thread, ThreadState state) {
+        ThreadLink link = threads.get(thread);
+        synchronized (link) {
+            if (link.startClock != null) {
+                state.clock().join(link.startClock);
+                link.startClock = null;
+            }
+            link.state = state;
+        }
+    }
+
+    static void onVolatileAccess(FieldState field, boolean isRead) {
+        ThreadState state = ThreadState.current();
+        synchronized (field) {
+            if (field.syncClock == null) {
+                field.syncClock = new VectorClock();
+            }
+            if (isRead) {
+                state.clock().join(field.syncClock);
+                return;
+            }
+            field.syncClock.join(state.clock());
+        }
+        state.clock().increment(state.id);
+    }
+
+    /**
+     * 当前线程的写入epoch(线程编号<<32 | 时钟值)。
+     */
+    static long currentEpoch() {
+        ThreadState state = ThreadState.current();
+        return ((long) state.id << 32) | (state.clock().get(state.id) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * 写入epoch是否happens-before当前线程。
+     */
+    static boolean isOrdered(long writeEpoch) {
+        if (writeEpoch == 0) {
+            return false;
+        }
+        ThreadState state = ThreadState.current();
+        int writer = (int) (writeEpoch >>> 32);
+        if (writer == state.id) {
+            // 编号被复用时，小于firstClock的值是之前的线程写入的，无法判断先后，按无序处理
+            return (int) writeEpoch >= state.firstClock;
+        }
+        return state.clock().get(writer) >= (int) writeEpoch;
+    }
+}
@@ -0,0 +1,154 @@
+package com.threadsafe.agent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.BitSet;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 以JSON-lines格式输出违规事件。
+ * 调用栈只在第一次被引用时输出一行stack记录，violation记录中通过栈ID引用：
+ * <pre>
+ * {"type":"stack","id":3,"frames":[{"class":"a.B","method":"m","file":"B.java","line":12}]}
+ * {"type":"violation","time":1700000000000,"variable":"static.a/B.f","coreThread":"CONTRACT_WORKER",
+ *  "nonCoreThread":"main","staticInit":false,"coreStack":4,"writeStack":3}
+ * {"type":"annotation","annotation":"RsmThreadSafe","target":"method","class":"a/B","member":"m"}
+ * </pre>
+ * 设置了滚动大小时，文件超过该大小后改名为&lt;文件名&gt;.1、.2……(序号越大越新)，再写入新文件；
+ * 每个文件都重新输出用到的stack记录，可以单独解析，ReportGenerator据此并行处理。
+ */
+final class JsonLinesSink implements ViolationSink {
+    private static final Logger logger = LogManager.getLogger(JsonLinesSink.class);
+
+    private final Path file;
+    // 滚动大小(字节)，0为不滚动
+    private final long maxBytes;
+    private Writer writer;
+    private long written;
+    private int rotation;
+    private final BitSet writtenStacks = new BitSet();
+    private final StringBuilder line = new StringBuilder(256);
+
+    JsonLinesSink(Path file) throws IOException {
+        this(file, 0);
+    }
+
+    JsonLinesSink(Path file, long maxBytes) throws IOException {
+        this.file = file;
+        this.maxBytes = maxBytes;
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        if (maxBytes > 0) {
+            // 接着已有的滚动序号继续编号
+            while (Files.exists(rotated(rotation + 1))) {
+                rotation++;
+            }
+        }
+        open();
+    }
+
+    private void open() throws IOException {
+        this.writer = new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8,
+            StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        this.written = Files.size(file);
+    }
+
+    private Path rotated(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    private void append(CharSequence text) throws IOException {
+        writer.append(text);
+        // 按字符数估算，非ASCII字符很少，不需要精确
+        written += text.length();
+    }
+
+    private void rotateIfNeeded() throws IOException {
+        if (maxBytes <= 0 || written < maxBytes) {
+            return;
+        }
+        writer.close();
+        rotation++;
+        Files.move(file, rotated(rotation), StandardCopyOption.REPLACE_EXISTING);
+        writtenStacks.clear();
+        open();
+    }
+
+    @Override
+    public void write(ViolationEvent event) {
+        try {
+            rotateIfNeeded();
+            writeStack(event.coreStackId);
+            writeStack(event.write.stackId);
+
+            line.setLength(0);
+            line.append("{\"type\":\"violation\",\"time\":").append(event.timestamp).append(",\"variable\":");
+            Json.quote(line, event.variable()).append(",\"coreThread\":");
+            Json.quote(line, event.coreThread).append(",\"nonCoreThread\":");
+            Json.quote(line, event.write.threadName)
+                .append(",\"staticInit\":").append(event.write.isStaticInit)
+                .append(",\"coreStack\":").append(event.coreStackId)
+                .append(",\"writeStack\":").append(event.write.stackId)
+                .append("}\n");
+            append(line);
+        } catch (IOException e) {
+            logger.error("Failed to write violation event: {}", e.getMessage());
+        }
+    }
+
+    @Override
+    public void annotation(ViolationReporter.Annotation annotation) {
+        try {
+            rotateIfNeeded();
+            line.setLength(0);
+            line.append("{\"type\":\"annotation\",\"annotation\":");
+            Json.quote(line, annotation.annotation).append(",\"target\":");
+            Json.quote(line, annotation.target).append(",\"class\":");
+            Json.quote(line, annotation.className).append(",\"member\":");
+            Json.quote(line, annotation.member).append("}\n");
+            append(line);
+        } catch (IOException e) {
+            logger.error("Failed to write annotation: {}", e.getMessage());
+        }
+    }
+
+    private void writeStack(int stackId) throws IOException {
+        if (writtenStacks.get(stackId)) {
+            return;
+        }
+        writtenStacks.set(stackId);
+        line.setLength(0);
+        line.append("{\"type\":\"stack\",\"id\":").append(stackId).append(",\"frames\":[");
+        StackTraceElement[] frames = StackTable.frames(stackId);
+        for (int i = 0; i < frames.length; i++) {
+            StackTraceElement frame = frames[i];
+            if (i > 0) {
+                line.append(',');
+            }
+            line.append("{\"class\":");
+            Json.quote(line, frame.getClassName()).append(",\"method\":");
+            Json.quote(line, frame.getMethodName()).append(",\"file\":");
+            Json.quote(line, frame.getFileName()).append(",\"line\":").append(frame.getLineNumber()).append('}');
+        }
+        line.append("]}\n");
+        append(line);
+    }
+
+    @Override
+    public void flush() {
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            logger.error("Failed to flush violation events: {}", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,30 @@
+package com.threadsafe.agent;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 以原来的Log4j2文本格式输出违规事件，供阅读日志和已有的日志配置使用；
+ * 报告由ReportGenerator根据violations.file输出的JSON-lines生成，不再解析这个格式。
+ */
+final class LogSink implements ViolationSink {
+    // 沿用AccessMonitor的logger名，已有的日志配置不需要修改
+    private static final Logger logger = LogManager.getLogger(AccessMonitor.class);
+
+    @Override
+    public void write(ViolationEvent event) {
+        logger.fatal("Invalid read: CORE thread '{}' attempting to read variable {} that was written by NON_CORE thread '{}'",
+            event.coreThread, event.variable(), event.write.threadName);
+        logger.fatal("Current thread stack trace: {}", formatStackTrace(event.coreStackId));
+        logger.fatal("Previous NON_CORE thread write stack trace: {}", formatStackTrace(event.write.stackId));
+    }
+
+    private static String formatStackTrace(int stackId) {
+        StringBuilder sb = new StringBuilder("\n");
+        StackTraceElement[] stackTrace = StackTable.frames(stackId);
+        for (StackTraceElement element : stackTrace) {
+            sb.append("    at ").append(element).append("\n");
+        }
+        return sb.toString();
+    }
+}
@@ -2,30 +2,80 @@ package com.threadsafe.agent;
 
 import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.Instrumentation;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.security.ProtectionDomain;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Predicate;
 
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 public class MonitorAgent {
     private static final Logger logger = LogManager.getLogger(MonitorAgent.class);
-    private static String targetPackage ="com/threadsafe";
-    private static final Set<String> excludedPrefixes = new HashSet<>(Arrays.asList(
-        "com/threadsafe/agent",  // 已有的排除
-        "com/example/excluded"   // 新增的排除
-    ));
+    static final String DEFAULT_PACKAGE = "com/threadsafe";
+    // 插桩范围，切换包时整体替换
+    private static volatile ClassMatcher matcher = ClassMatcher.forPackages(Collections.singletonList(DEFAULT_PACKAGE));
+    // 所有类共用一个转换器，转换过程本身不持有状态
+    private static final ASMTransformer transformer = new ASMTransformer();
+    private static volatile Instrumentation instrumentation;
+    // 是否正在监控，为false时transform不修改任何类，重新转换后恢复为原始字节码
+    private static volatile boolean monitoring;
 
     public static void premain(String agentArgs, Instrumentation inst) {
+        install(agentArgs, inst, false);
+    }
+
+    /**
+     * 动态attach的入口。第一次attach时安装agent并转换已加载的类；
+     * 之后再次attach时按参数执行命令：command=start/stop开始或停止监控，packages=...切换监控的包(可以有多个)，
+     * command=flame把当前的违规火焰图写入flame.file(默认logs/violations_flame.json)。
+     */
+    public static void agentmain(String agentArgs, Instrumentation inst) {
+        if (instrumentation == null) {
+            install(agentArgs, inst, true);
+            return;
+        }
+        AgentOptions options = AgentOptions.parse(agentArgs);
+        List<String> packages = options.getList(AgentOptions.PACKAGES);
+        if (!packages.isEmpty()) {
+            setTargetPackages(packages);
+        }
+        String command = options.get("command", "");
+        if (command.equals("start")) {
+            startMonitoring();
+        } else if (command.equals("stop")) {
+            stopMonitoring();
+        } else if (command.equals("flame")) {
+            Path file = Paths.get(options.get("flame.file", "logs/violations_flame.json"));
+            if (FlameGraphSink.dump(file)) {
+                logger.info("Violation flame graph written to {}", file.toAbsolutePath());
+            }
+        } else if (!command.isEmpty()) {
+            logger.warn("Unknown agent command: {}", command);
+        }
+    }
+
+    private static synchronized void install(String agentArgs, Instrumentation inst, boolean attached) {
+        // 配置由agent负责，FieldRegistry加载构建时插桩的索引时不再自行启动
+        AotRuntime.disableAutoStart();
         logger.info("Thread Monitor Agent is starting...");
         logger.info("Current classpath: {}", System.getProperty("java.class.path"));
-        if (agentArgs != null && !agentArgs.trim().isEmpty()) {
-            targetPackage = agentArgs.split(",") [0].replace(".", "/");
-            logger.info("Monitoring packages: {}", targetPackage);
-        }
+        // classpath上有构建时插桩的类时，detector、arrays以插桩时为准
+        AgentOptions options = AotRuntime.agentOptions(agentArgs);
+        matcher = ClassMatcher.fromOptions(options, DEFAULT_PACKAGE);
+        logger.info("Monitoring packages: {}", matcher);
+        AotRuntime.configure(options);
+        SafeAccessAnalyzer.setEnabled(options.getBoolean("prepass", true));
+        ASMTransformer.configure(options);
+        // 缓存会按fields.idx预先注册字段，必须在第一个类插桩之前打开
+        TransformCache.configure(options);
 
+        instrumentation = inst;
+        monitoring = options.getBoolean("enabled", true);
+        FieldRegistry.setEnabled(monitoring);
         inst.addTransformer(new ClassFileTransformer() {
             @Override
             public byte[] transform(ClassLoader loader, String className,
@@ -33,35 +83,109 @@ public class MonitorAgent {
                                     ProtectionDomain protectionDomain,
                                     byte[] classfiledBuffer) {
                 try {
-//                    logger.info("Transform called for class: {} with classloader: {}", className, loader);
-                    if (className != null && className.startsWith(targetPackage) && !excludedPrefixes.stream().anyMatch(prefix -> className.startsWith(prefix))) {
-//                        logger.debug("Transforming class: {}", className);
-                        ASMTransformer asmTransformer = new ASMTransformer();
-                        return asmTransformer.transform(classfiledBuffer);
+                    if (monitoring && matcher.matches(loader, className)) {
+                        byte[] transformed = transformer.transform(loader, classfiledBuffer);
+                        return transformed == classfiledBuffer ? null : transformed;
                     }
                 } catch (Throwable t) {
                     logger.error("Error transforming class: " + className, t);
                 }
-                return classfiledBuffer;
+                // 返回null表示不修改，重新转换时即恢复为原始字节码
+                return null;
             }
         }, true);
 
-//        try {
-//            Class<?>[] loadedClasses = inst.getAllLoadedClasses();
-//            for (Class<?> clazz : loadedClasses) {
-//                String className = clazz.getName().replace('.', '/');
-//                if (className.equals("com/threadsafe/Model") ||
-//                        className.equals("com/threadsafe/Test")) {
-//                    if (inst.isModifiableClass(clazz) && inst.isRetransformClassesSupported()) {
-//                        logger.info("Retransforming loaded class: {}", clazz.getName());
-//                        inst.retransformClasses(clazz);
-//                    }
-//                }
-//            }
-//        } catch (Exception e) {
-//            logger.error("Error retransforming classes", e);
-//        }
-
-        logger.info("Thread Monitor Agent started successfully");
+        if (attached && monitoring) {
+            // 动态attach时目标类可能已经加载，需要重新转换
+            retransformLoaded(clazz -> matcher.matches(clazz));
+        }
+        logger.info("Thread Monitor Agent started successfully (monitoring={}, attached={})", monitoring, attached);
+    }
+
+    /**
+     * 开始监控：打开检查并把已加载的目标类重新转换为插桩后的字节码。
+     */
+    public static synchronized void startMonitoring() {
+        if (instrumentation == null || monitoring) {
+            return;
+        }
+        monitoring = true;
+        FieldRegistry.setEnabled(true);
+        retransformLoaded(clazz -> matcher.matches(clazz));
+        logger.info("Monitoring started for {}", matcher);
+    }
+
+    /**
+     * 停止监控：立即关闭所有插桩点的检查，再把已加载的目标类恢复为原始字节码。
+     */
+    public static synchronized void stopMonitoring() {
+        if (instrumentation == null || !monitoring) {
+            return;
+        }
+        FieldRegistry.setEnabled(false);
+        monitoring = false;
+        retransformLoaded(clazz -> matcher.matches(clazz));
+        logger.info("Monitoring stopped, classes restored to original bytecode");
+    }
+
+    /**
+     * 切换监控的包，移出范围的类恢复为原始字节码，新进入范围的类重新插桩。
+     */
+    public static void setTargetPackage(String packageName) {
+        setTargetPackages(Collections.singletonList(packageName));
+    }
+
+    /**
+     * 切换为监控多个包，排除规则和类加载器规则恢复为默认值。
+     */
+    public static synchronized void setTargetPackages(List<String> packages) {
+        ClassMatcher oldMatcher = matcher;
+        ClassMatcher newMatcher = ClassMatcher.forPackages(packages);
+        matcher = newMatcher;
+        logger.info("Monitoring packages: {} -> {}", oldMatcher, newMatcher);
+        if (instrumentation != null && monitoring) {
+            retransformLoaded(clazz -> oldMatcher.matches(clazz) || newMatcher.matches(clazz));
+        }
+    }
+
+    public static boolean isMonitoring() {
+        return monitoring;
+    }
+
+    /**
+     * 第一个包含的包，兼容只支持单个包的旧接口。
+     */
+    public static String getTargetPackage() {
+        return matcher.getIncludes().get(0);
+    }
+
+    public static List<String> getTargetPackages() {
+        return Collections.unmodifiableList(matcher.getIncludes());
+    }
+
+    private static void retransformLoaded(Predicate<Class<?>> filter) {
+        Instrumentation inst = instrumentation;
+        if (!inst.isRetransformClassesSupported()) {
+            logger.warn("Retransformation is not supported by this JVM");
+            return;
+        }
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> clazz : inst.getAllLoadedClasses()) {
+            if (inst.isModifiableClass(clazz) && filter.test(clazz)) {
+                classes.add(clazz);
+            }
+        }
+        int failed = 0;
+        for (Class<?> clazz : classes) {
+            try {
+                inst.retransformClasses(clazz);
+            } catch (Throwable t) {
+                failed++;
+                logger.error("Error retransforming class: " + clazz.getName(), t);
+            }
+        }
+        // 插桩前后同一位置的字节码偏移不同，旧的位置不能再用来查找栈帧
+        StackTable.clearSites();
+        logger.info("Retransformed {} loaded classes ({} failed)", classes.size() - failed, failed);
     }
-} 
\ No newline at end of file
+}
@@ -0,0 +1,52 @@
+package com.threadsafe.agent;
+
+/**
+ * 对象的影子状态，保存该对象各个被监控实例字段的FieldState。
+ * 一个对象被访问的字段通常很少，用数组顺序查找即可，读路径无锁、无装箱。
+ */
+final class ObjectShadow {
+    private static final FieldState[] EMPTY = new FieldState[0];
+
+    private volatile FieldState[] states = EMPTY;
+
+    FieldState state(int fieldId) {
+        FieldState[] current = states;
+        for (FieldState state : current) {
+            if (state.fieldId == fieldId) {
+                return state;
+            }
+        }
+        return addState(fieldId);
+    }
+
+    /**
+     * 返回字段的状态，不存在时返回null。
+     */
+    FieldState peek(int fieldId) {
+        for (FieldState state : states) {
+            if (state.fieldId == fieldId) {
+                return state;
+            }
+        }
+        return null;
+    }
+
+    FieldState[] states() {
+        return states;
+    }
+
+    private synchronized FieldState addState(int fieldId) {
+        FieldState[] current = states;
+        for (FieldState state : current) {
+            if (state.fieldId == fieldId) {
+                return state;
+            }
+        }
+        FieldState state = new FieldState(fieldId);
+        FieldState[] grown = new FieldState[current.length + 1];
+        System.arraycopy(current, 0, grown, 0, current.length);
+        grown[current.length] = state;
+        states = grown;
+        return state;
+    }
+}
@@ -0,0 +1,579 @@
+package com.threadsafe.agent;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 根据violations.file输出的JSON-lines(或TraceAnalyzer的输出)生成报告，代替按正则解析文本日志的脚本：
+ * <pre>
+ * java -cp thread-monitor-agent.jar com.threadsafe.agent.ReportGenerator [-o 输出目录] [-j 并行度] [-d 火焰图深度] &lt;文件或目录&gt;...
+ * </pre>
+ * 生成violations_simple.json、violations_with_line.json、violations_flame.json和violations_report.html。
+ * 每个输入文件只顺序读一遍，内存中只保留该文件的stack记录和火焰图的聚合树，违规本身边读边写入临时文件；
+ * 多个输入文件(滚动出的文件)并行处理，最后按文件顺序拼接。目录参数展开为其中的*.jsonl和*.jsonl.N文件。
+ * 火焰图按字段聚合，实例字段去掉了对象的identityHashCode前缀。
+ */
+public final class ReportGenerator {
+    private static final Pattern INPUT_NAME = Pattern.compile(".*\\.jsonl(?:\\.(\\d+))?");
+    private static final String SIMPLE_FILE = "violations_simple.json";
+    private static final String WITH_LINE_FILE = "violations_with_line.json";
+    private static final String FLAME_FILE = "violations_flame.json";
+    private static final String HTML_FILE = "violations_report.html";
+
+    private final Path outputDir;
+    private final int flameDepth;
+
+    private ReportGenerator(Path outputDir, int flameDepth) {
+        this.outputDir = outputDir;
+        this.flameDepth = flameDepth;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Path outputDir = Paths.get("output");
+        int parallelism = Runtime.getRuntime().availableProcessors();
+        int flameDepth = FlameGraphSink.DEFAULT_DEPTH;
+        List<Path> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "-o":
+                    outputDir = Paths.get(args[++i]);
+                    break;
+                case "-j":
+                    parallelism = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                case "-d":
+                    flameDepth = Math.max(1, Integer.parseInt(args[++i]));
+                    break;
+                default:
+                    inputs.addAll(expand(Paths.get(args[i])));
+            }
+        }
+        if (inputs.isEmpty()) {
+            System.err.println("Usage: ReportGenerator [-o outputDir] [-j parallelism] [-d flameDepth] <file|dir>...");
+            System.exit(1);
+        }
+        long start = System.nanoTime();
+        Summary summary = new ReportGenerator(outputDir, flameDepth).generate(inputs, parallelism);
+        System.out.printf("Processed %d files, %d violations (%d malformed lines skipped), report written to %s (%d ms)%n",
+            inputs.size(), summary.violations, summary.malformed, outputDir.toAbsolutePath(),
+            (System.nanoTime() - start) / 1_000_000);
+    }
+
+    /**
+     * 目录展开为其中的输入文件，按滚动顺序排列：violations.jsonl.1、.2……在前，正在写入的violations.jsonl最后。
+     */
+    private static List<Path> expand(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return List.of(path);
+        }
+        try (Stream<Path> stream = Files.list(path)) {
+            return stream.filter(file -> INPUT_NAME.matcher(file.getFileName().toString()).matches())
+                .sorted(Comparator.comparing(ReportGenerator::baseName).thenComparingLong(ReportGenerator::rotation))
+                .collect(Collectors.toList());
+        }
+    }
+
+    private static String baseName(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.lastIndexOf(".jsonl"));
+    }
+
+    private static long rotation(Path file) {
+        Matcher matcher = INPUT_NAME.matcher(file.getFileName().toString());
+        return matcher.matches() && matcher.group(1) != null ? Long.parseLong(matcher.group(1)) : Long.MAX_VALUE;
+    }
+
+    Summary generate(List<Path> inputs, int parallelism) throws Exception {
+        Files.createDirectories(outputDir);
+        Path tempDir = Files.createTempDirectory(outputDir, ".report");
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(parallelism, inputs.size()));
+        try {
+            List<Future<Part>> futures = new ArrayList<>();
+            for (int i = 0; i < inputs.size(); i++) {
+                Path input = inputs.get(i);
+                Path prefix = tempDir.resolve("part" + i);
+                futures.add(executor.submit(() -> process(input, prefix)));
+            }
+            List<Part> parts = new ArrayList<>();
+            for (Future<Part> future : futures) {
+                parts.add(future.get());
+            }
+            return merge(parts);
+        } finally {
+            executor.shutdown();
+            try (Stream<Path> files = Files.list(tempDir)) {
+                for (Path file : files.collect(Collectors.toList())) {
+                    Files.deleteIfExists(file);
+                }
+            }
+            Files.deleteIfExists(tempDir);
+        }
+    }
+
+    /**
+     * 顺序读取一个输入文件，违规写入三个临时片段，火焰图和注解留在内存中。
+     */
+    private Part process(Path input, Path prefix) throws IOException {
+        Part part = new Part(prefix);
+        Map<Long, List<Frame>> stacks = new HashMap<>();
+        try (BufferedReader reader = Files.newBufferedReader(input, StandardCharsets.UTF_8);
+             Writer simple = newWriter(part.simple);
+             Writer withLine = newWriter(part.withLine);
+             Writer html = newWriter(part.html)) {
+            StringBuilder sb = new StringBuilder(1024);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                Map<?, ?> record;
+                try {
+                    record = (Map<?, ?>) Json.parse(line);
+                } catch (RuntimeException e) {
+                    // 进程被杀时最后一行可能不完整
+                    part.malformed++;
+                    continue;
+                }
+                Object type = record.get("type");
+                if ("stack".equals(type)) {
+                    // 追加写入的文件中可能有多次运行，后出现的同ID记录覆盖前面的
+                    stacks.put(number(record.get("id")), frames(record.get("frames")));
+                } else if ("violation".equals(type)) {
+                    Violation violation = new Violation(record, stacks);
+                    sb.setLength(0);
+                    appendSimple(sb, violation, part.count > 0);
+                    simple.append(sb);
+                    sb.setLength(0);
+                    appendWithLine(sb, violation, part.count > 0);
+                    withLine.append(sb);
+                    sb.setLength(0);
+                    appendHtml(sb, violation);
+                    html.append(sb);
+                    part.flame.add(violation, flameDepth);
+                    part.count++;
+                } else if ("annotation".equals(type)) {
+                    String key = record.get("annotation") + "|" + record.get("target") + "|"
+                        + record.get("class") + "|" + record.get("member");
+                    part.annotations.putIfAbsent(key, record);
+                }
+            }
+        }
+        return part;
+    }
+
+    private static Writer newWriter(Path file) throws IOException {
+        return new BufferedWriter(Files.newBufferedWriter(file, StandardCharsets.UTF_8));
+    }
+
+    private Summary merge(List<Part> parts) throws IOException {
+        Summary summary = new Summary();
+        FlameNode flame = new FlameNode("Thread Violations");
+        Map<String, Map<?, ?>> annotations = new LinkedHashMap<>();
+        for (Part part : parts) {
+            summary.violations += part.count;
+            summary.malformed += part.malformed;
+            flame.merge(part.flame);
+            part.annotations.forEach(annotations::putIfAbsent);
+        }
+        flame.value = summary.violations;
+
+        writeArray(outputDir.resolve(SIMPLE_FILE), parts, part -> part.simple);
+        writeArray(outputDir.resolve(WITH_LINE_FILE), parts, part -> part.withLine);
+        try (Writer writer = newWriter(outputDir.resolve(FLAME_FILE))) {
+            StringBuilder sb = new StringBuilder(4096);
+            flame.append(sb, 0);
+            writer.append(sb).append('\n');
+        }
+        try (Writer writer = newWriter(outputDir.resolve(HTML_FILE))) {
+            StringBuilder sb = new StringBuilder(4096);
+            appendHtmlHeader(sb, annotations.values(), summary.violations);
+            writer.append(sb);
+            for (Part part : parts) {
+                copy(part.html, writer);
+            }
+            writer.append(HTML_FOOTER);
+        }
+        return summary;
+    }
+
+    private interface PartFile {
+        Path of(Part part);
+    }
+
+    private static void writeArray(Path target, List<Part> parts, PartFile file) throws IOException {
+        try (Writer writer = newWriter(target)) {
+            writer.append('[');
+            boolean first = true;
+            for (Part part : parts) {
+                if (part.count == 0) {
+                    continue;
+                }
+                // 片段内的元素以",\n"分隔，片段之间补上同样的分隔
+                writer.append(first ? "\n" : ",\n");
+                copy(file.of(part), writer);
+                first = false;
+            }
+            writer.append(first ? "]\n" : "\n]\n");
+        }
+    }
+
+    private static void copy(Path source, Writer target) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(source, StandardCharsets.UTF_8)) {
+            char[] buffer = new char[8192];
+            int n;
+            while ((n = reader.read(buffer)) > 0) {
+                target.write(buffer, 0, n);
+            }
+        }
+    }
+
+    // ---------------- violations_simple.json / violations_with_line.json ----------------
+
+    private static void appendSimple(StringBuilder sb, Violation violation, boolean separator) {
+        if (separator) {
+            sb.append(",\n");
+        }
+        sb.append("  {\n    \"variable\": ");
+        Json.quote(sb, violation.variable).append(",\n");
+        appendSimpleThread(sb, "core_thread", violation.coreThread, violation.coreStack);
+        sb.append(",\n");
+        appendSimpleThread(sb, "non_core_thread", violation.nonCoreThread, violation.writeStack);
+        sb.append("\n  }");
+    }
+
+    private static void appendSimpleThread(StringBuilder sb, String key, String thread, List<Frame> stack) {
+        sb.append("    \"").append(key).append("\": {\n      \"thread_name\": ");
+        Json.quote(sb, thread).append(",\n      \"location\": ");
+        if (stack.isEmpty()) {
+            sb.append("null");
+        } else {
+            Frame top = stack.get(0);
+            Json.quote(sb, top.className + "." + simpleMethod(top.method) + ":line " + top.line);
+        }
+        sb.append("\n    }");
+    }
+
+    /**
+     * 与原来的脚本一致，<clinit>/<init>去掉尖括号。
+     */
+    private static String simpleMethod(String method) {
+        if ("<clinit>".equals(method)) {
+            return "clinit";
+        }
+        if ("<init>".equals(method)) {
+            return "init";
+        }
+        return method;
+    }
+
+    private static void appendWithLine(StringBuilder sb, Violation violation, boolean separator) {
+        if (separator) {
+            sb.append(",\n");
+        }
+        sb.append("  {\n    \"variable\": ");
+        Json.quote(sb, violation.variable).append(",\n");
+        appendStackThread(sb, "core_thread", violation.coreThread, violation.coreStack);
+        sb.append(",\n");
+        appendStackThread(sb, "non_core_thread", violation.nonCoreThread, violation.writeStack);
+        sb.append("\n  }");
+    }
+
+    private static void appendStackThread(StringBuilder sb, String key, String thread, List<Frame> stack) {
+        sb.append("    \"").append(key).append("\": {\n      \"thread_name\": ");
+        Json.quote(sb, thread).append(",\n      \"stack\": [");
+        for (int i = 0; i < stack.size(); i++) {
+            Frame frame = stack.get(i);
+            sb.append(i == 0 ? "\n" : ",\n").append("        {\n          \"class\": ");
+            Json.quote(sb, frame.className).append(",\n          \"method\": ");
+            Json.quote(sb, frame.method).append(",\n          \"file\": ");
+            Json.quote(sb, frame.file).append(",\n          \"line\": ").append(frame.line).append("\n        }");
+        }
+        sb.append(stack.isEmpty() ? "]" : "\n      ]").append("\n    }");
+    }
+
+    // ---------------- violations_report.html ----------------
+
+    private static final String HTML_HEAD = """
+        <!DOCTYPE html>
+        <html>
+        <head>
+            <meta charset="UTF-8">
+            <title>Thread Safety Violations Report</title>
+            <style>
+                body { font-family: Arial, sans-serif; margin: 20px; }
+                .violation { border: 1px solid #ddd; margin: 10px 0; padding: 15px; border-radius: 5px; }
+                .thread-info { margin: 10px 0; padding: 10px; background-color: #f5f5f5; border-radius: 3px; }
+                .stack-trace { margin-left: 20px; font-family: monospace; display: none; }
+                .variable { font-weight: bold; color: #d63031; }
+                .thread-name { color: #0984e3; font-weight: bold; cursor: pointer; user-select: none; }
+                .thread-name:before { content: "\\25B6"; margin-right: 5px; display: inline-block; transition: transform 0.2s; }
+                .thread-name.expanded:before { transform: rotate(90deg); }
+                .location { color: #00b894; }
+                h1 { color: #2d3436; }
+                .summary { margin: 20px 0; padding: 10px; background-color: #dfe6e9; border-radius: 5px; }
+                .excluded-section { margin: 20px 0; padding: 15px; background-color: #81ecec; border-radius: 5px; }
+                .excluded-title { color: #00b894; font-weight: bold; margin-bottom: 10px; }
+                .excluded-item { margin: 5px 0; padding: 5px; background-color: #fff; border-radius: 3px; }
+                .ignored-section { margin: 10px 0; padding: 15px; background-color: #74b9ff; border-radius: 5px; }
+                .ignored-title { color: #0984e3; font-weight: bold; margin-bottom: 10px; }
+                .ignored-item { margin: 5px 0; padding: 5px; background-color: #fff; border-radius: 3px; }
+            </style>
+            <script>
+                function toggleStack(element) {
+                    const stackTrace = element.nextElementSibling;
+                    const isExpanded = element.classList.toggle('expanded');
+                    stackTrace.style.display = isExpanded ? 'block' : 'none';
+                }
+            </script>
+        </head>
+        <body>
+            <h1>Thread Safety Violations Report</h1>
+        """;
+
+    private static final String HTML_FOOTER = "</body>\n</html>\n";
+
+    private static void appendHtmlHeader(StringBuilder sb, Iterable<Map<?, ?>> annotations, long total) {
+        sb.append(HTML_HEAD);
+        sb.append("    <div class=\"excluded-section\">\n        <h3>Items Excluded by @RsmThreadSafe</h3>\n");
+        appendAnnotations(sb, annotations, "RsmThreadSafe", "class", "Excluded Classes:", "excluded-item");
+        appendAnnotations(sb, annotations, "RsmThreadSafe", "method", "Excluded Methods:", "excluded-item");
+        appendAnnotations(sb, annotations, "RsmThreadSafe", "field", "Excluded Fields:", "excluded-item");
+        sb.append("    </div>\n    <div class=\"ignored-section\">\n        <h3>Items Excluded by @IgnoreStaticInit</h3>\n");
+        appendAnnotations(sb, annotations, "IgnoreStaticInit", "field",
+            "Fields ignoring static initialization writes:", "ignored-item");
+        sb.append("    </div>\n    <div class=\"summary\">\n        <h3>Violations Summary</h3>\n")
+            .append("        <p>Total violations found: ").append(total).append("</p>\n    </div>\n");
+    }
+
+    private static void appendAnnotations(StringBuilder sb, Iterable<Map<?, ?>> annotations, String annotation,
+                                          String target, String title, String itemClass) {
+        String titleClass = itemClass.startsWith("excluded") ? "excluded-title" : "ignored-title";
+        sb.append("        <div class=\"").append(titleClass).append("\">").append(title).append("</div>\n");
+        for (Map<?, ?> record : annotations) {
+            if (!annotation.equals(record.get("annotation")) || !target.equals(record.get("target"))) {
+                continue;
+            }
+            String name = String.valueOf(record.get("class")).replace('/', '.');
+            if (record.get("member") != null) {
+                name += "." + record.get("member");
+            }
+            sb.append("        <div class=\"").append(itemClass).append("\">");
+            escapeHtml(sb, name).append("</div>\n");
+        }
+    }
+
+    private static void appendHtml(StringBuilder sb, Violation violation) {
+        sb.append("    <div class=\"violation\">\n        <div class=\"variable\">Variable: ");
+        escapeHtml(sb, violation.variable).append("</div>\n");
+        appendHtmlThread(sb, "RSM Thread", violation.coreThread, violation.coreStack);
+        appendHtmlThread(sb, "Non-RSM Thread", violation.nonCoreThread, violation.writeStack);
+        sb.append("    </div>\n");
+    }
+
+    private static void appendHtmlThread(StringBuilder sb, String label, String thread, List<Frame> stack) {
+        sb.append("        <div class=\"thread-info\">\n")
+            .append("            <div class=\"thread-name\" onclick=\"toggleStack(this)\">").append(label).append(": ");
+        escapeHtml(sb, thread).append("</div>\n            <div class=\"stack-trace\">\n");
+        for (Frame frame : stack) {
+            sb.append("                <div class=\"location\">at ");
+            escapeHtml(sb, frame.className + "." + frame.method + "(" + frame.file + ":line " + frame.line + ")")
+                .append("</div>\n");
+        }
+        sb.append("            </div>\n        </div>\n");
+    }
+
+    private static StringBuilder escapeHtml(StringBuilder sb, String text) {
+        if (text == null) {
+            return sb.append("null");
+        }
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            switch (c) {
+                case '<':
+                    sb.append("&lt;");
+                    break;
+                case '>':
+                    sb.append("&gt;");
+                    break;
+                case '&':
+                    sb.append("&amp;");
+                    break;
+                case '"':
+                    sb.append("&quot;");
+                    break;
+                default:
+                    sb.append(c);
+            }
+        }
+        return sb;
+    }
+
+    // ---------------- 解析 ----------------
+
+    private static long number(Object value) {
+        return value instanceof Number ? ((Number) value).longValue() : -1;
+    }
+
+    private static List<Frame> frames(Object value) {
+        List<Frame> frames = new ArrayList<>();
+        if (value instanceof List) {
+            for (Object item : (List<?>) value) {
+                Map<?, ?> frame = (Map<?, ?>) item;
+                frames.add(new Frame((String) frame.get("class"), (String) frame.get("method"),
+                    (String) frame.get("file"), (int) number(frame.get("line"))));
+            }
+        }
+        return frames;
+    }
+
+    private static final class Frame {
+        final String className;
+        final String method;
+        final String file;
+        final int line;
+
+        Frame(String className, String method, String file, int line) {
+            this.className = className;
+            this.method = method;
+            this.file = file;
+            this.line = line;
+        }
+
+        String flameName() {
+            return FlameGraphSink.frameName(className, method);
+        }
+    }
+
+    private static final class Violation {
+        final String variable;
+        final String coreThread;
+        final String nonCoreThread;
+        final List<Frame> coreStack;
+        final List<Frame> writeStack;
+
+        Violation(Map<?, ?> record, Map<Long, List<Frame>> stacks) {
+            this.variable = (String) record.get("variable");
+            this.coreThread = (String) record.get("coreThread");
+            this.nonCoreThread = (String) record.get("nonCoreThread");
+            this.coreStack = stacks.getOrDefault(number(record.get("coreStack")), List.of());
+            this.writeStack = stacks.getOrDefault(number(record.get("writeStack")), List.of());
+        }
+
+        /**
+         * 火焰图按字段聚合：实例字段的变量名以identityHashCode开头，去掉这一段。
+         */
+        String field() {
+            if (variable == null || variable.startsWith("static.")) {
+                return variable;
+            }
+            int dot = variable.indexOf('.');
+            return dot < 0 ? variable : variable.substring(dot + 1);
+        }
+    }
+
+    /**
+     * 火焰图节点，子节点按名字合并，value为经过该节点的违规数。
+     */
+    private static final class FlameNode {
+        final String name;
+        long value;
+        Map<String, FlameNode> children;
+
+        FlameNode(String name) {
+            this.name = name;
+        }
+
+        FlameNode child(String childName) {
+            if (children == null) {
+                children = new LinkedHashMap<>();
+            }
+            return children.computeIfAbsent(childName, FlameNode::new);
+        }
+
+        void add(Violation violation, int depth) {
+            value++;
+            FlameNode variable = child(String.valueOf(violation.field()));
+            variable.value++;
+            variable.addStack("Core Thread", violation.coreStack, depth);
+            variable.addStack("Non-Core Thread", violation.writeStack, depth);
+        }
+
+        private void addStack(String label, List<Frame> stack, int depth) {
+            FlameNode node = child(label);
+            node.value++;
+            int count = FlameGraphSink.mergedFrames(stack.size(), depth);
+            for (int i = 0; i < count; i++) {
+                node = node.child(stack.get(i).flameName());
+                node.value++;
+            }
+        }
+
+        void merge(FlameNode other) {
+            value += other.value;
+            if (other.children != null) {
+                for (FlameNode child : other.children.values()) {
+                    child(child.name).merge(child);
+                }
+            }
+        }
+
+        void append(StringBuilder sb, int indent) {
+            String pad = " ".repeat(indent);
+            sb.append(pad).append("{\n").append(pad).append("  \"name\": ");
+            Json.quote(sb, name).append(",\n").append(pad).append("  \"value\": ").append(value);
+            if (children != null && !children.isEmpty()) {
+                sb.append(",\n").append(pad).append("  \"children\": [\n");
+                boolean first = true;
+                for (FlameNode child : children.values()) {
+                    if (!first) {
+                        sb.append(",\n");
+                    }
+                    child.append(sb, indent + 4);
+                    first = false;
+                }
+                sb.append('\n').append(pad).append("  ]");
+            }
+            sb.append('\n').append(pad).append('}');
+        }
+    }
+
+    private static final class Part {
+        final Path simple;
+        final Path withLine;
+        final Path html;
+        final FlameNode flame = new FlameNode("Thread Violations");
+        final Map<String, Map<?, ?>> annotations = new LinkedHashMap<>();
+        long count;
+        long malformed;
+
+        Part(Path prefix) {
+            this.simple = prefix.resolveSibling(prefix.getFileName() + ".simple");
+            this.withLine = prefix.resolveSibling(prefix.getFileName() + ".line");
+            this.html = prefix.resolveSibling(prefix.getFileName() + ".html");
+        }
+    }
+
+    static final class Summary {
+        long violations;
+        long malformed;
+    }
+}
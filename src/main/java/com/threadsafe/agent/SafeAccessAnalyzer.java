@@ -0,0 +1,562 @@
+package com.threadsafe.agent;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.FieldVisitor;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * 插桩前的静态分析，找出不需要检查的字段访问：
+ * <ul>
+ *     <li>只在构造方法中对this赋值(静态字段只在&lt;clinit&gt;中赋值)的private字段，与final字段同样处理</li>
+ *     <li>构造方法中this逃逸之前对this字段的写入，此时对象还不可能被其他线程看到</li>
+ *     <li>同一个基本块中对同一对象同一字段的重复读(或重复写)，只保留第一次检查</li>
+ * </ul>
+ * 分析只跟踪操作数栈上的值是否来自某个局部变量，遇到标签、跳转、方法调用等就放弃已知信息，
+ * 无法确定时一律按需要检查处理。结果按字段指令在方法中的序号给出，插桩时按相同顺序对应。
+ * 同时记录哪些方法含有字段指令，不含的方法插桩时原样复制。
+ */
+final class SafeAccessAnalyzer extends ClassVisitor {
+    private static volatile boolean enabled = true;
+
+    // 栈上值的来源：UNKNOWN为未知，其余为"局部变量下标 + 1"，实例方法中THIS即局部变量0
+    private static final int UNKNOWN = 0;
+    private static final int THIS = 1;
+
+    private static final BitSet NONE = new BitSet();
+    // I2L I2F I2D L2I L2F L2D F2I F2L F2D D2I D2L D2F I2B I2C I2S 的操作数和结果大小
+    private static final int[] CONVERT_FROM = {1, 1, 1, 2, 2, 2, 1, 1, 1, 2, 2, 2, 1, 1, 1};
+    private static final int[] CONVERT_TO = {2, 1, 2, 1, 1, 2, 1, 2, 2, 1, 2, 1, 1, 1, 1};
+
+    private String className;
+    // 存在嵌套类(Java 11+的nestmate)时，其他类可以直接写private字段，不再推断effectively final
+    private boolean hasNestmates;
+    private final Map<String, Boolean> candidates = new HashMap<>();
+    private final Set<String> writtenOutsideInit = new HashSet<>();
+    private final Map<String, BitSet> skipped = new HashMap<>();
+    private final Set<String> methodsWithFieldAccess = new HashSet<>();
+
+    private SafeAccessAnalyzer() {
+        super(Opcodes.ASM9);
+    }
+
+    static void setEnabled(boolean on) {
+        enabled = on;
+    }
+
+    /**
+     * 分析一个类。消除检查关闭(prepass=false)时只提供方法是否含有字段指令的信息。
+     */
+    static SafeAccessAnalyzer analyze(ClassReader reader) {
+        SafeAccessAnalyzer analyzer = new SafeAccessAnalyzer();
+        reader.accept(analyzer, ClassReader.SKIP_DEBUG | ClassReader.SKIP_FRAMES);
+        return analyzer;
+    }
+
+    /**
+     * 字段是否是只在初始化时赋值的private字段。
+     */
+    boolean isEffectivelyFinal(String field) {
+        return enabled && !hasNestmates && candidates.containsKey(field) && !writtenOutsideInit.contains(field);
+    }
+
+    /**
+     * 方法中可以不检查的字段指令序号(按GETFIELD/PUTFIELD/GETSTATIC/PUTSTATIC出现的顺序从0计数)。
+     */
+    BitSet skippedAccesses(String method, String descriptor) {
+        return enabled ? skipped.getOrDefault(method + descriptor, NONE) : NONE;
+    }
+
+    /**
+     * 方法中是否有字段指令(开启数组检查时包括数组元素指令)。
+     */
+    boolean hasFieldAccess(String method, String descriptor) {
+        return methodsWithFieldAccess.contains(method + descriptor);
+    }
+
+    @Override
+    public void visit(int version, int access, String name, String signature, String superName, String[] interfaces) {
+        className = name;
+    }
+
+    @Override
+    public void visitNestHost(String nestHost) {
+        hasNestmates = true;
+    }
+
+    @Override
+    public void visitNestMember(String nestMember) {
+        hasNestmates = true;
+    }
+
+    @Override
+    public FieldVisitor visitField(int access, String name, String descriptor, String signature, Object value) {
+        // final字段本来就不检查，volatile字段在happens-before检测中是同步点，都不参与推断
+        if ((access & Opcodes.ACC_PRIVATE) != 0 && (access & (Opcodes.ACC_FINAL | Opcodes.ACC_VOLATILE)) == 0) {
+            candidates.put(name, (access & Opcodes.ACC_STATIC) != 0);
+        }
+        return null;
+    }
+
+    @Override
+    public MethodVisitor visitMethod(int access, String name, String descriptor, String signature, String[] exceptions) {
+        if ((access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+            return null;
+        }
+        return new MethodAnalyzer(name, descriptor, (access & Opcodes.ACC_STATIC) != 0);
+    }
+
+    private final class MethodAnalyzer extends MethodVisitor {
+        private final String methodKey;
+        private final boolean isInit;
+        private final boolean isClinit;
+        private final boolean isStatic;
+        // 去重在happens-before检测中不安全：两次volatile读之间可能有新的发布
+        private final boolean dedupe = !HappensBefore.isEnabled();
+
+        private int[] stack = new int[16];
+        private int sp;
+        private int fieldIndex;
+        private final BitSet redundant = new BitSet();
+        private final BitSet thisWrites = new BitSet();
+        private final Set<String> seen = new HashSet<>();
+        private final Set<Label> visitedLabels = new HashSet<>();
+        private final Set<String> initWrites = new HashSet<>();
+        private boolean thisEscaped;
+        private boolean hasBackEdge;
+        private boolean storesLocal0;
+        // 开启数组检查时，只有数组指令的方法也需要插桩
+        private boolean hasArrayAccess;
+
+        MethodAnalyzer(String name, String descriptor, boolean isStatic) {
+            super(Opcodes.ASM9);
+            this.methodKey = name + descriptor;
+            this.isInit = "<init>".equals(name);
+            this.isClinit = "<clinit>".equals(name);
+            this.isStatic = isStatic;
+        }
+
+        @Override
+        public void visitInsn(int opcode) {
+            switch (opcode) {
+                case Opcodes.NOP:
+                    break;
+                case Opcodes.ACONST_NULL: case Opcodes.ICONST_M1: case Opcodes.ICONST_0: case Opcodes.ICONST_1:
+                case Opcodes.ICONST_2: case Opcodes.ICONST_3: case Opcodes.ICONST_4: case Opcodes.ICONST_5:
+                case Opcodes.FCONST_0: case Opcodes.FCONST_1: case Opcodes.FCONST_2:
+                    push(UNKNOWN);
+                    break;
+                case Opcodes.LCONST_0: case Opcodes.LCONST_1: case Opcodes.DCONST_0: case Opcodes.DCONST_1:
+                    push(UNKNOWN, 2);
+                    break;
+                case Opcodes.IALOAD: case Opcodes.FALOAD: case Opcodes.AALOAD:
+                case Opcodes.BALOAD: case Opcodes.CALOAD: case Opcodes.SALOAD:
+                    consume(2);
+                    push(UNKNOWN);
+                    hasArrayAccess = true;
+                    break;
+                case Opcodes.LALOAD: case Opcodes.DALOAD:
+                    consume(2);
+                    push(UNKNOWN, 2);
+                    hasArrayAccess = true;
+                    break;
+                case Opcodes.IASTORE: case Opcodes.FASTORE: case Opcodes.AASTORE:
+                case Opcodes.BASTORE: case Opcodes.CASTORE: case Opcodes.SASTORE:
+                    consume(3);
+                    hasArrayAccess = true;
+                    break;
+                case Opcodes.LASTORE: case Opcodes.DASTORE:
+                    consume(4);
+                    hasArrayAccess = true;
+                    break;
+                case Opcodes.POP:
+                    pop();
+                    break;
+                case Opcodes.POP2:
+                    pop();
+                    pop();
+                    break;
+                case Opcodes.DUP: {
+                    int v1 = pop();
+                    push(v1);
+                    push(v1);
+                    break;
+                }
+                case Opcodes.DUP_X1: {
+                    int v1 = pop();
+                    int v2 = pop();
+                    push(v1);
+                    push(v2);
+                    push(v1);
+                    break;
+                }
+                case Opcodes.DUP_X2: {
+                    int v1 = pop();
+                    int v2 = pop();
+                    int v3 = pop();
+                    push(v1);
+                    push(v3);
+                    push(v2);
+                    push(v1);
+                    break;
+                }
+                case Opcodes.DUP2: {
+                    int v1 = pop();
+                    int v2 = pop();
+                    push(v2);
+                    push(v1);
+                    push(v2);
+                    push(v1);
+                    break;
+                }
+                case Opcodes.DUP2_X1: {
+                    int v1 = pop();
+                    int v2 = pop();
+                    int v3 = pop();
+                    push(v2);
+                    push(v1);
+                    push(v3);
+                    push(v2);
+                    push(v1);
+                    break;
+                }
+                case Opcodes.DUP2_X2: {
+                    int v1 = pop();
+                    int v2 = pop();
+                    int v3 = pop();
+                    int v4 = pop();
+                    push(v2);
+                    push(v1);
+                    push(v4);
+                    push(v3);
+                    push(v2);
+                    push(v1);
+                    break;
+                }
+                case Opcodes.SWAP: {
+                    int v1 = pop();
+                    int v2 = pop();
+                    push(v1);
+                    push(v2);
+                    break;
+                }
+                case Opcodes.LCMP: case Opcodes.DCMPL: case Opcodes.DCMPG:
+                    consume(4);
+                    push(UNKNOWN);
+                    break;
+                case Opcodes.FCMPL: case Opcodes.FCMPG:
+                    consume(2);
+                    push(UNKNOWN);
+                    break;
+                case Opcodes.ARRAYLENGTH:
+                    consume(1);
+                    push(UNKNOWN);
+                    break;
+                case Opcodes.MONITORENTER: case Opcodes.MONITOREXIT:
+                    consume(1);
+                    reset();
+                    break;
+                case Opcodes.IRETURN: case Opcodes.LRETURN: case Opcodes.FRETURN: case Opcodes.DRETURN:
+                case Opcodes.ARETURN: case Opcodes.RETURN: case Opcodes.ATHROW:
+                    reset();
+                    break;
+                default:
+                    arithmetic(opcode);
+            }
+        }
+
+        /**
+         * IADD(96)到I2S(147)之间的算术和类型转换指令。
+         */
+        private void arithmetic(int opcode) {
+            if (opcode >= Opcodes.IADD && opcode <= Opcodes.DREM) {
+                int size = wide(opcode - Opcodes.IADD);
+                consume(size * 2);
+                push(UNKNOWN, size);
+            } else if (opcode >= Opcodes.INEG && opcode <= Opcodes.DNEG) {
+                int size = wide(opcode - Opcodes.INEG);
+                consume(size);
+                push(UNKNOWN, size);
+            } else if (opcode >= Opcodes.ISHL && opcode <= Opcodes.LUSHR) {
+                int size = (opcode - Opcodes.ISHL) % 2 == 0 ? 1 : 2;
+                consume(size + 1);
+                push(UNKNOWN, size);
+            } else if (opcode >= Opcodes.IAND && opcode <= Opcodes.LXOR) {
+                int size = (opcode - Opcodes.IAND) % 2 == 0 ? 1 : 2;
+                consume(size * 2);
+                push(UNKNOWN, size);
+            } else if (opcode >= Opcodes.I2L && opcode <= Opcodes.I2S) {
+                int index = opcode - Opcodes.I2L;
+                consume(CONVERT_FROM[index]);
+                push(UNKNOWN, CONVERT_TO[index]);
+            } else {
+                // 不认识的指令，放弃当前基本块内的信息
+                reset();
+            }
+        }
+
+        private int wide(int offset) {
+            // 指令按I、L、F、D的顺序排列
+            return offset % 4 == 1 || offset % 4 == 3 ? 2 : 1;
+        }
+
+        @Override
+        public void visitIntInsn(int opcode, int operand) {
+            if (opcode == Opcodes.NEWARRAY) {
+                consume(1);
+            }
+            push(UNKNOWN);
+        }
+
+        @Override
+        public void visitVarInsn(int opcode, int var) {
+            switch (opcode) {
+                case Opcodes.ALOAD:
+                    push(var + 1);
+                    break;
+                case Opcodes.ILOAD: case Opcodes.FLOAD:
+                    push(UNKNOWN);
+                    break;
+                case Opcodes.LLOAD: case Opcodes.DLOAD:
+                    push(UNKNOWN, 2);
+                    break;
+                case Opcodes.ASTORE:
+                    if (var == 0 && !isStatic) {
+                        storesLocal0 = true;
+                    }
+                    // this存入其他局部变量视为逃逸；局部变量改变后以它为接收者的去重记录作废
+                    consume(1);
+                    seen.clear();
+                    break;
+                case Opcodes.ISTORE: case Opcodes.FSTORE:
+                    consume(1);
+                    break;
+                case Opcodes.LSTORE: case Opcodes.DSTORE:
+                    consume(2);
+                    break;
+                default:
+                    // RET
+                    reset();
+            }
+        }
+
+        @Override
+        public void visitTypeInsn(int opcode, String type) {
+            switch (opcode) {
+                case Opcodes.NEW:
+                    push(UNKNOWN);
+                    break;
+                case Opcodes.CHECKCAST:
+                    // 类型转换不改变值的来源
+                    break;
+                case Opcodes.INSTANCEOF:
+                    pop();
+                    push(UNKNOWN);
+                    break;
+                default:
+                    // ANEWARRAY
+                    consume(1);
+                    push(UNKNOWN);
+            }
+        }
+
+        @Override
+        public void visitFieldInsn(int opcode, String owner, String name, String descriptor) {
+            int index = fieldIndex++;
+            int size = Type.getType(descriptor).getSize();
+            switch (opcode) {
+                case Opcodes.GETSTATIC:
+                    markIfSeen(index, "R", UNKNOWN, owner, name);
+                    push(UNKNOWN, size);
+                    break;
+                case Opcodes.PUTSTATIC:
+                    consume(size);
+                    markIfSeen(index, "W", UNKNOWN, owner, name);
+                    if (owner.equals(className) && Boolean.TRUE.equals(candidates.get(name)) && !isClinit) {
+                        writtenOutsideInit.add(name);
+                    }
+                    break;
+                case Opcodes.GETFIELD: {
+                    int receiver = pop();
+                    if (receiver != UNKNOWN) {
+                        markIfSeen(index, "R", receiver, owner, name);
+                    }
+                    push(UNKNOWN, size);
+                    break;
+                }
+                default: {
+                    // PUTFIELD
+                    consume(size);
+                    int receiver = pop();
+                    boolean onThis = receiver == THIS && !isStatic;
+                    if (isInit && onThis && !thisEscaped) {
+                        thisWrites.set(index);
+                    } else if (receiver != UNKNOWN) {
+                        markIfSeen(index, "W", receiver, owner, name);
+                    }
+                    if (owner.equals(className) && Boolean.FALSE.equals(candidates.get(name))) {
+                        if (isInit && onThis) {
+                            initWrites.add(name);
+                        } else {
+                            writtenOutsideInit.add(name);
+                        }
+                    }
+                }
+            }
+        }
+
+        private void markIfSeen(int index, String kind, int receiver, String owner, String name) {
+            if (dedupe && !seen.add(kind + receiver + ':' + owner + '.' + name)) {
+                redundant.set(index);
+            }
+        }
+
+        @Override
+        public void visitMethodInsn(int opcode, String owner, String name, String descriptor, boolean isInterface) {
+            consume((Type.getArgumentsAndReturnSizes(descriptor) >> 2) - 1);
+            if (opcode != Opcodes.INVOKESTATIC) {
+                int receiver = pop();
+                // super()/this()以外把this作为接收者调用方法，都可能让this逃逸
+                if (receiver == THIS && !(isInit && opcode == Opcodes.INVOKESPECIAL && "<init>".equals(name))) {
+                    escape();
+                }
+            }
+            push(UNKNOWN, Type.getReturnType(descriptor).getSize());
+            // 调用可能改变线程角色或经过同步点，之后的访问重新检查
+            seen.clear();
+        }
+
+        @Override
+        public void visitInvokeDynamicInsn(String name, String descriptor, Handle handle, Object... arguments) {
+            consume((Type.getArgumentsAndReturnSizes(descriptor) >> 2) - 1);
+            push(UNKNOWN, Type.getReturnType(descriptor).getSize());
+            seen.clear();
+        }
+
+        @Override
+        public void visitJumpInsn(int opcode, Label label) {
+            switch (opcode) {
+                case Opcodes.IF_ICMPEQ: case Opcodes.IF_ICMPNE: case Opcodes.IF_ICMPLT: case Opcodes.IF_ICMPGE:
+                case Opcodes.IF_ICMPGT: case Opcodes.IF_ICMPLE: case Opcodes.IF_ACMPEQ: case Opcodes.IF_ACMPNE:
+                    pop();
+                    pop();
+                    break;
+                case Opcodes.GOTO:
+                    break;
+                case Opcodes.JSR:
+                    reset();
+                    break;
+                default:
+                    pop();
+            }
+            if (visitedLabels.contains(label)) {
+                hasBackEdge = true;
+            }
+            if (opcode == Opcodes.GOTO) {
+                reset();
+            } else {
+                seen.clear();
+            }
+        }
+
+        @Override
+        public void visitLabel(Label label) {
+            visitedLabels.add(label);
+            reset();
+        }
+
+        @Override
+        public void visitLdcInsn(Object value) {
+            push(UNKNOWN, value instanceof Long || value instanceof Double ? 2 : 1);
+        }
+
+        @Override
+        public void visitTableSwitchInsn(int min, int max, Label dflt, Label... labels) {
+            pop();
+            reset();
+        }
+
+        @Override
+        public void visitLookupSwitchInsn(Label dflt, int[] keys, Label[] labels) {
+            pop();
+            reset();
+        }
+
+        @Override
+        public void visitMultiANewArrayInsn(String descriptor, int numDimensions) {
+            consume(numDimensions);
+            push(UNKNOWN);
+        }
+
+        @Override
+        public void visitEnd() {
+            if (fieldIndex > 0 || hasArrayAccess && ArrayMonitor.isEnabled()) {
+                methodsWithFieldAccess.add(methodKey);
+            }
+            if (storesLocal0) {
+                // 局部变量0被改写，ALOAD 0不一定是this，整个方法的结论都不可靠
+                writtenOutsideInit.addAll(initWrites);
+                return;
+            }
+            BitSet result = (BitSet) redundant.clone();
+            // 有回边时，逃逸点之前的写入也可能在逃逸之后再次执行
+            if (!(thisEscaped && hasBackEdge)) {
+                result.or(thisWrites);
+            }
+            if (!result.isEmpty()) {
+                skipped.put(methodKey, result);
+            }
+        }
+
+        private void escape() {
+            if (isInit) {
+                thisEscaped = true;
+            }
+        }
+
+        private void push(int value) {
+            if (sp == stack.length) {
+                stack = Arrays.copyOf(stack, sp << 1);
+            }
+            stack[sp++] = value;
+        }
+
+        private void push(int value, int size) {
+            for (int i = 0; i < size; i++) {
+                push(value);
+            }
+        }
+
+        private int pop() {
+            // 标签之后栈上的内容未知
+            return sp == 0 ? UNKNOWN : stack[--sp];
+        }
+
+        /**
+         * 弹出作为普通操作数使用的值，其中的this视为逃逸。
+         */
+        private void consume(int words) {
+            for (int i = 0; i < words; i++) {
+                if (pop() == THIS && !isStatic) {
+                    escape();
+                }
+            }
+        }
+
+        private void reset() {
+            // 跨基本块留在栈上的this之后的去向不再跟踪，按逃逸处理
+            consume(sp);
+            seen.clear();
+        }
+    }
+}
@@ -0,0 +1,198 @@
+package com.threadsafe.agent;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 自适应采样，只作用于读取；写入总是检查，保证所有权变化不会漏记。
+ * 每个字段的前warmup次检查全部是全量检查；之后所有权角色每保持稳定window次检查，采样间隔翻倍，
+ * 最多平均每2^maxShift次读取检查一次。字段所有权角色发生变化时恢复全量检查。
+ * 是否跳过由读取线程用线程本地的随机数决定，每个字段只共享很少变化的采样间隔，
+ * 被跳过的读取不写任何共享状态；只有被检查的读取才更新字段的计数。
+ * 配置了开销预算时，后台线程根据估算的检查耗时(读和写，写入部分无法通过采样降低)占CPU的比例整体调整读取的采样间隔。
+ * 计数器不做同步，并发下偶尔丢失计数只会让采样略有偏差。
+ */
+final class Sampler {
+    private static final Logger logger = LogManager.getLogger(Sampler.class);
+
+    static final int SKIP = 0;
+    static final int CHECK = 1;
+    static final int TIMED = 2;
+
+    // 平均每2^TIMING_SHIFT次检查计时一次，用于估算单次检查的耗时
+    private static final int TIMING_SHIFT = 6;
+    private static final int MAX_GLOBAL_SHIFT = 16;
+
+    // 未开启采样时检查路径上只读这一个字段
+    static volatile boolean active;
+
+    private static volatile SampleState[] states = new SampleState[256];
+    private static int warmup = 1000;
+    private static int window = 10000;
+    private static int maxShift = 10;
+    // 由开销预算控制的全局采样间隔
+    private static volatile int globalShift;
+    // 配置了开销预算时才统计检查次数和耗时
+    private static volatile boolean budgeted;
+
+    private static final LongAdder checks = new LongAdder();
+    private static final LongAdder timedChecks = new LongAdder();
+    private static final LongAdder timedNanos = new LongAdder();
+
+    private Sampler() {
+    }
+
+    private static final class SampleState {
+        // 读取线程只读这一项
+        volatile int shift;
+        int checked;
+        int stableChecks;
+    }
+
+    /**
+     * 配置项：sampling 是否开启采样，sampling.warmup 全量检查的访问次数，
+     * sampling.window 采样间隔翻倍前需要稳定的检查次数，sampling.maxShift 最大采样间隔的指数，
+     * sampling.budget 检查开销占总CPU的百分比上限(配置后自动开启采样)。
+     */
+    static synchronized void configure(AgentOptions options) {
+        warmup = options.getInt("sampling.warmup", 1000);
+        window = Math.max(1, options.getInt("sampling.window", 10000));
+        maxShift = Math.min(30, Math.max(0, options.getInt("sampling.maxShift", 10)));
+        String budget = options.get("sampling.budget", null);
+        active = options.getBoolean("sampling", false) || budget != null;
+        budgeted = active && budget != null;
+        if (!active) {
+            return;
+        }
+        logger.info("Sampling enabled: warmup={}, window={}, maxShift={}, budget={}%",
+            warmup, window, maxShift, budget == null ? "none" : budget);
+        if (budget != null) {
+            startBudgetController(Double.parseDouble(budget) / 100.0);
+        }
+    }
+
+    static int decide(int fieldId) {
+        SampleState state = state(fieldId);
+        // 预热期间不受全局采样间隔影响；checked只被检查过的读取写入，这里只读
+        int shift = state.checked < warmup ? 0 : Math.min(state.shift + globalShift, 30);
+        int random = 0;
+        if (shift > 0 || budgeted) {
+            random = ThreadLocalRandom.current().nextInt();
+            if ((random & ((1 << shift) - 1)) != 0) {
+                return SKIP;
+            }
+        }
+        int checked = ++state.checked;
+        if (checked < 0) {
+            // 计数溢出后从预热结束处重新计数
+            checked = state.checked = warmup + 1;
+        }
+        if (checked > warmup && ++state.stableChecks >= window && state.shift < maxShift) {
+            state.shift++;
+            state.stableChecks = 0;
+        }
+        return counted(random);
+    }
+
+    /**
+     * 写入不采样，只在配置了开销预算时计数和计时。
+     */
+    static int decideWrite() {
+        return budgeted ? counted(ThreadLocalRandom.current().nextInt()) : CHECK;
+    }
+
+    private static int counted(int random) {
+        if (!budgeted) {
+            return CHECK;
+        }
+        checks.increment();
+        // 用随机数的高位决定是否计时，与决定跳过的低位无关
+        return random >>> (32 - TIMING_SHIFT) == 0 ? TIMED : CHECK;
+    }
+
+    static void recordTime(long nanos) {
+        timedChecks.increment();
+        timedNanos.add(nanos);
+    }
+
+    /**
+     * 字段所有权的角色发生变化，恢复全量检查。
+     */
+    static void onOwnerRoleChange(int fieldId) {
+        SampleState state = state(fieldId);
+        state.shift = 0;
+        state.stableChecks = 0;
+        state.checked = 0;
+    }
+
+    private static SampleState state(int fieldId) {
+        SampleState[] table = states;
+        if (fieldId < table.length) {
+            SampleState state = table[fieldId];
+            if (state != null) {
+                return state;
+            }
+        }
+        return createState(fieldId);
+    }
+
+    private static synchronized SampleState createState(int fieldId) {
+        SampleState[] table = states;
+        if (fieldId >= table.length) {
+            int newLength = table.length;
+            while (newLength <= fieldId) {
+                newLength <<= 1;
+            }
+            SampleState[] grown = new SampleState[newLength];
+            System.arraycopy(table, 0, grown, 0, table.length);
+            table = grown;
+            states = table;
+        }
+        SampleState state = table[fieldId];
+        if (state == null) {
+            state = new SampleState();
+            table[fieldId] = state;
+        }
+        return state;
+    }
+
+    private static void startBudgetController(double budget) {
+        Thread controller = new Thread(() -> {
+            int cpus = Runtime.getRuntime().availableProcessors();
+            long last = System.nanoTime();
+            while (true) {
+                try {
+                    TimeUnit.SECONDS.sleep(1);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long now = System.nanoTime();
+                long count = checks.sumThenReset();
+                long timed = timedChecks.sumThenReset();
+                long nanos = timedNanos.sumThenReset();
+                if (timed == 0) {
+                    last = now;
+                    continue;
+                }
+                // 估算本周期检查耗时占全部CPU时间的比例
+                double usage = (double) count * nanos / timed / ((double) (now - last) * cpus);
+                last = now;
+                int shift = globalShift;
+                if (usage > budget && shift < MAX_GLOBAL_SHIFT) {
+                    globalShift = shift + 1;
+                } else if (usage < budget / 2 && shift > 0) {
+                    globalShift = shift - 1;
+                }
+                if (shift != globalShift) {
+                    logger.debug("Check overhead {}% of CPU, global sampling shift {} -> {}",
+                        String.format("%.3f", usage * 100), shift, globalShift);
+                }
+            }
+        }, "threadsafe-sampling-budget");
+        controller.setDaemon(true);
+        controller.start();
+    }
+}
@@ -0,0 +1,253 @@
+package com.threadsafe.agent;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Supplier;
+
+/**
+ * 以对象身份为key的弱引用影子状态表。
+ * 按identityHashCode分段加锁，读路径无锁；key对象被回收后对应的影子状态随之清除，
+ * 不会像字符串key那样无限增长。
+ * 设置了容量上限时，每段按CLOCK(second chance)淘汰：命中时置访问位，插入时若已满，
+ * 时钟指针跳过并清除带访问位的条目，淘汰第一个未被访问的条目，仍在频繁访问的对象不会被淘汰。
+ */
+final class ShadowTable<V> {
+    private static final int STRIPE_COUNT = 64;
+    private static final int STRIPE_MASK = STRIPE_COUNT - 1;
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final Stripe<V>[] stripes;
+    private final Supplier<V> factory;
+    private final LongAdder evictions = new LongAdder();
+    // 每段的条目上限
+    private volatile int stripeLimit = Integer.MAX_VALUE;
+
+    @SuppressWarnings("unchecked")
+    ShadowTable(Supplier<V> factory) {
+        this.factory = factory;
+        this.stripes = (Stripe<V>[]) new Stripe<?>[STRIPE_COUNT];
+        for (int i = 0; i < STRIPE_COUNT; i++) {
+            stripes[i] = new Stripe<>();
+        }
+    }
+
+    /**
+     * 返回对象对应的影子状态，不存在时创建。
+     */
+    V get(Object key) {
+        int hash = mix(System.identityHashCode(key));
+        Stripe<V> stripe = stripes[hash & STRIPE_MASK];
+        V value = stripe.find(key, hash);
+        return value != null ? value : stripe.insert(key, hash, factory, stripeLimit, evictions);
+    }
+
+    /**
+     * 返回对象对应的影子状态，不存在时返回null，不会创建。
+     */
+    V peek(Object key) {
+        int hash = mix(System.identityHashCode(key));
+        return stripes[hash & STRIPE_MASK].find(key, hash);
+    }
+
+    /**
+     * 设置总条目数上限，均分到各段；小于等于0表示不限制。
+     */
+    void setMaxSize(int maxSize) {
+        stripeLimit = maxSize <= 0 ? Integer.MAX_VALUE : Math.max(1, maxSize / STRIPE_COUNT);
+    }
+
+    long evictionCount() {
+        return evictions.sum();
+    }
+
+    int size() {
+        int size = 0;
+        for (Stripe<V> stripe : stripes) {
+            size += stripe.count;
+        }
+        return size;
+    }
+
+    void clear() {
+        for (Stripe<V> stripe : stripes) {
+            stripe.clear();
+        }
+    }
+
+    void forEach(BiConsumer<Object, V> action) {
+        for (Stripe<V> stripe : stripes) {
+            for (Entry<V> head : stripe.table) {
+                for (Entry<V> e = head; e != null; e = e.next) {
+                    Object key = e.get();
+                    if (key != null) {
+                        action.accept(key, e.value);
+                    }
+                }
+            }
+        }
+    }
+
+    private static int mix(int h) {
+        // identityHashCode低位分布一般，打散后低位选段、高位选桶
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    }
+
+    private static final class Entry<V> extends WeakReference<Object> {
+        final int hash;
+        final V value;
+        final Entry<V> next;
+        // CLOCK访问位，不做同步，并发下丢失一次置位只会让淘汰略有偏差
+        boolean referenced;
+
+        Entry(Object key, int hash, V value, Entry<V> next, ReferenceQueue<Object> queue) {
+            super(key, queue);
+            this.hash = hash;
+            this.value = value;
+            this.next = next;
+        }
+    }
+
+    private static final class Stripe<V> {
+        private final ReferenceQueue<Object> queue = new ReferenceQueue<>();
+        volatile Entry<V>[] table = newTable(INITIAL_CAPACITY);
+        volatile int count;
+        // CLOCK指针，指向下一个要扫描的桶
+        private int hand;
+
+        V find(Object key, int hash) {
+            Entry<V>[] tab = table;
+            for (Entry<V> e = tab[(hash >>> 6) & (tab.length - 1)]; e != null; e = e.next) {
+                if (e.hash == hash && e.get() == key) {
+                    if (!e.referenced) {
+                        // 已经置位时不再写，避免热点对象的缓存行来回失效
+                        e.referenced = true;
+                    }
+                    return e.value;
+                }
+            }
+            return null;
+        }
+
+        synchronized V insert(Object key, int hash, Supplier<V> factory, int limit, LongAdder evictions) {
+            expungeStaleEntries();
+            V existing = find(key, hash);
+            if (existing != null) {
+                return existing;
+            }
+            while (count >= limit && evictOne()) {
+                evictions.increment();
+            }
+            Entry<V>[] tab = table;
+            if (count >= (tab.length >> 1) + (tab.length >> 2)) {
+                tab = resize(tab);
+            }
+            int index = (hash >>> 6) & (tab.length - 1);
+            V value = factory.get();
+            tab[index] = new Entry<>(key, hash, value, tab[index], queue);
+            // 通过volatile写发布新节点
+            table = tab;
+            count++;
+            return value;
+        }
+
+        synchronized void clear() {
+            while (queue.poll() != null) {
+                // 丢弃已入队的引用
+            }
+            table = newTable(INITIAL_CAPACITY);
+            count = 0;
+        }
+
+        /**
+         * 按CLOCK淘汰一个条目。最多扫描两圈：第一圈清除访问位，第二圈必然能找到可淘汰的条目。
+         */
+        private boolean evictOne() {
+            Entry<V>[] tab = table;
+            for (int scanned = 0; scanned < tab.length * 2; scanned++) {
+                int index = hand & (tab.length - 1);
+                hand = (index + 1) & (tab.length - 1);
+                Entry<V> head = tab[index];
+                for (Entry<V> e = head; e != null; e = e.next) {
+                    if (e.referenced && e.get() != null) {
+                        e.referenced = false;
+                        continue;
+                    }
+                    tab[index] = prepend(head, e, e.next);
+                    count--;
+                    // 这次没扫完的同一个桶下次继续
+                    hand = index;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private Entry<V>[] resize(Entry<V>[] oldTab) {
+            Entry<V>[] newTab = newTable(oldTab.length << 1);
+            int live = 0;
+            for (Entry<V> head : oldTab) {
+                for (Entry<V> e = head; e != null; e = e.next) {
+                    Object key = e.get();
+                    if (key == null) {
+                        continue;
+                    }
+                    int index = (e.hash >>> 6) & (newTab.length - 1);
+                    newTab[index] = new Entry<>(key, e.hash, e.value, newTab[index], queue);
+                    newTab[index].referenced = e.referenced;
+                    live++;
+                }
+            }
+            count = live;
+            return newTab;
+        }
+
+        @SuppressWarnings("unchecked")
+        private void expungeStaleEntries() {
+            Entry<V> stale;
+            while ((stale = (Entry<V>) queue.poll()) != null) {
+                Entry<V>[] tab = table;
+                int index = (stale.hash >>> 6) & (tab.length - 1);
+                // 节点的next是final的，删除时复制被删节点之前的链表前缀
+                Entry<V> head = tab[index];
+                Entry<V> rebuilt = null;
+                boolean found = false;
+                for (Entry<V> e = head; e != null; e = e.next) {
+                    if (e == stale) {
+                        found = true;
+                        rebuilt = prepend(head, e, e.next);
+                        break;
+                    }
+                }
+                if (found) {
+                    tab[index] = rebuilt;
+                    count--;
+                }
+            }
+        }
+
+        private Entry<V> prepend(Entry<V> head, Entry<V> removed, Entry<V> tail) {
+            Entry<V> result = tail;
+            for (Entry<V> e = head; e != removed; e = e.next) {
+                Object key = e.get();
+                if (key != null) {
+                    result = new Entry<>(key, e.hash, e.value, result, queue);
+                    result.referenced = e.referenced;
+                } else {
+                    // 同一条链上已被回收的节点顺带丢弃，之后出队时会因找不到而跳过
+                    count--;
+                }
+            }
+            return result;
+        }
+
+        @SuppressWarnings("unchecked")
+        private static <V> Entry<V>[] newTable(int capacity) {
+            return (Entry<V>[]) new Entry<?>[capacity];
+        }
+    }
+}
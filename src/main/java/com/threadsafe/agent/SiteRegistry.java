@@ -0,0 +1,55 @@
+package com.threadsafe.agent;
+
+/**
+ * 访问点ID注册表，只在记录模式下使用。
+ * 插桩时为每条被检查的字段指令分配一个稠密的整数ID，记录中只写这个ID，
+ * 离线分析时再映射回类、方法和行号，代替在应用线程上采集调用栈。
+ */
+final class SiteRegistry {
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private static volatile Site[] sites = new Site[INITIAL_CAPACITY];
+    private static int size;
+
+    private SiteRegistry() {
+    }
+
+    static final class Site {
+        final int id;
+        // 内部类名，如com/foo/Bar
+        final String owner;
+        final String method;
+        final String file;
+        final int line;
+
+        Site(int id, String owner, String method, String file, int line) {
+            this.id = id;
+            this.owner = owner;
+            this.method = method;
+            this.file = file;
+            this.line = line;
+        }
+    }
+
+    static synchronized int register(String owner, String method, String file, int line) {
+        int id = size;
+        Site[] table = sites;
+        if (id == table.length) {
+            Site[] grown = new Site[table.length << 1];
+            System.arraycopy(table, 0, grown, 0, table.length);
+            table = grown;
+        }
+        table[id] = new Site(id, owner, method, file, line);
+        sites = table;
+        size = id + 1;
+        return id;
+    }
+
+    static Site get(int id) {
+        return sites[id];
+    }
+
+    static synchronized int size() {
+        return size;
+    }
+}
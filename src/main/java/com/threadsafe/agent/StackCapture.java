@@ -0,0 +1,108 @@
+package com.threadsafe.agent;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * 基于StackWalker的调用栈采集。
+ * 只物化前maxDepth个栈帧，跳过agent自身的栈帧，采集结果直接驻留到StackTable中，返回栈ID。
+ */
+public final class StackCapture {
+    private static final StackWalker walker = StackWalker.getInstance();
+    private static final String CLINIT = "<clinit>";
+
+    private static volatile int maxDepth = 64;
+    private static final String AGENT_PREFIX = "com.threadsafe.agent.";
+    private static volatile String[] skippedPrefixes = {AGENT_PREFIX};
+
+    private StackCapture() {
+    }
+
+    /**
+     * 配置项：stack.depth 采集的最大深度，stack.skip 不采集的栈帧的类名前缀(逗号分隔，agent自身的栈帧总是跳过)。
+     */
+    static void configure(AgentOptions options) {
+        setMaxDepth(options.getInt("stack.depth", 64));
+        List<String> prefixes = new ArrayList<>();
+        prefixes.add(AGENT_PREFIX);
+        prefixes.addAll(options.getList("stack.skip"));
+        setSkippedPrefixes(prefixes.toArray(new String[0]));
+    }
+
+    public static void setMaxDepth(int depth) {
+        maxDepth = Math.max(1, depth);
+    }
+
+    public static void setSkippedPrefixes(String... prefixes) {
+        skippedPrefixes = prefixes.clone();
+    }
+
+    /**
+     * 采集当前线程的调用栈并返回StackTable中的栈ID。
+     */
+    public static int capture() {
+        return walker.walk(StackCapture::intern);
+    }
+
+    /**
+     * 当前线程是否处于某个类的静态初始化中。
+     */
+    public static boolean inStaticInitialization() {
+        return walker.walk(frames -> frames.anyMatch(frame -> CLINIT.equals(frame.getMethodName())));
+    }
+
+    private static int intern(Stream<StackWalker.StackFrame> stream) {
+        int depth = maxDepth;
+        String[] prefixes = skippedPrefixes;
+        int[] frameIds = new int[Math.min(depth, 32)];
+        int count = 0;
+        boolean staticInit = false;
+        boolean overflow = false;
+        Iterator<StackWalker.StackFrame> it = stream.iterator();
+        while (it.hasNext()) {
+            StackWalker.StackFrame frame = it.next();
+            if (!staticInit && CLINIT.equals(frame.getMethodName())) {
+                staticInit = true;
+            }
+            if (count == depth || overflow) {
+                // 超出最大深度或栈帧表已满后不再物化，只继续查找<clinit>
+                if (staticInit) {
+                    break;
+                }
+                continue;
+            }
+            if (isSkipped(frame.getClassName(), prefixes)) {
+                continue;
+            }
+            if (count == frameIds.length) {
+                frameIds = Arrays.copyOf(frameIds, Math.min(depth, count << 1));
+            }
+            int frameId = StackTable.internFrame(frame);
+            if (frameId < 0) {
+                // 栈帧表已满，这个栈只能记为溢出栈
+                overflow = true;
+                continue;
+            }
+            frameIds[count++] = frameId;
+        }
+        if (overflow) {
+            return StackTable.overflowStack(staticInit);
+        }
+        if (count != frameIds.length) {
+            frameIds = Arrays.copyOf(frameIds, count);
+        }
+        return StackTable.internStack(frameIds, staticInit);
+    }
+
+    private static boolean isSkipped(String className, String[] prefixes) {
+        for (String prefix : prefixes) {
+            if (className.startsWith(prefix)) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
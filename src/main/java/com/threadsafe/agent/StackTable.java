@@ -0,0 +1,227 @@
+package com.threadsafe.agent;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 调用栈常量表。
+ * 栈帧和调用栈都做hash-consing：同一个写入位置无论出现多少次只保存一份，
+ * 其他地方只引用一个很小的整数ID。
+ * 可以限制栈帧数和调用栈数：达到上限后不再驻留新的栈，新出现的栈统一引用一个
+ * 只包含标记帧的溢出栈(仍保留是否处于静态初始化的信息)，已有的栈照常复用。
+ */
+public final class StackTable {
+    private static final int INITIAL_CAPACITY = 256;
+
+    private static final Map<StackTraceElement, Integer> frameIds = new ConcurrentHashMap<>();
+    private static final Map<StackKey, Integer> stackIds = new ConcurrentHashMap<>();
+    // 按(类名, 方法名, 方法描述符, 字节码偏移)查找已驻留的栈帧，命中时不需要构造StackTraceElement。
+    // 不区分类加载器：不同加载器定义的同名类共用条目，报告中的源文件和行号取第一次见到的那个类；
+    // 类被重新转换后字节码偏移会变，由MonitorAgent在重新转换之后调用clearSites清空
+    private static final Map<FrameSite, Integer> siteIds = new ConcurrentHashMap<>();
+    private static volatile StackTraceElement[] frames = new StackTraceElement[INITIAL_CAPACITY];
+    private static volatile StackKey[] stacks = new StackKey[INITIAL_CAPACITY];
+    private static int frameCount;
+    private static int stackCount;
+    private static volatile int maxFrames = Integer.MAX_VALUE;
+    private static volatile int maxStacks = Integer.MAX_VALUE;
+    private static final StackTraceElement OVERFLOW_FRAME =
+        new StackTraceElement("<threadsafe>", "stackTableFull", null, -1);
+
+    private StackTable() {
+    }
+
+    private static final class StackKey {
+        final int[] frameIds;
+        // 栈中(包括超出最大深度被截断的部分)是否存在<clinit>
+        final boolean staticInit;
+        final int hash;
+
+        StackKey(int[] frameIds, boolean staticInit) {
+            this.frameIds = frameIds;
+            this.staticInit = staticInit;
+            this.hash = Arrays.hashCode(frameIds) * 31 + (staticInit ? 1 : 0);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof StackKey)) {
+                return false;
+            }
+            StackKey other = (StackKey) o;
+            return staticInit == other.staticInit && Arrays.equals(frameIds, other.frameIds);
+        }
+    }
+
+    private static final class FrameSite {
+        final String className;
+        final String methodName;
+        // 同名重载方法在相同偏移处访问字段很常见，必须用描述符区分
+        final String descriptor;
+        final int bci;
+        final int hash;
+
+        FrameSite(String className, String methodName, String descriptor, int bci) {
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.bci = bci;
+            this.hash = ((className.hashCode() * 31 + methodName.hashCode()) * 31 + descriptor.hashCode()) * 31 + bci;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof FrameSite)) {
+                return false;
+            }
+            FrameSite other = (FrameSite) o;
+            return bci == other.bci && className.equals(other.className) && methodName.equals(other.methodName)
+                && descriptor.equals(other.descriptor);
+        }
+    }
+
+    /**
+     * 设置栈帧数和调用栈数上限，小于等于0表示不限制。
+     */
+    public static void setLimits(int frameLimit, int stackLimit) {
+        maxFrames = frameLimit <= 0 ? Integer.MAX_VALUE : frameLimit;
+        maxStacks = stackLimit <= 0 ? Integer.MAX_VALUE : stackLimit;
+    }
+
+    /**
+     * 返回栈帧ID；栈帧表已满且该帧不存在时返回-1。
+     * 按栈帧位置查找，只有第一次见到该位置时才物化StackTraceElement(需要解析源文件和行号)。
+     */
+    static int internFrame(StackWalker.StackFrame frame) {
+        FrameSite site = new FrameSite(frame.getClassName(), frame.getMethodName(), frame.getDescriptor(),
+            frame.getByteCodeIndex());
+        Integer id = siteIds.get(site);
+        if (id != null) {
+            return id;
+        }
+        int frameId = internFrame(frame.toStackTraceElement(), true);
+        if (frameId >= 0) {
+            siteIds.put(site, frameId);
+        }
+        return frameId;
+    }
+
+    /**
+     * 清空按栈帧位置的查找表，已驻留的栈帧和调用栈不受影响。
+     */
+    static void clearSites() {
+        siteIds.clear();
+    }
+
+    private static int internFrame(StackTraceElement frame, boolean bounded) {
+        Integer id = frameIds.get(frame);
+        if (id != null) {
+            return id;
+        }
+        synchronized (frameIds) {
+            id = frameIds.get(frame);
+            if (id != null) {
+                return id;
+            }
+            if (bounded && frameCount >= maxFrames) {
+                return -1;
+            }
+            int newId = frameCount;
+            StackTraceElement[] table = frames;
+            if (newId == table.length) {
+                table = Arrays.copyOf(table, table.length << 1);
+            }
+            table[newId] = frame;
+            frames = table;
+            frameCount = newId + 1;
+            frameIds.put(frame, newId);
+            return newId;
+        }
+    }
+
+    static int internStack(int[] frameIdArray, boolean staticInit) {
+        return internStack(new StackKey(frameIdArray, staticInit), true);
+    }
+
+    /**
+     * 表已满时使用的溢出栈ID。
+     */
+    static int overflowStack(boolean staticInit) {
+        int[] marker = {internFrame(OVERFLOW_FRAME, false)};
+        return internStack(new StackKey(marker, staticInit), false);
+    }
+
+    private static int internStack(StackKey key, boolean bounded) {
+        Integer id = stackIds.get(key);
+        if (id != null) {
+            return id;
+        }
+        synchronized (stackIds) {
+            id = stackIds.get(key);
+            if (id != null) {
+                return id;
+            }
+            if (bounded && stackCount >= maxStacks) {
+                return overflowStack(key.staticInit);
+            }
+            int newId = stackCount;
+            StackKey[] table = stacks;
+            if (newId == table.length) {
+                table = Arrays.copyOf(table, table.length << 1);
+            }
+            table[newId] = key;
+            stacks = table;
+            stackCount = newId + 1;
+            stackIds.put(key, newId);
+            return newId;
+        }
+    }
+
+    public static StackTraceElement[] frames(int stackId) {
+        int[] ids = stacks[stackId].frameIds;
+        StackTraceElement[] table = frames;
+        StackTraceElement[] result = new StackTraceElement[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            result[i] = table[ids[i]];
+        }
+        return result;
+    }
+
+    /**
+     * 栈中各帧的ID，返回内部数组，调用方不能修改。
+     */
+    static int[] frameIds(int stackId) {
+        return stacks[stackId].frameIds;
+    }
+
+    static StackTraceElement frame(int frameId) {
+        return frames[frameId];
+    }
+
+    public static boolean isStaticInit(int stackId) {
+        return stacks[stackId].staticInit;
+    }
+
+    public static int stackCount() {
+        synchronized (stackIds) {
+            return stackCount;
+        }
+    }
+
+    public static int frameCount() {
+        synchronized (frameIds) {
+            return frameCount;
+        }
+    }
+}
@@ -0,0 +1,233 @@
+package com.threadsafe.agent;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 线程角色判定。
+ * 核心线程规则通过agent参数core=...配置，多条规则以逗号分隔：
+ * <ul>
+ *     <li>CONTRACT_WORKER：线程名完全匹配</li>
+ *     <li>MD-DISPATCH-* 或 prefix:MD-DISPATCH-：线程名前缀匹配</li>
+ *     <li>regex:CONTRACT_WORKER-\d+：线程名正则匹配</li>
+ *     <li>group:core-pool：线程组名完全匹配</li>
+ * </ul>
+ * 每个线程的角色只解析一次并缓存在线程本地状态中，线程改名或规则变更后才会重新解析。
+ * <p>
+ * 虚拟线程通常没有名字，无法按线程名判定。core.inherit配置规则都不匹配时是否沿用创建者的角色：
+ * virtual(默认)只对虚拟线程生效，即提交任务的调度上下文是核心线程时，它创建的虚拟线程也是核心线程；
+ * all对所有线程生效；none不继承。创建者的角色在创建线程时(InheritableThreadLocal.childValue，
+ * 在父线程中执行)确定。
+ */
+public final class ThreadRoles {
+    private static final Logger logger = LogManager.getLogger(ThreadRoles.class);
+    private static final String DEFAULT_CORE_THREAD = "CONTRACT_WORKER";
+
+    private static volatile Rule[] coreRules = {new Rule(Kind.EXACT, DEFAULT_CORE_THREAD)};
+    private static volatile int version;
+
+    static final int INHERIT_NONE = 0;
+    static final int INHERIT_VIRTUAL = 1;
+    static final int INHERIT_ALL = 2;
+    private static volatile int inherit = INHERIT_VIRTUAL;
+
+    // 值本身没有意义，只是让每个线程都有这一项，创建子线程时才会调用childValue
+    private static final InheritableThreadLocal<Byte> creatorRole = new InheritableThreadLocal<>() {
+        @Override
+        protected Byte initialValue() {
+            return ThreadState.ROLE_UNSET;
+        }
+
+        @Override
+        protected Byte childValue(Byte parentValue) {
+            // 在父线程中执行
+            return isCore(Thread.currentThread()) ? ThreadState.ROLE_CORE : ThreadState.ROLE_NON_CORE;
+        }
+    };
+
+    // Thread.isVirtual()从Java 21开始才有，更早的版本没有虚拟线程
+    private static final MethodHandle IS_VIRTUAL = findIsVirtual();
+
+    private ThreadRoles() {
+    }
+
+    private enum Kind {
+        EXACT,
+        PREFIX,
+        REGEX,
+        GROUP
+    }
+
+    private static final class Rule {
+        final Kind kind;
+        final String value;
+        final Pattern pattern;
+
+        Rule(Kind kind, String value) {
+            this.kind = kind;
+            this.value = value;
+            this.pattern = kind == Kind.REGEX ? Pattern.compile(value) : null;
+        }
+
+        boolean matches(Thread thread, String name) {
+            switch (kind) {
+                case EXACT:
+                    return name.equals(value);
+                case PREFIX:
+                    return name.startsWith(value);
+                case REGEX:
+                    return pattern.matcher(name).matches();
+                case GROUP:
+                    ThreadGroup group = thread.getThreadGroup();
+                    return group != null && group.getName().equals(value);
+                default:
+                    return false;
+            }
+        }
+
+        static Rule parse(String spec) {
+            if (spec.startsWith("prefix:")) {
+                return new Rule(Kind.PREFIX, spec.substring("prefix:".length()));
+            }
+            if (spec.startsWith("regex:")) {
+                return new Rule(Kind.REGEX, spec.substring("regex:".length()));
+            }
+            if (spec.startsWith("group:")) {
+                return new Rule(Kind.GROUP, spec.substring("group:".length()));
+            }
+            if (spec.endsWith("*")) {
+                return new Rule(Kind.PREFIX, spec.substring(0, spec.length() - 1));
+            }
+            return new Rule(Kind.EXACT, spec);
+        }
+
+        @Override
+        public String toString() {
+            return kind.name().toLowerCase() + ":" + value;
+        }
+    }
+
+    /**
+     * 替换核心线程规则，所有线程的缓存角色随之失效。规则为空时使用默认的CONTRACT_WORKER。
+     */
+    public static synchronized void configure(List<String> specs) {
+        List<Rule> rules = new ArrayList<>();
+        for (String spec : specs) {
+            rules.add(Rule.parse(spec));
+        }
+        if (rules.isEmpty()) {
+            rules.add(new Rule(Kind.EXACT, DEFAULT_CORE_THREAD));
+        }
+        coreRules = rules.toArray(new Rule[0]);
+        version++;
+        logger.info("Core thread rules: {}", rules);
+    }
+
+    /**
+     * 配置项：core.inherit 规则都不匹配时是否沿用创建者的角色(none/virtual/all)。
+     */
+    static void configureInheritance(String policy) {
+        switch (policy) {
+            case "none":
+                inherit = INHERIT_NONE;
+                break;
+            case "all":
+                inherit = INHERIT_ALL;
+                break;
+            case "virtual":
+                inherit = INHERIT_VIRTUAL;
+                break;
+            default:
+                logger.warn("Unknown core.inherit policy {}, using virtual", policy);
+                inherit = INHERIT_VIRTUAL;
+        }
+        version++;
+    }
+
+    /**
+     * 创建当前线程的线程当时的角色，在当前线程第一次创建ThreadState时调用。
+     */
+    static byte inheritedRole() {
+        return creatorRole.get();
+    }
+
+    static boolean isVirtual(Thread thread) {
+        if (IS_VIRTUAL == null) {
+            return false;
+        }
+        try {
+            return (boolean) IS_VIRTUAL.invokeExact(thread);
+        } catch (Throwable e) {
+            return false;
+        }
+    }
+
+    private static MethodHandle findIsVirtual() {
+        try {
+            return MethodHandles.publicLookup().findVirtual(Thread.class, "isVirtual",
+                MethodType.methodType(boolean.class));
+        } catch (ReflectiveOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * 判断当前线程是否为核心线程，thread必须是Thread.currentThread()。
+     */
+    static boolean isCore(Thread thread) {
+        return isCore(thread, ThreadState.current());
+    }
+
+    /**
+     * 同isCore(Thread)，调用方已经取得当前线程的ThreadState时使用，省去一次ThreadLocal查找。
+     */
+    static boolean isCore(Thread thread, ThreadState state) {
+        // 线程名是同一个对象且规则未变更时直接返回缓存的角色
+        if (thread.getName() != state.resolvedName || state.resolvedVersion != version) {
+            resolve(thread, state);
+        }
+        return state.core;
+    }
+
+    static void mark(AccessMonitor.ThreadType role) {
+        ThreadState state = ThreadState.current();
+        state.explicitRole = role == AccessMonitor.ThreadType.CORE ? ThreadState.ROLE_CORE : ThreadState.ROLE_NON_CORE;
+        state.resolvedVersion = -1;
+    }
+
+    static void clearMark() {
+        ThreadState state = ThreadState.current();
+        state.explicitRole = ThreadState.ROLE_UNSET;
+        state.resolvedVersion = -1;
+    }
+
+    private static void resolve(Thread thread, ThreadState state) {
+        int currentVersion = version;
+        String name = thread.getName();
+        boolean core;
+        if (state.explicitRole != ThreadState.ROLE_UNSET) {
+            core = state.explicitRole == ThreadState.ROLE_CORE;
+        } else {
+            core = false;
+            for (Rule rule : coreRules) {
+                if (rule.matches(thread, name)) {
+                    core = true;
+                    break;
+                }
+            }
+            if (!core && state.inheritedRole == ThreadState.ROLE_CORE) {
+                int policy = inherit;
+                core = policy == INHERIT_ALL || policy == INHERIT_VIRTUAL && isVirtual(thread);
+            }
+        }
+        state.core = core;
+        state.resolvedName = name;
+        state.resolvedVersion = currentVersion;
+    }
+}
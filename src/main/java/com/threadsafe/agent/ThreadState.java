@@ -0,0 +1,140 @@
+package com.threadsafe.agent;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 线程的本地状态，缓存该线程的角色判定结果。
+ * 以解析时的线程名对象和规则版本作为缓存校验，线程改名或规则变更后重新解析。
+ * <p>
+ * 检查路径上线程只以两个整数标识，不使用线程名，也不依赖Thread.getId()：
+ * ownerId写入变量的所有权字，每个线程一个，只增不回收，只用31位(数组的所有权按int压缩，回绕前足以区分二十亿个线程)；
+ * id是紧凑编号，用作向量时钟下标和记录模式的线程号。happens-before检测开启时，
+ * 线程结束(Thread对象被回收)后其id被回收复用，向量时钟的长度只取决于同时存活的线程数。
+ * 没有开启happens-before检测时不分配向量时钟，每个线程(包括虚拟线程)只占几十字节。
+ */
+final class ThreadState {
+    private static final ThreadLocal<ThreadState> states = ThreadLocal.withInitial(ThreadState::create);
+    private static final AtomicInteger nextId = new AtomicInteger(1);
+    private static final AtomicInteger nextOwnerId = new AtomicInteger(1);
+
+    // happens-before检测中已结束线程的编号，以Thread的弱引用跟踪
+    private static final ReferenceQueue<Thread> exited = new ReferenceQueue<>();
+    private static final Set<IdLease> leases = ConcurrentHashMap.newKeySet();
+    private static final Queue<IdLease> freeIds = new ConcurrentLinkedQueue<>();
+
+    static final byte ROLE_UNSET = 0;
+    static final byte ROLE_CORE = 1;
+    static final byte ROLE_NON_CORE = 2;
+
+    // 解析角色时的线程名，改名后引用不再相同
+    String resolvedName;
+    int resolvedVersion = -1;
+    boolean core;
+    // 通过AccessMonitor.markCore()/markNonCore()显式设置的角色，优先于配置规则
+    byte explicitRole = ROLE_UNSET;
+    // 创建本线程的线程当时的角色，core.inherit允许时作为规则都不匹配时的角色
+    byte inheritedRole = ROLE_UNSET;
+
+    // 紧凑的线程编号，从1开始，用作向量时钟的下标
+    final int id;
+    // 所有权字中的线程标识，0表示没有所有者
+    final int ownerId;
+    // happens-before检测使用的向量时钟，只由本线程修改
+    private VectorClock clock;
+    // 复用编号时本线程的第一个时钟值，更小的值属于之前使用该编号的线程
+    int firstClock = 1;
+    // 记录模式下本线程当前写入的段文件
+    TraceRecorder.Segment trace;
+    // 没有名字的线程(通常是虚拟线程)在报告中的名字
+    private String unnamed;
+
+    private ThreadState(int id) {
+        this.id = id;
+        int owner = nextOwnerId.getAndIncrement() & Integer.MAX_VALUE;
+        this.ownerId = owner != 0 ? owner : nextOwnerId.getAndIncrement() & Integer.MAX_VALUE;
+    }
+
+    static ThreadState current() {
+        return states.get();
+    }
+
+    VectorClock clock() {
+        VectorClock c = clock;
+        if (c == null) {
+            c = new VectorClock();
+            c.set(id, firstClock);
+            clock = c;
+        }
+        return c;
+    }
+
+    /**
+     * 报告中使用的线程名，没有名字的线程以ownerId区分。
+     */
+    String displayName(Thread thread) {
+        String name = thread.getName();
+        if (!name.isEmpty()) {
+            return name;
+        }
+        if (unnamed == null) {
+            unnamed = (ThreadRoles.isVirtual(thread) ? "virtual#" : "thread#") + ownerId;
+        }
+        return unnamed;
+    }
+
+    private static ThreadState create() {
+        Thread thread = Thread.currentThread();
+        ThreadState state;
+        if (HappensBefore.enabled && !TraceRecorder.isEnabled()) {
+            state = lease(thread);
+        } else {
+            // 记录模式的线程号写在记录文件里，不能复用
+            state = new ThreadState(nextId.getAndIncrement());
+        }
+        state.inheritedRole = ThreadRoles.inheritedRole();
+        if (HappensBefore.enabled) {
+            HappensBefore.onThreadStart(thread, state);
+        }
+        return state;
+    }
+
+    private static ThreadState lease(Thread thread) {
+        IdLease exitedLease;
+        while ((exitedLease = (IdLease) exited.poll()) != null) {
+            leases.remove(exitedLease);
+            freeIds.add(exitedLease);
+        }
+        IdLease free = freeIds.poll();
+        ThreadState state;
+        if (free == null) {
+            state = new ThreadState(nextId.getAndIncrement());
+        } else {
+            state = new ThreadState(free.id);
+            // 新线程的时钟接着上一个线程的最后一个值继续，其他线程已知的旧值不会被误认为新线程的事件
+            state.firstClock = free.state.clock().get(free.id) + 1;
+        }
+        state.clock();
+        leases.add(new IdLease(thread, state, exited));
+        return state;
+    }
+
+    /**
+     * 线程持有的编号，线程对象被回收后进入队列。
+     */
+    private static final class IdLease extends WeakReference<Thread> {
+        final int id;
+        final ThreadState state;
+
+        IdLease(Thread thread, ThreadState state, ReferenceQueue<Thread> queue) {
+            super(thread, queue);
+            this.id = state.id;
+            this.state = state;
+        }
+    }
+}
@@ -0,0 +1,461 @@
+package com.threadsafe.agent;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * 离线分析TraceRecorder的记录，按与AccessMonitor.checkAccess相同的规则找出违规，输出与在线检查相同格式的JSON-lines：
+ * <pre>
+ * java -cp thread-monitor-agent.jar com.threadsafe.agent.TraceAnalyzer &lt;记录目录&gt; [输出文件] [并行度]
+ * </pre>
+ * 分析分两步，都在ForkJoinPool中并行：先按片扫描，把每片中的记录按字段分组；
+ * 再按字段划分任务，把该字段在各片(每片属于一个线程)中的记录按时间归并后重放。不同字段的状态互不相关，重放时不需要同步。
+ * 记录模式只支持basic规则：没有同步事件，也就没有happens-before关系。
+ * 调用栈用访问点(类、方法、行号)代替，stack记录的id即访问点ID。
+ */
+public final class TraceAnalyzer {
+    // 每个任务至少处理的字段数，避免任务切得过碎
+    private static final int FIELDS_PER_TASK = 16;
+
+    private final Path dir;
+    private final List<FieldMeta> fields = new ArrayList<>();
+    private final List<SiteRegistry.Site> sites = new ArrayList<>();
+    private final Map<Integer, String> threadNames = new HashMap<>();
+    private final List<Segment> segments = new ArrayList<>();
+
+    private TraceAnalyzer(Path dir) {
+        this.dir = dir;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: TraceAnalyzer <traceDir> [output] [parallelism]");
+            System.exit(1);
+        }
+        Path dir = Paths.get(args[0]);
+        Path output = args.length > 1 ? Paths.get(args[1]) : dir.resolve("violations.jsonl");
+        int parallelism = args.length > 2 ? Integer.parseInt(args[2]) : Runtime.getRuntime().availableProcessors();
+
+        long start = System.nanoTime();
+        TraceAnalyzer analyzer = new TraceAnalyzer(dir);
+        analyzer.load();
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            List<Violation> violations = analyzer.analyze(pool);
+            analyzer.write(violations, output);
+            long records = analyzer.segments.stream().mapToLong(segment -> segment.count).sum();
+            System.out.printf("Analyzed %d records in %d segments, %d violations written to %s (%d ms)%n",
+                records, analyzer.segments.size(), violations.size(), output,
+                (System.nanoTime() - start) / 1_000_000);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * 读取映射文件并映射所有段文件。
+     */
+    void load() throws IOException {
+        for (String line : readLines(TraceRecorder.FIELDS_FILE)) {
+            String[] parts = line.split("\t", -1);
+            int id = Integer.parseInt(parts[0]);
+            while (fields.size() <= id) {
+                fields.add(null);
+            }
+            fields.set(id, new FieldMeta(parts[1], parts[2], parts.length > 3 && parts[3].contains("i")));
+        }
+        for (String line : readLines(TraceRecorder.SITES_FILE)) {
+            String[] parts = line.split("\t", -1);
+            int id = Integer.parseInt(parts[0]);
+            while (sites.size() <= id) {
+                sites.add(null);
+            }
+            sites.set(id, new SiteRegistry.Site(id, parts[1], parts[2], parts[3].isEmpty() ? null : parts[3],
+                Integer.parseInt(parts[4])));
+        }
+        for (String line : readLines(TraceRecorder.THREADS_FILE)) {
+            int tab = line.indexOf('\t');
+            // 线程改名后以最后一次的名字为准
+            threadNames.put(Integer.parseInt(line.substring(0, tab)), line.substring(tab + 1));
+        }
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(dir)) {
+            files = stream.filter(file -> file.getFileName().toString().endsWith(TraceRecorder.SEGMENT_SUFFIX))
+                .sorted().collect(Collectors.toList());
+        }
+        for (Path file : files) {
+            segments.addAll(Segment.open(file));
+        }
+    }
+
+    private List<String> readLines(String name) throws IOException {
+        Path file = dir.resolve(name);
+        if (!Files.exists(file)) {
+            return new ArrayList<>();
+        }
+        return Files.readAllLines(file, StandardCharsets.UTF_8).stream()
+            .filter(line -> !line.isEmpty()).collect(Collectors.toList());
+    }
+
+    List<Violation> analyze(ForkJoinPool pool) {
+        // 第一步：每个段按字段分组
+        pool.submit(() -> segments.parallelStream().forEach(Segment::index)).join();
+        int fieldCount = 0;
+        for (Segment segment : segments) {
+            fieldCount = Math.max(fieldCount, segment.maxFieldId + 1);
+        }
+        // 第二步：按字段重放
+        List<Violation> violations = pool.invoke(new ReplayTask(0, fieldCount));
+        violations.sort(Comparator.comparingLong(violation -> violation.time));
+        return violations;
+    }
+
+    private final class ReplayTask extends RecursiveTask<List<Violation>> {
+        private static final long serialVersionUID = 1L;
+        private final int from;
+        private final int to;
+
+        ReplayTask(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<Violation> compute() {
+            if (to - from <= FIELDS_PER_TASK) {
+                List<Violation> result = new ArrayList<>();
+                for (int fieldId = from; fieldId < to; fieldId++) {
+                    replay(fieldId, result);
+                }
+                return result;
+            }
+            int middle = (from + to) >>> 1;
+            ReplayTask left = new ReplayTask(from, middle);
+            left.fork();
+            List<Violation> result = new ReplayTask(middle, to).compute();
+            result.addAll(left.join());
+            return result;
+        }
+    }
+
+    /**
+     * 按时间顺序重放一个字段的所有访问，规则与AccessMonitor.doCheckAccess/recordWrite一致。
+     */
+    private void replay(int fieldId, List<Violation> result) {
+        PriorityQueue<Cursor> queue = new PriorityQueue<>(Comparator.comparingLong(cursor -> cursor.time));
+        for (Segment segment : segments) {
+            int[] records = segment.recordsOf(fieldId);
+            if (records != null) {
+                Cursor cursor = new Cursor(segment, records);
+                cursor.load();
+                queue.add(cursor);
+            }
+        }
+        if (queue.isEmpty()) {
+            return;
+        }
+        FieldMeta field = fieldId < fields.size() ? fields.get(fieldId) : null;
+        boolean ignoreStaticInit = field != null && field.ignoreStaticInit;
+        Map<Long, ObjectState> states = new HashMap<>();
+        while (!queue.isEmpty()) {
+            Cursor cursor = queue.poll();
+            Segment segment = cursor.segment;
+            int offset = cursor.offset();
+            long objectId = segment.buffer.getLong(offset + 8);
+            int siteId = segment.buffer.getInt(offset + 20);
+            int threadId = segment.buffer.getInt(offset + 24);
+            int flags = segment.buffer.getInt(offset + 28);
+            boolean core = (flags & TraceRecorder.FLAG_CORE) != 0;
+            boolean staticInit = (flags & TraceRecorder.FLAG_STATIC_INIT) != 0;
+
+            ObjectState state = states.get(objectId);
+            if ((flags & TraceRecorder.FLAG_READ) != 0) {
+                if (state != null && !state.reported && state.writeThread != 0 && core
+                        && !(state.writeStaticInit && ignoreStaticInit)) {
+                    result.add(new Violation(segment.wallTime(cursor.time), fieldId, objectId,
+                        (flags & TraceRecorder.FLAG_STATIC) != 0, threadId, siteId, state));
+                    state.reported = true;
+                }
+            } else {
+                if (state == null) {
+                    state = new ObjectState();
+                    states.put(objectId, state);
+                }
+                if (state.owner == threadId) {
+                    // 同一线程离开<clinit>后再次写入@IgnoreStaticInit字段时更新写入现场
+                    if (state.writeThread != 0 && state.writeStaticInit && ignoreStaticInit
+                            && !state.ownerCore && !staticInit) {
+                        state.recordWrite(threadId, siteId, false);
+                    }
+                } else {
+                    state.owner = threadId;
+                    state.ownerCore = core;
+                    // 只有非核心线程取得所有权时才更新写入现场，核心线程写入不会清除它
+                    if (!core) {
+                        state.recordWrite(threadId, siteId, staticInit);
+                    }
+                }
+            }
+            if (cursor.next()) {
+                queue.add(cursor);
+            }
+        }
+    }
+
+    void write(List<Violation> violations, Path output) throws IOException {
+        Path parent = output.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        BitSet writtenSites = new BitSet();
+        StringBuilder line = new StringBuilder(256);
+        try (Writer writer = new BufferedWriter(Files.newBufferedWriter(output, StandardCharsets.UTF_8,
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))) {
+            for (Violation violation : violations) {
+                writeSite(writer, line, writtenSites, violation.readSite);
+                writeSite(writer, line, writtenSites, violation.writeSite);
+                line.setLength(0);
+                line.append("{\"type\":\"violation\",\"time\":").append(violation.time).append(",\"variable\":");
+                Json.quote(line, variable(violation)).append(",\"coreThread\":");
+                Json.quote(line, threadName(violation.readThread)).append(",\"nonCoreThread\":");
+                Json.quote(line, threadName(violation.writeThread))
+                    .append(",\"staticInit\":").append(violation.writeStaticInit)
+                    .append(",\"coreStack\":").append(violation.readSite)
+                    .append(",\"writeStack\":").append(violation.writeSite)
+                    .append("}\n");
+                writer.append(line);
+            }
+        }
+    }
+
+    private void writeSite(Writer writer, StringBuilder line, BitSet written, int siteId) throws IOException {
+        if (written.get(siteId)) {
+            return;
+        }
+        written.set(siteId);
+        line.setLength(0);
+        line.append("{\"type\":\"stack\",\"id\":").append(siteId).append(",\"frames\":[");
+        SiteRegistry.Site site = siteId < sites.size() ? sites.get(siteId) : null;
+        if (site != null) {
+            line.append("{\"class\":");
+            Json.quote(line, site.owner.replace('/', '.')).append(",\"method\":");
+            Json.quote(line, site.method).append(",\"file\":");
+            Json.quote(line, site.file).append(",\"line\":").append(site.line).append('}');
+        }
+        line.append("]}\n");
+        writer.append(line);
+    }
+
+    private String variable(Violation violation) {
+        FieldMeta field = violation.fieldId < fields.size() ? fields.get(violation.fieldId) : null;
+        String name = field == null ? "field#" + violation.fieldId : field.owner + "." + field.name;
+        // 与在线检查一致：静态字段为static.前缀，实例字段为identityHashCode前缀
+        return violation.isStatic ? "static." + name : (int) violation.objectId + "." + name;
+    }
+
+    private String threadName(int threadId) {
+        String name = threadNames.get(threadId);
+        return name != null ? name : "thread-" + threadId;
+    }
+
+    private static final class FieldMeta {
+        final String owner;
+        final String name;
+        final boolean ignoreStaticInit;
+
+        FieldMeta(String owner, String name, boolean ignoreStaticInit) {
+            this.owner = owner;
+            this.name = name;
+            this.ignoreStaticInit = ignoreStaticInit;
+        }
+    }
+
+    /**
+     * 一个对象(静态字段为对象0)上该字段的重放状态，对应FieldState。
+     */
+    private static final class ObjectState {
+        int owner;
+        boolean ownerCore;
+        boolean reported;
+        // 最近一次非核心线程取得所有权时的写入，writeThread为0表示没有
+        int writeThread;
+        int writeSite;
+        boolean writeStaticInit;
+
+        void recordWrite(int threadId, int siteId, boolean staticInit) {
+            writeThread = threadId;
+            writeSite = siteId;
+            writeStaticInit = staticInit;
+        }
+    }
+
+    static final class Violation {
+        final long time;
+        final int fieldId;
+        final long objectId;
+        final boolean isStatic;
+        final int readThread;
+        final int readSite;
+        final int writeThread;
+        final int writeSite;
+        final boolean writeStaticInit;
+
+        Violation(long time, int fieldId, long objectId, boolean isStatic, int readThread, int readSite,
+                  ObjectState write) {
+            this.time = time;
+            this.fieldId = fieldId;
+            this.objectId = objectId;
+            this.isStatic = isStatic;
+            this.readThread = readThread;
+            this.readSite = readSite;
+            this.writeThread = write.writeThread;
+            this.writeSite = write.writeSite;
+            this.writeStaticInit = write.writeStaticInit;
+        }
+    }
+
+    /**
+     * 段文件中的一片。index之后按字段记录该片中的记录序号，同一字段的记录按时间有序(同一线程顺序写入)。
+     */
+    private static final class Segment {
+        final ByteBuffer buffer;
+        final long createdMillis;
+        final long createdTime;
+        int count;
+        int maxFieldId = -1;
+        private Map<Integer, IntList> byField;
+
+        private Segment(ByteBuffer buffer) {
+            this.buffer = buffer;
+            this.createdMillis = buffer.getLong(16);
+            this.createdTime = buffer.getLong(24);
+        }
+
+        static List<Segment> open(Path file) throws IOException {
+            List<Segment> slices = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                buffer.order(ByteOrder.LITTLE_ENDIAN);
+                int offset = 0;
+                while (offset + TraceRecorder.HEADER_SIZE <= buffer.capacity()) {
+                    int magic = buffer.getInt(offset);
+                    if (magic == 0) {
+                        // 之后的片还没有分出去
+                        break;
+                    }
+                    if (magic != TraceRecorder.MAGIC || buffer.getInt(offset + 4) != TraceRecorder.VERSION) {
+                        System.err.println("Skipping " + file + ": not a trace segment of version " + TraceRecorder.VERSION);
+                        break;
+                    }
+                    int size = buffer.getInt(offset + 32);
+                    if (size < TraceRecorder.HEADER_SIZE || size > buffer.capacity() - offset) {
+                        System.err.println("Skipping the rest of " + file + ": malformed slice at " + offset);
+                        break;
+                    }
+                    slices.add(new Segment(buffer.slice(offset, size).order(ByteOrder.LITTLE_ENDIAN)));
+                    offset += size;
+                }
+            }
+            return slices;
+        }
+
+        void index() {
+            byField = new HashMap<>();
+            int capacity = (buffer.capacity() - TraceRecorder.HEADER_SIZE) / TraceRecorder.RECORD_SIZE;
+            int i = 0;
+            for (; i < capacity; i++) {
+                int offset = offset(i);
+                // 时间为0表示记录到此为止
+                if (buffer.getLong(offset) == 0) {
+                    break;
+                }
+                int fieldId = buffer.getInt(offset + 16);
+                maxFieldId = Math.max(maxFieldId, fieldId);
+                byField.computeIfAbsent(fieldId, id -> new IntList()).add(i);
+            }
+            count = i;
+        }
+
+        int[] recordsOf(int fieldId) {
+            IntList list = byField.get(fieldId);
+            return list == null ? null : list.toArray();
+        }
+
+        long wallTime(long time) {
+            return createdMillis + (time - createdTime) / 1_000_000;
+        }
+
+        static int offset(int record) {
+            return TraceRecorder.HEADER_SIZE + record * TraceRecorder.RECORD_SIZE;
+        }
+    }
+
+    /**
+     * 在一个段中按顺序遍历某个字段的记录。
+     */
+    private static final class Cursor {
+        final Segment segment;
+        final int[] records;
+        int position;
+        long time;
+
+        Cursor(Segment segment, int[] records) {
+            this.segment = segment;
+            this.records = records;
+        }
+
+        void load() {
+            time = segment.buffer.getLong(offset());
+        }
+
+        int offset() {
+            return Segment.offset(records[position]);
+        }
+
+        boolean next() {
+            if (++position == records.length) {
+                return false;
+            }
+            load();
+            return true;
+        }
+    }
+
+    private static final class IntList {
+        private int[] values = new int[16];
+        private int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size << 1);
+            }
+            values[size++] = value;
+        }
+
+        int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
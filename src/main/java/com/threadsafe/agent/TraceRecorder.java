@@ -0,0 +1,272 @@
+package com.threadsafe.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.atomic.AtomicLong;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 记录模式：插桩点不做检查，只把每次访问追加为一条定长的二进制记录，由TraceAnalyzer离线分析。
+ * 所有线程共用内存映射的段文件，每个段文件切成固定大小的片，线程每次独占一片，写满后再取下一片，
+ * 追加时不加锁、不分配对象，也不采集调用栈(用插桩时分配的访问点ID代替)。
+ * 每个线程最多占用一片尚未写满的映射内存，大量短命线程或虚拟线程不会各自映射一个完整的段。
+ * <p>
+ * 一次运行的所有文件放在record.dir下的trace-&lt;时间&gt;-&lt;pid&gt;目录中：
+ * <ul>
+ *     <li>s&lt;序号&gt;.trace：段文件，由连续的片组成；每片64字节的头(含线程ID、该线程的片序号和片大小)之后是连续的32字节记录，
+ *     未写到的部分全为0，尚未分出去的片头部也全为0</li>
+ *     <li>fields.txt / sites.txt：字段ID和访问点ID的映射，每次新建段和进程退出时整体重写</li>
+ *     <li>threads.txt：线程ID和线程名，线程第一次记录和改名时追加</li>
+ * </ul>
+ * 记录格式(小端)：时间(long，相对记录开始的纳秒数+1，为0表示段结束)、对象ID(long，静态字段为0)、
+ * 字段ID(int)、访问点ID(int)、线程ID(int)、标志位(int)。
+ */
+public final class TraceRecorder {
+    private static final Logger logger = LogManager.getLogger(TraceRecorder.class);
+
+    static final int MAGIC = 0x54535452;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 64;
+    static final int RECORD_SIZE = 32;
+
+    static final int FLAG_READ = 1;
+    static final int FLAG_STATIC = 2;
+    static final int FLAG_CORE = 4;
+    // 写入发生在<clinit>中，只对@IgnoreStaticInit字段记录
+    static final int FLAG_STATIC_INIT = 8;
+
+    static final String FIELDS_FILE = "fields.txt";
+    static final String SITES_FILE = "sites.txt";
+    static final String THREADS_FILE = "threads.txt";
+    static final String SEGMENT_SUFFIX = ".trace";
+
+    // 在插桩开始之前配置，之后只读；插桩时据此决定调用record还是AccessMonitor.checkAccess
+    static volatile boolean enabled;
+    private static Path sessionDir;
+    private static int segmentSize;
+    private static int sliceSize;
+    private static long baseNanos;
+
+    // 正在切分的段文件和下一片的位置，由TraceRecorder.class保护
+    private static MappedByteBuffer current;
+    private static int currentOffset;
+    private static int segmentCount;
+
+    // 对象ID的高32位为分配序号，低32位为identityHashCode，与在线检查输出的变量名保持一致
+    private static final AtomicLong nextObjectSeq = new AtomicLong();
+    private static final ShadowTable<Long> objectIds = new ShadowTable<>(nextObjectSeq::incrementAndGet);
+
+    private TraceRecorder() {
+    }
+
+    /**
+     * 配置项：mode=record 开启记录模式，record.dir 记录目录，record.segmentMB 每个段文件的大小(MB)，
+     * record.sliceKB 线程每次从段文件中取得的片大小(KB)。
+     */
+    static synchronized void configure(AgentOptions options) {
+        if (!"record".equals(options.get("mode", "check"))) {
+            return;
+        }
+        String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        Path dir = Paths.get(options.get("record.dir", "logs/trace"))
+            .resolve("trace-" + stamp + "-" + ProcessHandle.current().pid());
+        try {
+            Files.createDirectories(dir);
+        } catch (IOException e) {
+            logger.error("Failed to create trace directory {}: {}", dir, e.getMessage());
+            return;
+        }
+        sessionDir = dir;
+        long slice = HEADER_SIZE + Math.max(1L, options.getInt("record.sliceKB", 256)) * 1024 / RECORD_SIZE * RECORD_SIZE;
+        long segment = Math.max(1L, options.getInt("record.segmentMB", 16)) * 1024 * 1024;
+        // 一个段文件只做一次映射，大小不能超过2GB
+        sliceSize = (int) Math.min(slice, Integer.MAX_VALUE / RECORD_SIZE * RECORD_SIZE);
+        segmentSize = (int) (Math.min(Math.max(segment, sliceSize), Integer.MAX_VALUE) / sliceSize * sliceSize);
+        baseNanos = System.nanoTime();
+        enabled = true;
+        Runtime.getRuntime().addShutdownHook(new Thread(TraceRecorder::writeMetadata, "threadsafe-trace-flush"));
+        logger.info("Recording field accesses to {}", dir.toAbsolutePath());
+    }
+
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    static Path sessionDir() {
+        return sessionDir;
+    }
+
+    /**
+     * 记录模式下插桩代码调用的入口，参数与AccessMonitor.checkAccess相同，另加访问点ID。
+     */
+    public static void record(Object instance, int fieldId, int siteId, boolean isStatic, boolean isRead) {
+        long objectId = 0;
+        if (!isStatic) {
+            // 没有被写过的对象，读取不可能构成违规，不需要记录
+            Long seq = isRead ? objectIds.peek(instance) : objectIds.get(instance);
+            if (seq == null) {
+                return;
+            }
+            objectId = (seq << 32) | (System.identityHashCode(instance) & 0xFFFFFFFFL);
+        }
+        Thread thread = Thread.currentThread();
+        ThreadState state = ThreadState.current();
+        int flags = (isRead ? FLAG_READ : 0) | (isStatic ? FLAG_STATIC : 0)
+            | (ThreadRoles.isCore(thread, state) ? FLAG_CORE : 0);
+        // @IgnoreStaticInit字段才需要区分写入是否发生在静态初始化中，这类字段很少，可以接受一次栈遍历
+        if (!isRead && FieldRegistry.get(fieldId).ignoreStaticInit && StackCapture.inStaticInitialization()) {
+            flags |= FLAG_STATIC_INIT;
+        }
+        Segment segment = state.trace;
+        if (segment == null || segment.isFull()) {
+            if (segment == Segment.FULL) {
+                return;
+            }
+            segment = nextSegment(state, thread, segment);
+            if (segment == null) {
+                return;
+            }
+        }
+        String name = thread.getName();
+        if (name != segment.threadName) {
+            segment.threadName = name;
+            appendThread(state.id, name);
+        }
+        segment.append(System.nanoTime() - baseNanos + 1, objectId, fieldId, siteId, state.id, flags);
+    }
+
+    private static Segment nextSegment(ThreadState state, Thread thread, Segment previous) {
+        int sequence = previous == null ? 0 : previous.sequence + 1;
+        ByteBuffer buffer;
+        try {
+            buffer = nextSlice();
+        } catch (IOException e) {
+            logger.error("Failed to create trace segment, recording stopped for thread {}: {}",
+                thread.getName(), e.getMessage());
+            // 不再为这个线程反复尝试
+            state.trace = Segment.FULL;
+            return null;
+        }
+        buffer.putInt(4, VERSION);
+        buffer.putInt(8, state.id);
+        buffer.putInt(12, sequence);
+        // 创建时的墙上时间和相对时间，分析时据此把记录时间换算为毫秒时间戳
+        buffer.putLong(16, System.currentTimeMillis());
+        buffer.putLong(24, System.nanoTime() - baseNanos + 1);
+        buffer.putInt(32, buffer.capacity());
+        // MAGIC最后写入，分析时以它判断片是否已经分出去
+        buffer.putInt(0, MAGIC);
+        Segment segment = new Segment(buffer, sequence, previous == null ? null : previous.threadName);
+        state.trace = segment;
+        return segment;
+    }
+
+    /**
+     * 从当前段文件切出下一片，段文件用完时创建下一个。
+     */
+    private static synchronized ByteBuffer nextSlice() throws IOException {
+        if (current == null || currentOffset + sliceSize > current.capacity()) {
+            Path file = sessionDir.resolve("s" + segmentCount + SEGMENT_SUFFIX);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                current = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+            }
+            segmentCount++;
+            currentOffset = 0;
+            // 新段意味着有新的字段和访问点被用到，顺便刷新映射文件，进程异常退出时也能分析
+            BackgroundWriter.submit(TraceRecorder::writeMetadata);
+        }
+        ByteBuffer slice = current.slice(currentOffset, sliceSize).order(ByteOrder.LITTLE_ENDIAN);
+        currentOffset += sliceSize;
+        return slice;
+    }
+
+    private static void appendThread(int threadId, String name) {
+        String line = threadId + "\t" + name.replace('\t', ' ').replace('\n', ' ') + "\n";
+        BackgroundWriter.submit(() -> {
+            try {
+                Files.write(sessionDir.resolve(THREADS_FILE), line.getBytes(StandardCharsets.UTF_8),
+                    StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            } catch (IOException e) {
+                logger.error("Failed to write {}: {}", THREADS_FILE, e.getMessage());
+            }
+        });
+    }
+
+    private static synchronized void writeMetadata() {
+        StringBuilder fields = new StringBuilder();
+        int fieldCount = FieldRegistry.size();
+        for (int id = 0; id < fieldCount; id++) {
+            FieldRegistry.FieldInfo field = FieldRegistry.get(id);
+            fields.append(id).append('\t').append(field.owner).append('\t').append(field.name).append('\t')
+                .append(field.ignoreStaticInit ? "i" : "").append(field.isVolatile ? "v" : "").append('\n');
+        }
+        StringBuilder sites = new StringBuilder();
+        int siteCount = SiteRegistry.size();
+        for (int id = 0; id < siteCount; id++) {
+            SiteRegistry.Site site = SiteRegistry.get(id);
+            sites.append(id).append('\t').append(site.owner).append('\t').append(site.method).append('\t')
+                .append(site.file == null ? "" : site.file).append('\t').append(site.line).append('\n');
+        }
+        try {
+            replace(sessionDir.resolve(FIELDS_FILE), fields);
+            replace(sessionDir.resolve(SITES_FILE), sites);
+        } catch (IOException e) {
+            logger.error("Failed to write trace metadata: {}", e.getMessage());
+        }
+    }
+
+    private static void replace(Path file, CharSequence content) throws IOException {
+        Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+        Files.write(temp, content.toString().getBytes(StandardCharsets.UTF_8));
+        Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * 一个线程当前写入的片，只由该线程访问。
+     */
+    static final class Segment {
+        // 创建失败后占位，isFull恒为true
+        static final Segment FULL = new Segment(null, -1, null);
+
+        private final ByteBuffer buffer;
+        private final int sequence;
+        private int position = HEADER_SIZE;
+        // 最近一次写入threads.txt的线程名，按引用比较
+        String threadName;
+
+        Segment(ByteBuffer buffer, int sequence, String threadName) {
+            this.buffer = buffer;
+            this.sequence = sequence;
+            this.threadName = threadName;
+        }
+
+        boolean isFull() {
+            return buffer == null || position + RECORD_SIZE > buffer.capacity();
+        }
+
+        void append(long time, long objectId, int fieldId, int siteId, int threadId, int flags) {
+            int p = position;
+            buffer.putLong(p + 8, objectId);
+            buffer.putInt(p + 16, fieldId);
+            buffer.putInt(p + 20, siteId);
+            buffer.putInt(p + 24, threadId);
+            buffer.putInt(p + 28, flags);
+            // 时间最后写入，非0即表示记录完整
+            buffer.putLong(p, time);
+            position = p + RECORD_SIZE;
+        }
+    }
+}
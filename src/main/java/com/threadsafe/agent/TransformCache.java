@@ -0,0 +1,326 @@
+package com.threadsafe.agent;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+import java.util.Set;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 插桩结果的持久化缓存，重启后相同的类直接复用上次插桩的字节码。
+ * key为agent指纹(缓存格式、影响插桩结果的配置、agent jar本身)加原始字节码的SHA-256，
+ * 条目中除了插桩后的字节码，还保存转换时对全局状态的影响：用到的字段ID、volatile字段、@IgnoreStaticInit字段、
+ * @RsmThreadSafe排除的类/方法/字段，以及插桩和消除的访问点数。
+ * 字段ID直接写在插桩代码里，因此字段注册表按ID顺序持久化在fields.idx中，启动时按原顺序重新注册，
+ * 保证重启后ID不变；命中时逐个校验ID对应的字段，不一致就当作未命中重新插桩。
+ * 一个缓存目录只供一个应用使用，发现fields.idx被其他进程改写时本次运行不再写入。
+ */
+final class TransformCache {
+    private static final Logger logger = LogManager.getLogger(TransformCache.class);
+    private static final int MAGIC = 0x54534331;
+    // 插桩逻辑变化导致缓存的字节码不再适用时递增
+    private static final int FORMAT_VERSION = 2;
+    private static final String INDEX_FILE = "fields.idx";
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static volatile Path dir;
+    private static byte[] fingerprint;
+    // 以下字段只在configure和后台写入线程中访问
+    private static int persistedFields;
+    private static long indexLength;
+    private static boolean writable;
+
+    private TransformCache() {
+    }
+
+    /**
+     * 配置项：cache.dir 缓存目录，默认不开启。必须在第一个类被插桩之前调用。
+     */
+    static synchronized void configure(AgentOptions options) {
+        String directory = options.get("cache.dir", "none");
+        if ("none".equals(directory)) {
+            dir = null;
+            return;
+        }
+        if (TraceRecorder.isEnabled()) {
+            // 访问点ID每次运行重新分配，记录模式的插桩结果不能复用
+            logger.info("Transform cache is disabled in record mode");
+            dir = null;
+            return;
+        }
+        Path path = Paths.get(directory);
+        try {
+            Files.createDirectories(path);
+            fingerprint = fingerprint(options);
+            writable = loadIndex(path.resolve(INDEX_FILE));
+            dir = path;
+            logger.info("Transform cache at {} ({} known fields, writable={})", path, persistedFields, writable);
+        } catch (IOException e) {
+            logger.error("Failed to open transform cache {}: {}", directory, e.getMessage());
+            dir = null;
+        }
+    }
+
+    static boolean isEnabled() {
+        return dir != null;
+    }
+
+    /**
+     * 计算缓存key，缓存未开启时返回null。
+     */
+    static String key(byte[] original) {
+        if (dir == null) {
+            return null;
+        }
+        MessageDigest digest = sha256();
+        digest.update(fingerprint);
+        byte[] hash = digest.digest(original);
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xF];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xF];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * 查找缓存的插桩结果，命中时重放转换对全局状态的影响并返回字节码；未命中或条目失效时返回null。
+     */
+    static byte[] lookup(String key) {
+        Path base = dir;
+        if (base == null || key == null) {
+            return null;
+        }
+        byte[] data;
+        try {
+            data = Files.readAllBytes(entryPath(base, key));
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            logger.warn("Failed to read transform cache entry {}: {}", key, e.getMessage());
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(data))) {
+            if (in.readInt() != MAGIC) {
+                return null;
+            }
+            String className = in.readUTF();
+            int idCount = in.readInt();
+            int registered = FieldRegistry.size();
+            for (int i = 0; i < idCount; i++) {
+                int id = in.readInt();
+                String owner = in.readUTF();
+                String name = in.readUTF();
+                if (id >= registered) {
+                    return null;
+                }
+                FieldRegistry.FieldInfo field = FieldRegistry.get(id);
+                if (!field.getOwner().equals(owner) || !field.getName().equals(name)) {
+                    return null;
+                }
+            }
+            int volatileCount = in.readInt();
+            for (int i = 0; i < volatileCount; i++) {
+                FieldRegistry.markVolatile(className, in.readUTF());
+            }
+            int ignoreCount = in.readInt();
+            for (int i = 0; i < ignoreCount; i++) {
+                String name = in.readUTF();
+                FieldRegistry.markIgnoreStaticInit(className, name);
+                ViolationReporter.annotate("IgnoreStaticInit", "field", className, name);
+            }
+            int exclusionCount = in.readInt();
+            for (int i = 0; i < exclusionCount; i++) {
+                String target = in.readUTF();
+                String member = in.readUTF();
+                ViolationReporter.annotate("RsmThreadSafe", target, className, member.isEmpty() ? null : member);
+            }
+            AgentMetrics.onCachedAccesses(in.readInt(), in.readInt());
+            byte[] bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            return bytes;
+        } catch (IOException e) {
+            logger.warn("Corrupt transform cache entry {}: {}", key, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * 在后台线程中保存插桩结果。
+     */
+    static void store(String key, FieldAccessVisitor visitor, byte[] transformed) {
+        Path base = dir;
+        if (base == null || key == null) {
+            return;
+        }
+        byte[] entry;
+        int maxId = -1;
+        try {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream(transformed.length + 256);
+            DataOutputStream out = new DataOutputStream(buffer);
+            out.writeInt(MAGIC);
+            out.writeUTF(visitor.getClassName());
+            Set<Integer> ids = visitor.getUsedFieldIds();
+            out.writeInt(ids.size());
+            for (int id : ids) {
+                FieldRegistry.FieldInfo field = FieldRegistry.get(id);
+                out.writeInt(id);
+                out.writeUTF(field.getOwner());
+                out.writeUTF(field.getName());
+                maxId = Math.max(maxId, id);
+            }
+            writeNames(out, visitor.getVolatileFields());
+            writeNames(out, visitor.getIgnoreStaticInitFields());
+            List<String[]> exclusions = visitor.getExclusions();
+            out.writeInt(exclusions.size());
+            for (String[] exclusion : exclusions) {
+                out.writeUTF(exclusion[0]);
+                out.writeUTF(exclusion[1] == null ? "" : exclusion[1]);
+            }
+            out.writeInt(visitor.getInstrumentedAccesses());
+            out.writeInt(visitor.getEliminatedAccesses());
+            out.writeInt(transformed.length);
+            out.write(transformed);
+            out.flush();
+            entry = buffer.toByteArray();
+        } catch (IOException e) {
+            return;
+        }
+        int requiredFields = maxId + 1;
+        BackgroundWriter.submit(() -> write(base, key, entry, requiredFields));
+    }
+
+    private static void writeNames(DataOutputStream out, Set<String> names) throws IOException {
+        out.writeInt(names.size());
+        for (String name : names) {
+            out.writeUTF(name);
+        }
+    }
+
+    private static void write(Path base, String key, byte[] entry, int requiredFields) {
+        // 条目引用的字段ID必须先落到fields.idx中，否则重启后无法还原
+        if (!persistIndex(base.resolve(INDEX_FILE)) || persistedFields < requiredFields) {
+            return;
+        }
+        Path target = entryPath(base, key);
+        try {
+            Files.createDirectories(target.getParent());
+            Path temp = Files.createTempFile(target.getParent(), key, ".tmp");
+            Files.write(temp, entry);
+            Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("Failed to write transform cache entry {}: {}", key, e.getMessage());
+        }
+    }
+
+    private static Path entryPath(Path base, String key) {
+        return base.resolve(key.substring(0, 2)).resolve(key + ".cls");
+    }
+
+    /**
+     * 按fields.idx的顺序注册字段，返回之后是否可以继续追加。
+     */
+    private static boolean loadIndex(Path index) throws IOException {
+        persistedFields = 0;
+        indexLength = 0;
+        if (FieldRegistry.size() != 0) {
+            logger.warn("Fields registered before the transform cache was opened, cache is read-only");
+            return false;
+        }
+        if (!Files.exists(index)) {
+            return true;
+        }
+        List<String> lines = Files.readAllLines(index, StandardCharsets.UTF_8);
+        for (String line : lines) {
+            int separator = line.indexOf('#');
+            if (separator < 0) {
+                logger.warn("Malformed line in {}: {}", index, line);
+                return false;
+            }
+            int id = FieldRegistry.register(line.substring(0, separator), line.substring(separator + 1));
+            if (id != persistedFields) {
+                logger.warn("Duplicate field in {}: {}", index, line);
+                return false;
+            }
+            persistedFields++;
+        }
+        indexLength = Files.size(index);
+        return true;
+    }
+
+    private static boolean persistIndex(Path index) {
+        if (!writable) {
+            return false;
+        }
+        int registered = FieldRegistry.size();
+        if (registered == persistedFields) {
+            return true;
+        }
+        try {
+            long length = Files.exists(index) ? Files.size(index) : 0;
+            if (length != indexLength) {
+                logger.warn("{} was modified by another process, transform cache is read-only", index);
+                writable = false;
+                return false;
+            }
+            StringBuilder lines = new StringBuilder();
+            for (int id = persistedFields; id < registered; id++) {
+                FieldRegistry.FieldInfo field = FieldRegistry.get(id);
+                lines.append(field.getOwner()).append('#').append(field.getName()).append('\n');
+            }
+            byte[] bytes = lines.toString().getBytes(StandardCharsets.UTF_8);
+            Files.write(index, bytes, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            persistedFields = registered;
+            indexLength = length + bytes.length;
+            return true;
+        } catch (IOException e) {
+            logger.warn("Failed to update {}: {}", index, e.getMessage());
+            writable = false;
+            return false;
+        }
+    }
+
+    private static byte[] fingerprint(AgentOptions options) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(FORMAT_VERSION)
+            .append(';').append(options.getBoolean("prepass", true))
+            .append(';').append(HappensBefore.isEnabled())
+            .append(';').append(ArrayMonitor.modeName());
+        // agent升级后旧的插桩结果自动失效
+        CodeSource source = TransformCache.class.getProtectionDomain().getCodeSource();
+        URL location = source == null ? null : source.getLocation();
+        if (location != null) {
+            try {
+                Path jar = Paths.get(location.toURI());
+                sb.append(';').append(jar).append(';').append(Files.size(jar))
+                    .append(';').append(Files.getLastModifiedTime(jar).toMillis());
+            } catch (Exception e) {
+                sb.append(';').append(location);
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
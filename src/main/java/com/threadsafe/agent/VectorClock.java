@@ -0,0 +1,53 @@
+package com.threadsafe.agent;
+
+import java.util.Arrays;
+
+/**
+ * 向量时钟，下标为ThreadState中的紧凑线程编号。
+ * 本身不做同步，由调用方保证并发安全。
+ */
+final class VectorClock {
+    private int[] clocks = new int[8];
+
+    int get(int threadId) {
+        int[] c = clocks;
+        return threadId < c.length ? c[threadId] : 0;
+    }
+
+    void set(int threadId, int value) {
+        if (threadId >= clocks.length) {
+            clocks = Arrays.copyOf(clocks, Math.max(threadId + 1, clocks.length << 1));
+        }
+        clocks[threadId] = value;
+    }
+
+    void increment(int threadId) {
+        set(threadId, get(threadId) + 1);
+    }
+
+    /**
+     * 逐项取最大值合并另一个时钟。
+     */
+    void join(VectorClock other) {
+        int[] o = other.clocks;
+        if (o.length > clocks.length) {
+            clocks = Arrays.copyOf(clocks, o.length);
+        }
+        int[] c = clocks;
+        for (int i = 0; i < o.length; i++) {
+            if (o[i] > c[i]) {
+                c[i] = o[i];
+            }
+        }
+    }
+
+    void copyFrom(VectorClock other) {
+        clocks = other.clocks.clone();
+    }
+
+    VectorClock copy() {
+        VectorClock copy = new VectorClock();
+        copy.clocks = clocks.clone();
+        return copy;
+    }
+}
@@ -0,0 +1,40 @@
+package com.threadsafe.agent;
+
+/**
+ * 一次违规读取的事件记录。
+ * 核心线程上只填充这些字段并发布到队列中，格式化和输出都在后台线程完成。
+ */
+final class ViolationEvent {
+    final long timestamp;
+    final int fieldId;
+    // 实例字段所属对象的identityHashCode，静态字段为0
+    final int instanceHash;
+    final boolean isStatic;
+    // 数组元素检查的槽号，字段为-1
+    final int arraySlot;
+    final String coreThread;
+    final int coreStackId;
+    final AccessMonitor.WriteInfo write;
+
+    ViolationEvent(long timestamp, int fieldId, int instanceHash, boolean isStatic, int arraySlot,
+                   String coreThread, int coreStackId, AccessMonitor.WriteInfo write) {
+        this.timestamp = timestamp;
+        this.fieldId = fieldId;
+        this.instanceHash = instanceHash;
+        this.isStatic = isStatic;
+        this.arraySlot = arraySlot;
+        this.coreThread = coreThread;
+        this.coreStackId = coreStackId;
+        this.write = write;
+    }
+
+    String variable() {
+        FieldRegistry.FieldInfo field = FieldRegistry.get(fieldId);
+        if (isStatic) {
+            return field.staticKey;
+        }
+        // 数组元素：identityHashCode.[I[下标]
+        return arraySlot >= 0 ? instanceHash + "." + field.owner + ArrayMonitor.slotName(arraySlot)
+            : instanceHash + "." + field.owner + "." + field.name;
+    }
+}
@@ -0,0 +1,72 @@
+package com.threadsafe.agent;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 有界的多生产者、单消费者环形队列。
+ * 每个槽位带一个序号，生产者CAS抢占写入位置后写入元素并发布序号，整个过程无锁；
+ * 队列已满时offer直接返回false，由调用方丢弃并计数。
+ */
+final class ViolationQueue {
+    private final ViolationEvent[] buffer;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // 只由消费者线程访问
+    private long head;
+
+    ViolationQueue(int requestedCapacity) {
+        int capacity = capacityFor(requestedCapacity);
+        this.buffer = new ViolationEvent[capacity];
+        this.sequences = new AtomicLongArray(capacity);
+        this.mask = capacity - 1;
+        for (int i = 0; i < capacity; i++) {
+            sequences.set(i, i);
+        }
+    }
+
+    boolean offer(ViolationEvent event) {
+        long position = tail.get();
+        while (true) {
+            int index = (int) position & mask;
+            long diff = sequences.getAcquire(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    buffer[index] = event;
+                    sequences.setRelease(index, position + 1);
+                    return true;
+                }
+                position = tail.get();
+            } else if (diff < 0) {
+                // 消费者还没有取走这一圈之前的元素，队列已满
+                return false;
+            } else {
+                position = tail.get();
+            }
+        }
+    }
+
+    ViolationEvent poll() {
+        int index = (int) head & mask;
+        if (sequences.getAcquire(index) != head + 1) {
+            return null;
+        }
+        ViolationEvent event = buffer[index];
+        buffer[index] = null;
+        sequences.setRelease(index, head + buffer.length);
+        head++;
+        return event;
+    }
+
+    /**
+     * 实际容量：不小于请求容量的2的幂。
+     */
+    static int capacityFor(int requestedCapacity) {
+        return Integer.highestOneBit(Math.max(2, requestedCapacity - 1)) << 1;
+    }
+
+    int capacity() {
+        return buffer.length;
+    }
+}
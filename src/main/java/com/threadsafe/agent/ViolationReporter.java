@@ -0,0 +1,206 @@
+package com.threadsafe.agent;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 异步的违规上报管道。
+ * 检查线程只把ViolationEvent放入有界队列，由后台drainer线程格式化并写入各个输出端；
+ * 队列满时直接丢弃事件并计数，不会阻塞业务线程。
+ */
+public final class ViolationReporter {
+    private static final Logger logger = LogManager.getLogger(ViolationReporter.class);
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final AtomicLong dropped = new AtomicLong();
+    private static volatile ViolationQueue queue = new ViolationQueue(8192);
+    // 重新配置时换下的队列，换下之前已经读到旧队列的检查线程可能还会放入事件，之后的drain仍然取一次
+    private static volatile ViolationQueue retired;
+    private static volatile List<ViolationSink> sinks = defaultSinks();
+    private static volatile Thread drainer;
+    private static volatile boolean running = true;
+    // 注解只在插桩时产生，数量很少，不需要有界
+    private static final Queue<Annotation> annotations = new ConcurrentLinkedQueue<>();
+
+    private ViolationReporter() {
+    }
+
+    /**
+     * 配置项：
+     * violations.queue 队列容量，violations.file JSON-lines输出文件(设为none关闭)，
+     * violations.log 是否同时输出原来的Log4j2文本日志，violations.maxSizeMB JSON-lines文件的滚动大小(0为不滚动)。
+     * 重新配置(例如再次attach)时，已经在队列中的事件先写入原来的输出端，再关闭原来的输出端；队列容量不变时沿用原队列。
+     */
+    public static synchronized void configure(AgentOptions options) {
+        drain();
+        for (ViolationSink sink : sinks) {
+            sink.close();
+        }
+        sinks = new ArrayList<>();
+        int capacity = options.getInt("violations.queue", 8192);
+        if (ViolationQueue.capacityFor(capacity) != queue.capacity()) {
+            retired = queue;
+            queue = new ViolationQueue(capacity);
+        }
+        List<ViolationSink> configured = new ArrayList<>();
+        String file = options.get("violations.file", "logs/violations.jsonl");
+        if (!"none".equals(file)) {
+            try {
+                long maxBytes = options.getInt("violations.maxSizeMB", 0) * 1024L * 1024L;
+                configured.add(new JsonLinesSink(Paths.get(file), maxBytes));
+            } catch (IOException e) {
+                logger.error("Failed to open violation file {}: {}", file, e.getMessage());
+            }
+        }
+        if (options.getBoolean("violations.log", true)) {
+            configured.add(new LogSink());
+        }
+        FlameGraphSink flame = FlameGraphSink.configure(options);
+        if (flame != null) {
+            configured.add(flame);
+        }
+        sinks = configured;
+        start();
+    }
+
+    private static List<ViolationSink> defaultSinks() {
+        List<ViolationSink> defaults = new ArrayList<>();
+        defaults.add(new LogSink());
+        return defaults;
+    }
+
+    static void publish(ViolationEvent event) {
+        if (!queue.offer(event)) {
+            dropped.incrementAndGet();
+            return;
+        }
+        if (drainer == null) {
+            start();
+        }
+    }
+
+    /**
+     * 记录插桩时发现的注解，由drainer线程写入输出端。
+     */
+    static void annotate(String annotation, String target, String className, String member) {
+        annotations.add(new Annotation(annotation, target, className, member));
+        if (drainer == null) {
+            start();
+        }
+    }
+
+    public static long droppedCount() {
+        return dropped.get();
+    }
+
+    private static synchronized void start() {
+        if (drainer != null) {
+            return;
+        }
+        Thread thread = new Thread(ViolationReporter::drainLoop, "threadsafe-violation-drainer");
+        thread.setDaemon(true);
+        thread.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(ViolationReporter::shutdown, "threadsafe-violation-flush"));
+        drainer = thread;
+    }
+
+    private static void drainLoop() {
+        while (running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    private static void shutdown() {
+        // 先停下drainer线程，输出端关闭之后不会再被写入
+        running = false;
+        Thread thread = drainer;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(1));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (ViolationReporter.class) {
+            drain();
+            for (ViolationSink sink : sinks) {
+                sink.close();
+            }
+            sinks = new ArrayList<>();
+        }
+        // log4j2.xml中关闭了Log4j自己的shutdown hook，保证剩余事件输出之后再关闭日志
+        LogManager.shutdown();
+    }
+
+    /**
+     * 取出队列中所有事件并写入输出端，返回处理的事件数。
+     */
+    static synchronized int drain() {
+        ViolationQueue current = queue;
+        List<ViolationSink> targets = sinks;
+        int count = 0;
+        Annotation annotation;
+        while ((annotation = annotations.poll()) != null) {
+            for (ViolationSink sink : targets) {
+                sink.annotation(annotation);
+            }
+            count++;
+        }
+        ViolationQueue old = retired;
+        if (old != null) {
+            count += drain(old, targets);
+        }
+        count += drain(current, targets);
+        if (count > 0) {
+            for (ViolationSink sink : targets) {
+                sink.flush();
+            }
+        }
+        return count;
+    }
+
+    private static int drain(ViolationQueue source, List<ViolationSink> targets) {
+        int count = 0;
+        ViolationEvent event;
+        while ((event = source.poll()) != null) {
+            for (ViolationSink sink : targets) {
+                try {
+                    sink.write(event);
+                } catch (RuntimeException e) {
+                    logger.error("Violation sink failed: {}", e.getMessage());
+                }
+            }
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * 插桩时发现的注解。annotation为注解名，target为class/method/field，className为内部类名，类注解的member为null。
+     */
+    static final class Annotation {
+        final String annotation;
+        final String target;
+        final String className;
+        final String member;
+
+        Annotation(String annotation, String target, String className, String member) {
+            this.annotation = annotation;
+            this.target = target;
+            this.className = className;
+            this.member = member;
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package com.threadsafe.agent;
+
+/**
+ * 违规事件的输出端，只会在后台的drainer线程中被调用。
+ */
+interface ViolationSink {
+    void write(ViolationEvent event);
+
+    /**
+     * 插桩时发现的@RsmThreadSafe/@IgnoreStaticInit注解，用于报告中列出被排除的类、方法和字段。
+     */
+    default void annotation(ViolationReporter.Annotation annotation) {
+    }
+
+    default void flush() {
+    }
+
+    /**
+     * 进程退出前最后一次drain之后调用。
+     */
+    default void close() {
+    }
+}
@@ -0,0 +1,78 @@
+package com.threadsafe.agent;
+
+/**
+ * 写入记录，字段(FieldState)和数组元素(ArrayMonitor的页)共用：
+ * 同一线程连续写入只读一次所有权字；所有权变化时CAS更新，角色变化时通知采样，
+ * 非核心线程取得所有权时采集写入现场，开启happens-before检测时记录写入epoch。
+ */
+final class WriteRecorder {
+
+    private WriteRecorder() {
+    }
+
+    /**
+     * 一组槽的所有权状态，所有权字格式同FieldState.owner。
+     */
+    interface Slots {
+        long owner(int slot);
+
+        boolean casOwner(int slot, long expected, long update);
+
+        AccessMonitor.WriteInfo write(int slot);
+
+        void setWrite(int slot, AccessMonitor.WriteInfo write);
+
+        /**
+         * 同一epoch内的重复写入只读一次，不重复写。
+         */
+        void setWriteEpoch(int slot, long epoch);
+    }
+
+    static void recordWrite(Thread thread, int fieldId, boolean ignoreStaticInit, Slots slots, int slot) {
+        ThreadState threadState = ThreadState.current();
+        int threadId = threadState.ownerId;
+        long word = slots.owner(slot);
+        if (FieldState.ownerThreadId(word) == threadId) {
+            if (FieldState.ownerIsCore(word)) {
+                return;
+            }
+            if (HappensBefore.enabled) {
+                slots.setWriteEpoch(slot, HappensBefore.currentEpoch());
+            }
+            // 唯一的例外：@IgnoreStaticInit字段在<clinit>中写入后，同一线程离开<clinit>再写入时需要更新写入现场
+            if (ignoreStaticInit) {
+                AccessMonitor.WriteInfo writeInfo = slots.write(slot);
+                if (writeInfo != null && writeInfo.isStaticInit && !StackCapture.inStaticInitialization()) {
+                    slots.setWrite(slot, AccessMonitor.newWriteInfo(thread, threadState, FieldState.epoch(word)));
+                }
+            }
+            return;
+        }
+
+        // 所有权发生变化，判断当前线程类型后CAS更新所有权
+        boolean isCore = ThreadRoles.isCore(thread, threadState);
+        while (true) {
+            int epoch = FieldState.epoch(word) + 1;
+            if (slots.casOwner(slot, word, FieldState.pack(threadId, isCore, epoch))) {
+                if (Sampler.active && (word == 0 || FieldState.ownerIsCore(word) != isCore)) {
+                    Sampler.onOwnerRoleChange(fieldId);
+                }
+                // 只有非核心线程取得所有权时才采集写入现场
+                if (!isCore) {
+                    if (HappensBefore.enabled) {
+                        slots.setWriteEpoch(slot, HappensBefore.currentEpoch());
+                    }
+                    slots.setWrite(slot, AccessMonitor.newWriteInfo(thread, threadState, epoch));
+                }
+                return;
+            }
+            word = slots.owner(slot);
+            if (FieldState.ownerThreadId(word) == threadId) {
+                if (HappensBefore.enabled && !isCore) {
+                    slots.setWriteEpoch(slot, HappensBefore.currentEpoch());
+                }
+                return;
+            }
+        }
+    }
+}
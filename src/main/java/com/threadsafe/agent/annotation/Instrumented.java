@@ -0,0 +1,14 @@
+package com.threadsafe.agent.annotation;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 由AotInstrumenter在构建时加到已插桩的类上，agent加载这些类时不再重复插桩。只保留在class文件中，运行时不可见。
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.CLASS)
+public @interface Instrumented {
+}